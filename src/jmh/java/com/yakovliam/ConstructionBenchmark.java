@@ -0,0 +1,32 @@
+package com.yakovliam;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks {@link EdgeNodeTreeConstructor#constructEdgeNodeTree}, which includes validation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+public class ConstructionBenchmark {
+
+  @Benchmark
+  public EdgeNodeTreeConstructor.EdgeNode constructEdgeNodeTree(FeederState state) {
+    return new EdgeNodeTreeConstructor().constructEdgeNodeTree(state.geometry, state.source);
+  }
+
+  @Benchmark
+  public CompiledEdgeTree constructAndCompile(FeederState state) {
+    return CompiledEdgeTree.compile(
+        new EdgeNodeTreeConstructor().constructEdgeNodeTree(state.geometry, state.source));
+  }
+}
@@ -0,0 +1,66 @@
+package com.yakovliam;
+
+import java.io.IOException;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.MultiLineString;
+import org.locationtech.jts.geom.Point;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The feeder a benchmark runs on, either a bundled GeoJSON resource or a synthetic feeder.
+ * <p>
+ * Synthetic feeders are given as {@code synthetic:<depth>x<fanOut>x<verticesPerSegment>}, other
+ * sizes can be run with e.g. {@code -p feeder=synthetic:12x2x5}. Seeded feeders are given as
+ * {@code topology:<topology>:<segments>:<seed>}, see {@link SyntheticFeederGenerator.Topology}.
+ */
+@State(Scope.Benchmark)
+public class FeederState {
+
+  @Param({
+      "resource:papago-buttes-scottsdale",
+      "resource:test-line-with-3-taps",
+      "synthetic:8x2x10",
+      "synthetic:6x4x20",
+      "topology:BUSHY:20000:1"
+  })
+  public String feeder;
+
+  MultiLineString geometry;
+
+  Point source;
+
+  @Setup(Level.Trial)
+  public void load() throws IOException {
+    if (feeder.startsWith("resource:")) {
+      String name = feeder.substring("resource:".length());
+      geometry = Bootstrapper.readMultiLineString("/" + name + ".geojson");
+      source = "papago-buttes-scottsdale".equals(name) ? Bootstrapper.STARTING_POINT
+          : geometry.getFactory().createPoint(new Coordinate(geometry.getCoordinate()));
+      return;
+    }
+
+    if (feeder.startsWith("synthetic:")) {
+      String[] size = feeder.substring("synthetic:".length()).split("x");
+      SyntheticFeederGenerator generator = new SyntheticFeederGenerator();
+      geometry = generator.generate(Integer.parseInt(size[0]), Integer.parseInt(size[1]),
+          Integer.parseInt(size[2]));
+      source = generator.getSource();
+      return;
+    }
+
+    if (feeder.startsWith("topology:")) {
+      String[] spec = feeder.substring("topology:".length()).split(":");
+      SyntheticFeederGenerator generator = new SyntheticFeederGenerator();
+      geometry = generator.generate(SyntheticFeederGenerator.Topology.valueOf(spec[0]),
+          Integer.parseInt(spec[1]), Long.parseLong(spec[2]));
+      source = generator.getSource();
+      return;
+    }
+
+    throw new IllegalArgumentException("Unknown feeder: " + feeder);
+  }
+}
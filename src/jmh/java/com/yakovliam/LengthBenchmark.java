@@ -0,0 +1,46 @@
+package com.yakovliam;
+
+import java.util.concurrent.TimeUnit;
+import org.locationtech.jts.geom.Geometry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks {@link GeometryUtil#getLengthInMeters} over every LineString of the feeder, with each
+ * geodesic kernel.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+public class LengthBenchmark {
+
+  @Param({"HAVERSINE", "VINCENTY", "KARNEY"})
+  public GeodesicKernel kernel;
+
+  @Setup(Level.Trial)
+  public void selectKernel() {
+    GeometryUtil.setGeodesicKernel(kernel);
+  }
+
+  @Benchmark
+  public void getLengthInMeters(FeederState state, Blackhole blackhole) {
+    for (int i = 0; i < state.geometry.getNumGeometries(); i++) {
+      Geometry lineString = state.geometry.getGeometryN(i);
+      blackhole.consume(GeometryUtil.getLengthInMeters(lineString));
+    }
+  }
+}
@@ -0,0 +1,77 @@
+package com.yakovliam;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.locationtech.jts.geom.Point;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks {@link FaultLocator#locateFault}, on the edge tree and on the compiled tree, at a
+ * fraction of the distance to the farthest leaf.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+public class LocateBenchmark {
+
+  @Param({"0.25", "0.5", "0.9"})
+  public double reach;
+
+  private final FaultLocator faultLocator = new FaultLocator();
+
+  private EdgeNodeTreeConstructor.EdgeNode root;
+
+  private CompiledEdgeTree compiledTree;
+
+  private double distance;
+
+  private double[] distances;
+
+  @Setup(Level.Trial)
+  public void build(FeederState state) {
+    root = new EdgeNodeTreeConstructor().constructEdgeNodeTree(state.geometry, state.source);
+    compiledTree = CompiledEdgeTree.compile(root);
+
+    double farthest = 0;
+    for (CompiledEdgeTree.CompiledEdgeNode node : compiledTree.getNodes()) {
+      farthest = Math.max(farthest, node.getDistanceToEnd());
+    }
+    distance = farthest * reach;
+
+    // a burst of nearby distances, e.g. several relays reporting the same fault
+    distances = new double[10];
+    for (int i = 0; i < distances.length; i++) {
+      distances[i] = distance * (0.95 + 0.01 * i);
+    }
+  }
+
+  @Benchmark
+  public Set<Point> locateFaultEdgeTree() {
+    return faultLocator.locateFault(root, distance);
+  }
+
+  @Benchmark
+  public Set<Point> locateFaultCompiled() {
+    return faultLocator.locateFault(compiledTree, distance);
+  }
+
+  @Benchmark
+  public List<Set<Point>> locateFaultsCompiledBatch() {
+    return faultLocator.locateFaults(compiledTree, distances);
+  }
+}
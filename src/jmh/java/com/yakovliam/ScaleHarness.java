@@ -0,0 +1,332 @@
+package com.yakovliam;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.locationtech.jts.geom.MultiLineString;
+import org.slf4j.Logger;
+
+/**
+ * Scale and soak harness. Generates a synthetic feeder, loads and validates it, then runs a
+ * sustained stream of locate queries against it, and reports the heap high-water mark, GC time,
+ * throughput and latency percentiles of every phase.
+ * <p>
+ * Run with {@code ./gradlew scaleHarness -PharnessArgs='--topology BUSHY --segments 1000000'}.
+ * Options:
+ * <ul>
+ *   <li>{@code --topology} RADIAL, DEEP_LATERALS or BUSHY, default BUSHY</li>
+ *   <li>{@code --segments} number of segments, default 100000</li>
+ *   <li>{@code --seed} generator and query seed, default 1</li>
+ *   <li>{@code --duration} seconds of locate queries, default 30</li>
+ *   <li>{@code --threads} query threads, default 1</li>
+ *   <li>{@code --batch} distances per locate call, default 1</li>
+ *   <li>{@code --tree} the tree to query, COMPILED, COMPACT or OFF_HEAP, default COMPILED</li>
+ *   <li>{@code --parallel} validate, build and compile on the fork/join pool, default false</li>
+ * </ul>
+ */
+public class ScaleHarness {
+
+  private static final Logger LOGGER = org.slf4j.LoggerFactory.getLogger(ScaleHarness.class);
+
+  /**
+   * Latencies kept per query thread, enough for a stable p99.9 without holding every sample of a
+   * long soak. Later queries overwrite a random earlier sample (reservoir sampling).
+   */
+  private static final int LATENCY_SAMPLES = 1_000_000;
+
+  public static void main(String[] args) throws Exception {
+    SyntheticFeederGenerator.Topology topology = SyntheticFeederGenerator.Topology.BUSHY;
+    int segments = 100_000;
+    long seed = 1;
+    int durationSeconds = 30;
+    int threads = 1;
+    int batch = 1;
+    TreeType treeType = TreeType.COMPILED;
+    boolean parallel = false;
+
+    for (int i = 0; i < args.length; i++) {
+      String value = i + 1 < args.length ? args[i + 1] : null;
+      switch (args[i]) {
+        case "--topology":
+          topology = SyntheticFeederGenerator.Topology.valueOf(value.toUpperCase(Locale.ROOT));
+          break;
+        case "--segments":
+          segments = Integer.parseInt(value);
+          break;
+        case "--seed":
+          seed = Long.parseLong(value);
+          break;
+        case "--duration":
+          durationSeconds = Integer.parseInt(value);
+          break;
+        case "--threads":
+          threads = Integer.parseInt(value);
+          break;
+        case "--batch":
+          batch = Integer.parseInt(value);
+          break;
+        case "--tree":
+          treeType = TreeType.valueOf(value.toUpperCase(Locale.ROOT));
+          break;
+        case "--parallel":
+          parallel = Boolean.parseBoolean(value);
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown option: " + args[i]);
+      }
+      i++;
+    }
+
+    LOGGER.info("Topology {}, {} segments, seed {}, {} s of queries on {} thread(s), batch {}, "
+        + "{} tree, parallel build {}", topology, segments, seed, durationSeconds, threads, batch,
+        treeType, parallel);
+
+    SyntheticFeederGenerator generator = new SyntheticFeederGenerator();
+
+    Phase phase = Phase.start("generate");
+    MultiLineString geometry = generator.generate(topology, segments, seed);
+    phase.end();
+
+    phase = Phase.start("validate");
+    TopologyReport report = new TappedLineRulesTester(0.0, parallel).validate(geometry);
+    phase.end();
+    LOGGER.info("Validation found {} violation(s)", report.getViolations().size());
+
+    phase = Phase.start("build");
+    EdgeNodeTreeConstructor constructor = new EdgeNodeTreeConstructor();
+    constructor.setParallel(parallel);
+    // validated in its own phase above, don't measure it twice
+    constructor.setValidating(false);
+    EdgeNodeTreeConstructor.EdgeNode root =
+        constructor.constructEdgeNodeTree(geometry, generator.getSource());
+    phase.end();
+
+    phase = Phase.start("compile");
+    CompiledEdgeTree compiledTree = null;
+    CompactEdgeTree compactTree = null;
+    if (treeType == TreeType.COMPILED) {
+      compiledTree = CompiledEdgeTree.compile(root);
+    } else {
+      compactTree = CompactEdgeTree.compile(root, treeType == TreeType.OFF_HEAP, parallel);
+    }
+    phase.end();
+
+    double farthest = 0;
+    if (compiledTree != null) {
+      for (CompiledEdgeTree.CompiledEdgeNode node : compiledTree.getNodes()) {
+        farthest = Math.max(farthest, node.getDistanceToEnd());
+      }
+      LOGGER.info("Tree has {} edges, farthest leaf is {} m from the source", compiledTree.size(),
+          farthest);
+    } else {
+      for (int node = 0; node < compactTree.getNodeCount(); node++) {
+        farthest = Math.max(farthest, compactTree.getDistanceToEnd(node));
+      }
+      LOGGER.info("Tree has {} edges in {} MB, farthest leaf is {} m from the source",
+          compactTree.getNodeCount(), compactTree.getSizeInBytes() / (1024 * 1024), farthest);
+    }
+
+    // drop the object tree, so the locate phase only holds the tree being queried
+    root = null;
+
+    CompiledEdgeTree queriedCompiledTree = compiledTree;
+    CompactEdgeTree queriedCompactTree = compactTree;
+    FaultLocator faultLocator = new FaultLocator();
+    Locate locate = compiledTree != null
+        ? distances -> faultLocator.locateFaults(queriedCompiledTree, distances).size()
+        : distances -> faultLocator.locateFaults(queriedCompactTree, distances).size();
+
+    phase = Phase.start("locate");
+    long[][] latencies = runQueries(locate, farthest, seed, durationSeconds, threads, batch);
+    phase.end();
+
+    reportLatencies(latencies, durationSeconds, batch);
+  }
+
+  /**
+   * @return the latency samples of each thread, in nanoseconds per locate call
+   */
+  private static long[][] runQueries(Locate locate, double farthest, long seed,
+                                     int durationSeconds, int threads, int batch)
+      throws Exception {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(durationSeconds);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<long[]>> results = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        SplittableRandom random = new SplittableRandom(seed + t);
+        results.add(executor.submit(() -> queryUntil(locate, farthest, random, deadline, batch)));
+      }
+
+      long[][] latencies = new long[threads][];
+      for (int t = 0; t < threads; t++) {
+        latencies[t] = results.get(t).get();
+      }
+      return latencies;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static long[] queryUntil(Locate locate, double farthest, SplittableRandom random,
+                                   long deadline, int batch) {
+    long[] samples = new long[LATENCY_SAMPLES];
+    long queries = 0;
+    long candidates = 0;
+    double[] distances = new double[batch];
+
+    while (System.nanoTime() < deadline) {
+      for (int i = 0; i < batch; i++) {
+        distances[i] = random.nextDouble(0.0, farthest);
+      }
+      Arrays.sort(distances);
+
+      long start = System.nanoTime();
+      candidates += locate.locate(distances);
+      long latency = System.nanoTime() - start;
+
+      if (queries < samples.length) {
+        samples[(int) queries] = latency;
+      } else {
+        long slot = random.nextLong(queries + 1);
+        if (slot < samples.length) {
+          samples[(int) slot] = latency;
+        }
+      }
+      queries++;
+    }
+
+    // the last element carries the number of queries, so throughput covers every query
+    long[] result = Arrays.copyOf(samples, (int) Math.min(queries, samples.length) + 1);
+    result[result.length - 1] = queries;
+    LOGGER.debug("Thread done, {} queries, {} candidate sets", queries, candidates);
+    return result;
+  }
+
+  private static void reportLatencies(long[][] latencies, int durationSeconds, int batch) {
+    long queries = 0;
+    int sampleCount = 0;
+    for (long[] threadLatencies : latencies) {
+      queries += threadLatencies[threadLatencies.length - 1];
+      sampleCount += threadLatencies.length - 1;
+    }
+
+    long[] samples = new long[sampleCount];
+    int offset = 0;
+    for (long[] threadLatencies : latencies) {
+      System.arraycopy(threadLatencies, 0, samples, offset, threadLatencies.length - 1);
+      offset += threadLatencies.length - 1;
+    }
+    Arrays.sort(samples);
+
+    LOGGER.info("Throughput: {} locate calls/s ({} distances/s)",
+        String.format(Locale.ROOT, "%.1f", (double) queries / durationSeconds),
+        String.format(Locale.ROOT, "%.1f", (double) queries * batch / durationSeconds));
+    LOGGER.info("Latency us: p50 {}, p90 {}, p99 {}, p99.9 {}, max {}",
+        percentileMicros(samples, 0.50), percentileMicros(samples, 0.90),
+        percentileMicros(samples, 0.99), percentileMicros(samples, 0.999),
+        percentileMicros(samples, 1.0));
+
+    Metrics metrics = Metrics.getGlobal();
+    LOGGER.info("Per locate call: nodes visited {}, geodesic calls {}",
+        metrics.getNodesVisited(), metrics.getGeodesicCalls());
+  }
+
+  private static String percentileMicros(long[] sortedSamples, double percentile) {
+    if (sortedSamples.length == 0) {
+      return "n/a";
+    }
+    int index = (int) Math.ceil(percentile * sortedSamples.length) - 1;
+    long nanos = sortedSamples[Math.max(0, Math.min(index, sortedSamples.length - 1))];
+    return String.format(Locale.ROOT, "%.1f", nanos / 1_000.0);
+  }
+
+  private enum TreeType {
+    COMPILED,
+    COMPACT,
+    OFF_HEAP
+  }
+
+  /**
+   * One locate call against whichever tree is being queried.
+   */
+  private interface Locate {
+
+    /**
+     * @return the number of candidate sets found
+     */
+    int locate(double[] distances);
+  }
+
+  /**
+   * Wall time, GC time and heap high-water mark of one phase.
+   */
+  private static final class Phase {
+
+    private final String name;
+
+    private final long startNanos;
+
+    private final long startGcMillis;
+
+    private final long startGcCount;
+
+    private Phase(String name) {
+      this.name = name;
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+        if (pool.getType() == MemoryType.HEAP) {
+          pool.resetPeakUsage();
+        }
+      }
+      this.startGcMillis = gcMillis();
+      this.startGcCount = gcCount();
+      this.startNanos = System.nanoTime();
+    }
+
+    private static Phase start(String name) {
+      return new Phase(name);
+    }
+
+    private void end() {
+      long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+
+      // the pools peak at different times, so the sum is an upper bound of the real peak
+      long peakHeap = 0;
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+        if (pool.getType() == MemoryType.HEAP) {
+          peakHeap += pool.getPeakUsage().getUsed();
+        }
+      }
+
+      LOGGER.info("Phase {}: {} ms, GC {} ms in {} collection(s), heap high-water mark {} MB",
+          name, elapsedMillis, gcMillis() - startGcMillis, gcCount() - startGcCount,
+          peakHeap / (1024 * 1024));
+    }
+
+    private static long gcMillis() {
+      long millis = 0;
+      for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+        millis += Math.max(0, collector.getCollectionTime());
+      }
+      return millis;
+    }
+
+    private static long gcCount() {
+      long count = 0;
+      for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+        count += Math.max(0, collector.getCollectionCount());
+      }
+      return count;
+    }
+  }
+}
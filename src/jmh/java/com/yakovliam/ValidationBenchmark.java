@@ -0,0 +1,38 @@
+package com.yakovliam;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks {@link TappedLineRulesTester#passes} on an already built tree.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+public class ValidationBenchmark {
+
+  private EdgeNodeTreeConstructor.EdgeNode root;
+
+  @Setup(Level.Trial)
+  public void build(FeederState state) {
+    root = new EdgeNodeTreeConstructor().constructEdgeNodeTree(state.geometry, state.source);
+  }
+
+  @Benchmark
+  public boolean passes(FeederState state) {
+    return new TappedLineRulesTester().passes(state.geometry, root);
+  }
+}
@@ -1,92 +1,188 @@
 package com.yakovliam;
 
-import java.io.BufferedReader;
-import java.io.File;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.util.Set;
-import org.geotools.geometry.jts.JTSFactoryFinder;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
 import org.locationtech.jts.geom.Coordinate;
-import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.GeometryFactory;
-import org.locationtech.jts.geom.MultiPoint;
+import org.locationtech.jts.geom.MultiLineString;
 import org.locationtech.jts.geom.Point;
 import org.slf4j.Logger;
-import org.wololo.jts2geojson.GeoJSONReader;
-import org.wololo.jts2geojson.GeoJSONWriter;
 
 public class Bootstrapper {
   private static final Logger LOGGER = org.slf4j.LoggerFactory.getLogger(Bootstrapper.class);
 
-  private static final Point STARTING_POINT =
+  static final Point STARTING_POINT =
       new GeometryFactory().createPoint(new Coordinate(-111.94005548, 33.48386668));
 
   public static void main(String[] args) throws IOException {
-    // src/main/resources/test.geojson
-    InputStream inputStream =
-        Bootstrapper.class.getResourceAsStream("/papago-buttes-scottsdale.geojson");
-    InputStreamReader streamReader = new InputStreamReader(inputStream, StandardCharsets.UTF_8);
-    BufferedReader reader = new BufferedReader(streamReader);
-    StringBuilder stringBuilder = new StringBuilder();
-    for (String line; (line = reader.readLine()) != null; ) {
-      stringBuilder.append(line).append("\n");
+    if (args.length > 0 && "serve".equals(args[0])) {
+      serve(args);
+      return;
+    }
+    if (args.length > 0 && "replay".equals(args[0])) {
+      replay(args);
+      return;
+    }
+
+    // the built tree is kept in a snapshot, rebuilt whenever the GeoJSON or the source changes
+    Path snapshotPath = Paths.get(args.length > 0 ? args[0] : "papago-buttes-scottsdale.feeder");
+    String resource = "/papago-buttes-scottsdale.geojson";
+    URL resourceUrl = Bootstrapper.class.getResource(resource);
+    if (resourceUrl == null) {
+      throw new IOException("Resource not found: " + resource);
     }
 
-    String geoJson = stringBuilder.toString();
+    CompactEdgeTree tree = null;
+    if (Files.exists(snapshotPath)) {
+      tree = FeederSnapshot.open(snapshotPath);
+      String mismatch = FeederSnapshot.findMismatch(tree,
+          FeederSnapshot.readProvenance(snapshotPath), STARTING_POINT, resourceUrl);
+      if (mismatch != null) {
+        LOGGER.warn("Snapshot {} is stale, {}, rebuilding it", snapshotPath, mismatch);
+        tree = null;
+      }
+    }
 
-    GeoJSONReader geoJSONReader = new GeoJSONReader();
-    Geometry geometry = geoJSONReader.read(geoJson);
+    if (tree == null) {
+      // src/main/resources/test.geojson
+      MultiLineString geometry = readMultiLineString(resource);
 
-    LOGGER.info("Geometry: {}", geometry);
+      LOGGER.info("Geometry: {}", geometry);
 
-    if (geometry == null) {
-      throw new RuntimeException("Geometry is null");
-    }
+      EdgeNodeTreeConstructor.EdgeNode root =
+          new EdgeNodeTreeConstructor().constructEdgeNodeTree(geometry, STARTING_POINT);
 
-    if (!(geometry instanceof org.locationtech.jts.geom.MultiLineString)) {
-      throw new IllegalArgumentException("Geometry is not a MultiLineString");
+      FeederSnapshot.write(CompactEdgeTree.compile(root), snapshotPath,
+          FeederSnapshot.Provenance.of(STARTING_POINT, resourceUrl));
+      LOGGER.info("Wrote snapshot: {}", snapshotPath);
+      tree = FeederSnapshot.open(snapshotPath);
     }
 
-    EdgeNodeTreeConstructor.EdgeNode root = new EdgeNodeTreeConstructor().constructEdgeNodeTree(
-        (org.locationtech.jts.geom.MultiLineString) geometry, STARTING_POINT);
+    LOGGER.info("Opened snapshot {} with {} edges", snapshotPath, tree.getNodeCount());
 
     double startDistance = 0.0;
     double endDistance = 1000.0;
     double increment = 100.0;
 
-    FaultLocator faultLocator = new FaultLocator();
-    // loop from start to end with increment, create a file for each
-    for (double distance = startDistance; distance <= endDistance; distance += increment) {
-      Set<Point> faultLocations = faultLocator.locateFault(root, distance);
+    int distanceCount = (int) Math.floor((endDistance - startDistance) / increment) + 1;
+    double[] distances = new double[distanceCount];
+    for (int i = 0; i < distanceCount; i++) {
+      distances[i] = startDistance + i * increment;
+    }
 
-      if (faultLocations.isEmpty()) {
-        LOGGER.info("No fault locations found for distance: {}", distance);
-        continue;
+    // locate every distance in one sweep of the tree, and stream every candidate into one file
+    FaultLocator faultLocator = new FaultLocator();
+    List<List<FaultCandidate>> candidatesByDistance =
+        faultLocator.locateCandidates(tree, distances);
+
+    Path outputPath = Paths.get("fault-locations.geojson");
+    FeederRegistry.Feeder feeder =
+        new FeederRegistry.Feeder("papago-buttes-scottsdale", STARTING_POINT, tree);
+    try (FaultCandidateWriter writer = FaultCandidateWriter.open(outputPath, feeder)) {
+      for (int i = 0; i < distanceCount; i++) {
+        List<FaultCandidate> candidates = candidatesByDistance.get(i);
+
+        if (candidates.isEmpty()) {
+          LOGGER.info("No fault locations found for distance: {}", distances[i]);
+          continue;
+        }
+
+        writer.writeAll(candidates);
       }
+      LOGGER.info("Wrote {} fault location(s) to {}", writer.getCount(), outputPath);
+    }
+  }
 
-      for (Point faultLocation : faultLocations) {
-        LOGGER.info("Fault location: {}", faultLocation);
-      }
+  /**
+   * Run as a long-lived service: {@code serve <feeders directory> [port]}, see
+   * {@link FeederRegistry#registerDirectory(Path)} for the directory layout.
+   */
+  private static void serve(String[] args) throws IOException {
+    if (args.length < 2) {
+      throw new IllegalArgumentException("Usage: serve <feeders directory> [port]");
+    }
 
-      MultiPoint multiPoint = JTSFactoryFinder.getGeometryFactory()
-          .createMultiPoint(faultLocations.toArray(new Point[0]));
-
-      GeoJSONWriter writer = new GeoJSONWriter();
-      String faultLocationsGeoJson = writer.write(multiPoint).toString();
-
-      try {
-        // write to file
-        String fileName = "fault-locations-" + distance + ".geojson";
-        LOGGER.info("Writing to file: {}", fileName);
-        // write to file
-        File file = new File(fileName);
-        Files.write(file.toPath(), faultLocationsGeoJson.getBytes());
-      } catch (Exception e) {
-        LOGGER.error("Failed to write to file", e);
-      }
+    FeederRegistry registry = new FeederRegistry();
+    // nothing is served until every feeder is loaded, so use every core for it
+    registry.setParallel(true);
+    // -Dfeeders.reproject=true trades geodesic math for planar math in the local UTM zone
+    registry.setReprojecting(Boolean.getBoolean("feeders.reproject"));
+    // -Dfeeders.impedance=<property> reads every LineString's ohm/km to locate faults by impedance
+    registry.setImpedanceProperty(System.getProperty("feeders.impedance"));
+    registry.registerDirectory(Paths.get(args[1]));
+
+    int port = args.length > 2 ? Integer.parseInt(args[2]) : 8080;
+    FaultLocationServer server = new FaultLocationServer(registry);
+    // repeated reclose attempts and retries send the same distances again
+    server.setCache(new FaultLocationCache(100_000));
+    server.start(new InetSocketAddress(port));
+
+    // the server's dispatcher thread keeps the JVM running until it is stopped
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> server.stop(1)));
+  }
+
+  /**
+   * Replay fault events: {@code replay <feeders directory> <events file> [output file]}, results
+   * go to stdout without an output file. See {@link FaultEventReplay} for the event formats.
+   */
+  private static void replay(String[] args) throws IOException {
+    if (args.length < 3) {
+      throw new IllegalArgumentException(
+          "Usage: replay <feeders directory> <events file> [output file]");
+    }
+
+    FeederRegistry registry = new FeederRegistry();
+    registry.setParallel(true);
+    registry.registerDirectory(Paths.get(args[1]));
+
+    Path events = Paths.get(args[2]);
+    try (Reader reader = Files.newBufferedReader(events, StandardCharsets.UTF_8);
+         OutputStream output = args.length > 3
+             ? new BufferedOutputStream(Files.newOutputStream(Paths.get(args[3])))
+             : new BufferedOutputStream(new FileOutputStream(FileDescriptor.out))) {
+      new FaultEventReplay(registry).replay(reader,
+          FaultEventReplay.isJsonLines(events.getFileName().toString()), output);
+    }
+  }
+
+  /**
+   * Read the LineStrings of a GeoJSON resource from the classpath, streamed with
+   * {@link GeoJsonStreamReader}.
+   *
+   * @param resource the resource name, e.g. {@code /papago-buttes-scottsdale.geojson}
+   * @return the LineStrings
+   * @throws IOException if the resource can't be read or has no LineStrings
+   */
+  static MultiLineString readMultiLineString(String resource) throws IOException {
+    try (InputStream inputStream = openResource(resource)) {
+      FeederGeometry feederGeometry =
+          new GeoJsonStreamReader().read(new BufferedInputStream(inputStream));
+      // in the CRS the GeoJSON declares, rather than assumed to be lon/lat
+      return feederGeometry.toMultiLineString();
+    }
+  }
+
+  /**
+   * @throws IOException if the resource isn't on the classpath
+   */
+  private static InputStream openResource(String resource) throws IOException {
+    InputStream inputStream = Bootstrapper.class.getResourceAsStream(resource);
+    if (inputStream == null) {
+      throw new IOException("Resource not found: " + resource);
     }
+    return inputStream;
   }
 }
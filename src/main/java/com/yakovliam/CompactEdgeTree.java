@@ -0,0 +1,531 @@
+package com.yakovliam;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.stream.IntStream;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.impl.PackedCoordinateSequence;
+
+/**
+ * A compiled edge tree held as a struct of arrays: a handful of primitive buffers for the whole
+ * tree instead of an object graph per edge.
+ * <p>
+ * Nodes are numbered in depth-first pre-order, as in {@link CompiledEdgeTree}, so the root is
+ * node 0. Children are stored CSR style, the children of node {@code i} are at
+ * {@code childOffsets[i]} up to {@code childOffsets[i + 1]} in one children array, and the
+ * vertices of every edge are likewise a range of one flat coordinate array.
+ * <p>
+ * The buffers are either on the heap, wrapping plain arrays, off-heap in direct buffers, or
+ * mapped from a file by {@link FeederSnapshot}. Off-heap trees don't count against the heap and
+ * are never scanned by the garbage collector. The tree is read-only and safe to share between
+ * threads.
+ */
+public class CompactEdgeTree implements LineStringCoordinates {
+
+  private final int nodeCount;
+
+  private final int vertexCount;
+
+  private final GeodesicKernel geodesicKernel;
+
+  private final int srid;
+
+  private final GeometryFactory geometryFactory;
+
+  private final DoubleBuffer distancesFromSource;
+
+  private final DoubleBuffer coordinates;
+
+  private final DoubleBuffer cumulativeDistances;
+
+  private final IntBuffer parents;
+
+  private final IntBuffer childOffsets;
+
+  private final IntBuffer children;
+
+  private final IntBuffer vertexOffsets;
+
+  private final IntBuffer segmentIndices;
+
+  private final ByteBuffer reversed;
+
+  private volatile int[] exitIndices;
+
+  CompactEdgeTree(int nodeCount, int vertexCount, GeodesicKernel geodesicKernel, int srid,
+                  DoubleBuffer distancesFromSource, DoubleBuffer coordinates,
+                  DoubleBuffer cumulativeDistances, IntBuffer parents, IntBuffer childOffsets,
+                  IntBuffer children, IntBuffer vertexOffsets, IntBuffer segmentIndices,
+                  ByteBuffer reversed) {
+    this.nodeCount = nodeCount;
+    this.vertexCount = vertexCount;
+    this.geodesicKernel = geodesicKernel;
+    this.srid = srid;
+    this.geometryFactory = CoordinateSystems.geometryFactory(srid);
+    this.distancesFromSource = distancesFromSource;
+    this.coordinates = coordinates;
+    this.cumulativeDistances = cumulativeDistances;
+    this.parents = parents;
+    this.childOffsets = childOffsets;
+    this.children = children;
+    this.vertexOffsets = vertexOffsets;
+    this.segmentIndices = segmentIndices;
+    this.reversed = reversed;
+  }
+
+  /**
+   * Compile an edge tree onto the heap.
+   *
+   * @param rootNode the root of the tree, i.e. the edge that starts at the source
+   * @return the compiled tree
+   */
+  public static CompactEdgeTree compile(EdgeNodeTreeConstructor.EdgeNode rootNode) {
+    return compile(rootNode, false);
+  }
+
+  /**
+   * Compile an edge tree, computing the cumulative distances of every edge with the kernel for
+   * the SRID of its LineStrings, see {@link GeometryUtil#getKernel}.
+   *
+   * @param rootNode the root of the tree, i.e. the edge that starts at the source
+   * @param offHeap  whether to hold the tree in direct buffers rather than heap arrays
+   * @return the compiled tree
+   */
+  public static CompactEdgeTree compile(EdgeNodeTreeConstructor.EdgeNode rootNode,
+                                        boolean offHeap) {
+    return compile(rootNode, offHeap, null, false);
+  }
+
+  /**
+   * Compile an edge tree, optionally measuring the edges on the common fork/join pool. The tree is
+   * the same either way.
+   *
+   * @param rootNode the root of the tree, i.e. the edge that starts at the source
+   * @param offHeap  whether to hold the tree in direct buffers rather than heap arrays
+   * @param parallel whether to measure the edges with several threads
+   * @return the compiled tree
+   */
+  public static CompactEdgeTree compile(EdgeNodeTreeConstructor.EdgeNode rootNode,
+                                        boolean offHeap, boolean parallel) {
+    return compile(rootNode, offHeap, null, parallel);
+  }
+
+  /**
+   * Compile an edge tree, reusing cumulative distances that are already known for some segments.
+   *
+   * @param rootNode       the root of the tree, i.e. the edge that starts at the source
+   * @param offHeap        whether to hold the tree in direct buffers rather than heap arrays
+   * @param segmentLengths the cumulative distances of every segment in its input orientation,
+   *                       computed with the current kernel, by segment index. Null, or null
+   *                       entries, are computed
+   * @return the compiled tree
+   */
+  static CompactEdgeTree compile(EdgeNodeTreeConstructor.EdgeNode rootNode, boolean offHeap,
+                                 double[][] segmentLengths) {
+    return compile(rootNode, offHeap, segmentLengths, false);
+  }
+
+  private static CompactEdgeTree compile(EdgeNodeTreeConstructor.EdgeNode rootNode,
+                                         boolean offHeap, double[][] segmentLengths,
+                                         boolean parallel) {
+    long startNanos = System.nanoTime();
+    LineString rootLineString = rootNode.getEdge().getLineString();
+    int srid = CoordinateSystems.isWgs84(rootLineString.getSRID()) ? CoordinateSystems.WGS84
+        : rootLineString.getSRID();
+    GeodesicKernel geodesicKernel = GeometryUtil.getKernel(rootLineString);
+
+    // number the nodes in pre-order first, with an explicit stack, deep radial feeders would
+    // overflow the call stack
+    List<EdgeNodeTreeConstructor.EdgeNode> order = new ArrayList<>();
+    List<Integer> parentOrder = new ArrayList<>();
+    Deque<EdgeNodeTreeConstructor.EdgeNode> stack = new ArrayDeque<>();
+    Deque<Integer> parentStack = new ArrayDeque<>();
+    stack.push(rootNode);
+    parentStack.push(-1);
+    long vertices = 0;
+
+    while (!stack.isEmpty()) {
+      EdgeNodeTreeConstructor.EdgeNode node = stack.pop();
+      int index = order.size();
+      order.add(node);
+      parentOrder.add(parentStack.pop());
+      vertices += node.getEdge().getLineString().getNumPoints();
+
+      List<EdgeNodeTreeConstructor.EdgeNode> nodeChildren = node.getChildren();
+      for (int i = nodeChildren.size() - 1; i >= 0; i--) {
+        stack.push(nodeChildren.get(i));
+        parentStack.push(index);
+      }
+    }
+
+    int nodeCount = order.size();
+    if (vertices * 16 > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Tree is too large: " + vertices + " vertices");
+    }
+    int vertexCount = (int) vertices;
+
+    DoubleBuffer distancesFromSource = allocateDoubles(nodeCount, offHeap);
+    DoubleBuffer coordinates = allocateDoubles(vertexCount * 2, offHeap);
+    DoubleBuffer cumulativeDistances = allocateDoubles(vertexCount, offHeap);
+    IntBuffer parents = allocateInts(nodeCount, offHeap);
+    IntBuffer childOffsets = allocateInts(nodeCount + 1, offHeap);
+    IntBuffer children = allocateInts(nodeCount - 1, offHeap);
+    IntBuffer vertexOffsets = allocateInts(nodeCount + 1, offHeap);
+    IntBuffer segmentIndices = allocateInts(nodeCount, offHeap);
+    ByteBuffer reversed = offHeap ? ByteBuffer.allocateDirect(nodeCount)
+        : ByteBuffer.allocate(nodeCount);
+
+    // measuring is independent per edge, the rest has to follow the pre-order
+    double[][] nodeLengths = null;
+    if (parallel) {
+      double[][] measured = new double[nodeCount][];
+      IntStream.range(0, nodeCount).parallel().forEach(i -> measured[i] =
+          cumulativeLengths(order.get(i).getEdge(), segmentLengths, geodesicKernel));
+      nodeLengths = measured;
+    }
+
+    int[] childCounts = new int[nodeCount];
+    int vertex = 0;
+    for (int i = 0; i < nodeCount; i++) {
+      EdgeNodeTreeConstructor.Edge edge = order.get(i).getEdge();
+      int parent = parentOrder.get(i);
+      parents.put(i, parent);
+      vertexOffsets.put(i, vertex);
+      segmentIndices.put(i, edge.getSegmentIndex());
+      reversed.put(i, (byte) (edge.isReversed() ? 1 : 0));
+
+      // a parent always comes before its children in pre-order
+      if (parent >= 0) {
+        childCounts[parent]++;
+        distancesFromSource.put(i, distancesFromSource.get(parent)
+            + cumulativeDistances.get(vertexOffsets.get(parent + 1) - 1));
+      }
+
+      CoordinateSequence sequence = edge.getLineString().getCoordinateSequence();
+      double[] cumulative = nodeLengths != null ? nodeLengths[i]
+          : cumulativeLengths(edge, segmentLengths, geodesicKernel);
+      for (int j = 0; j < cumulative.length; j++) {
+        coordinates.put(vertex * 2, sequence.getX(j));
+        coordinates.put(vertex * 2 + 1, sequence.getY(j));
+        cumulativeDistances.put(vertex, cumulative[j]);
+        vertex++;
+      }
+      vertexOffsets.put(i + 1, vertex);
+    }
+
+    // children are visited in order, so each parent's children keep their order
+    int childOffset = 0;
+    for (int i = 0; i < nodeCount; i++) {
+      childOffsets.put(i, childOffset);
+      childOffset += childCounts[i];
+    }
+    childOffsets.put(nodeCount, childOffset);
+    for (int i = 1; i < nodeCount; i++) {
+      int parent = parents.get(i);
+      children.put(childOffsets.get(parent + 1) - childCounts[parent]--, i);
+    }
+
+    Metrics.getGlobal().recordStage(Metrics.Stage.COMPILE, startNanos);
+    return new CompactEdgeTree(nodeCount, vertexCount, geodesicKernel, srid, distancesFromSource,
+        coordinates, cumulativeDistances, parents, childOffsets, children, vertexOffsets,
+        segmentIndices, reversed);
+  }
+
+  private static double[] cumulativeLengths(EdgeNodeTreeConstructor.Edge edge,
+                                            double[][] segmentLengths, GeodesicKernel kernel) {
+    int segmentIndex = edge.getSegmentIndex();
+    double[] known = segmentLengths == null || segmentIndex < 0
+        || segmentIndex >= segmentLengths.length ? null : segmentLengths[segmentIndex];
+    if (known == null) {
+      return GeometryUtil.getCumulativeLengthsInMeters(edge.getLineString(), kernel);
+    }
+    if (!edge.isReversed()) {
+      return known;
+    }
+    // walking the segment backwards, every vertex is as far from the end as it was from the start
+    int last = known.length - 1;
+    double[] cumulative = new double[known.length];
+    for (int j = 0; j <= last; j++) {
+      cumulative[j] = known[last] - known[last - j];
+    }
+    return cumulative;
+  }
+
+  private static DoubleBuffer allocateDoubles(int count, boolean offHeap) {
+    return offHeap
+        ? ByteBuffer.allocateDirect(count * 8).order(ByteOrder.nativeOrder()).asDoubleBuffer()
+        : DoubleBuffer.wrap(new double[count]);
+  }
+
+  private static IntBuffer allocateInts(int count, boolean offHeap) {
+    return offHeap
+        ? ByteBuffer.allocateDirect(count * 4).order(ByteOrder.nativeOrder()).asIntBuffer()
+        : IntBuffer.wrap(new int[count]);
+  }
+
+  public int getNodeCount() {
+    return nodeCount;
+  }
+
+  public int getVertexCount() {
+    return vertexCount;
+  }
+
+  /**
+   * @return the kernel the distances were computed with, and the one locations are interpolated
+   * with
+   */
+  public GeodesicKernel getGeodesicKernel() {
+    return geodesicKernel;
+  }
+
+  /**
+   * @return the SRID of the coordinates, WGS84 lon/lat unless the feeder was projected
+   */
+  public int getSrid() {
+    return srid;
+  }
+
+  /**
+   * @return true if the tree is held outside of the heap, in direct or mapped buffers
+   */
+  public boolean isOffHeap() {
+    return coordinates.isDirect();
+  }
+
+  /**
+   * @return the number of bytes held by the tree's buffers
+   */
+  public long getSizeInBytes() {
+    return 8L * (distancesFromSource.capacity() + coordinates.capacity()
+        + cumulativeDistances.capacity())
+        + 4L * (parents.capacity() + childOffsets.capacity() + children.capacity()
+        + vertexOffsets.capacity() + segmentIndices.capacity())
+        + reversed.capacity();
+  }
+
+  /**
+   * @return the parent node, or -1 for the root
+   */
+  public int getParent(int node) {
+    return parents.get(node);
+  }
+
+  public int getChildCount(int node) {
+    return childOffsets.get(node + 1) - childOffsets.get(node);
+  }
+
+  public int getChild(int node, int i) {
+    return children.get(childOffsets.get(node) + i);
+  }
+
+  /**
+   * The node's Euler-tour exit index. Nodes are numbered in pre-order, so a node's subtree is
+   * exactly the nodes from the node itself up to its exit index, and both match the entry and exit
+   * indices of the {@link EdgeNodeTreeConstructor.EdgeNode} it was compiled from.
+   *
+   * @return the largest node number in the node's subtree
+   */
+  public int getExitIndex(int node) {
+    int[] exits = exitIndices;
+    if (exits == null) {
+      // derived rather than stored, so snapshots don't carry it. Racing threads compute equal
+      // arrays, any of them will do
+      exits = new int[nodeCount];
+      for (int i = nodeCount - 1; i >= 0; i--) {
+        int childCount = getChildCount(i);
+        exits[i] = childCount == 0 ? i : exits[getChild(i, childCount - 1)];
+      }
+      exitIndices = exits;
+    }
+    return exits[node];
+  }
+
+  /**
+   * @return true if the other node is the node itself or downstream of it, in constant time
+   */
+  public boolean isUpstreamOf(int node, int other) {
+    return node <= other && other <= getExitIndex(node);
+  }
+
+  /**
+   * @return the distance, in meters, from the source to the start of the edge
+   */
+  public double getDistanceFromSource(int node) {
+    return distancesFromSource.get(node);
+  }
+
+  /**
+   * @return the distance, in meters, from the source to the end of the edge
+   */
+  public double getDistanceToEnd(int node) {
+    return getDistanceFromSource(node) + getLength(node);
+  }
+
+  public double getLength(int node) {
+    return cumulativeDistances.get(vertexOffsets.get(node + 1) - 1);
+  }
+
+  /**
+   * @return the index of the edge's LineString in the input geometry, or -1 if unknown
+   */
+  public int getSegmentIndex(int node) {
+    return segmentIndices.get(node);
+  }
+
+  public boolean isReversed(int node) {
+    return reversed.get(node) != 0;
+  }
+
+  /**
+   * @return the index of the first vertex of the edge
+   */
+  public int getVertexStart(int node) {
+    return vertexOffsets.get(node);
+  }
+
+  /**
+   * @return the index after the last vertex of the edge
+   */
+  public int getVertexEnd(int node) {
+    return vertexOffsets.get(node + 1);
+  }
+
+  public double getX(int vertex) {
+    return coordinates.get(vertex * 2);
+  }
+
+  public double getY(int vertex) {
+    return coordinates.get(vertex * 2 + 1);
+  }
+
+  /**
+   * @return the distance, in meters, of the vertex from the start of its edge
+   */
+  public double getCumulativeDistance(int vertex) {
+    return cumulativeDistances.get(vertex);
+  }
+
+  /**
+   * @return the number of edges, every edge is a LineString indexed by its node
+   */
+  @Override
+  public int getLineStringCount() {
+    return nodeCount;
+  }
+
+  @Override
+  public int getVertexCount(int lineString) {
+    return getVertexEnd(lineString) - getVertexStart(lineString);
+  }
+
+  @Override
+  public double getX(int lineString, int vertex) {
+    return getX(getVertexStart(lineString) + vertex);
+  }
+
+  @Override
+  public double getY(int lineString, int vertex) {
+    return getY(getVertexStart(lineString) + vertex);
+  }
+
+  /**
+   * Cut the part of an edge between two distances from its start, interpolating the cut points.
+   *
+   * @param node the edge
+   * @param from the distance from the start of the edge the part starts at, in meters
+   * @param to   the distance from the start of the edge the part ends at, in meters
+   * @return the part, in the direction away from the source
+   */
+  public LineString extractAlongEdge(int node, double from, double to) {
+    double length = getLength(node);
+    if (from < 0 || to > length || from > to) {
+      throw new IllegalArgumentException("Not a part of an edge of length " + length + ": "
+          + from + " to " + to);
+    }
+
+    int fromSegmentEnd = findSegmentEnd(node, from);
+    int toSegmentEnd = findSegmentEnd(node, to);
+
+    // the cut points, and every vertex strictly between them
+    double[] packed = new double[(toSegmentEnd - fromSegmentEnd + 2) * 2];
+    double[] lonLat = new double[2];
+    interpolate(fromSegmentEnd, from, lonLat);
+    packed[0] = lonLat[0];
+    packed[1] = lonLat[1];
+    int count = 1;
+    for (int vertex = fromSegmentEnd; vertex < toSegmentEnd; vertex++) {
+      // a cut exactly on a vertex is that vertex already
+      double distance = cumulativeDistances.get(vertex);
+      if (distance > from && distance < to) {
+        packed[count * 2] = getX(vertex);
+        packed[count * 2 + 1] = getY(vertex);
+        count++;
+      }
+    }
+    interpolate(toSegmentEnd, to, lonLat);
+    packed[count * 2] = lonLat[0];
+    packed[count * 2 + 1] = lonLat[1];
+    count++;
+
+    return geometryFactory.createLineString(new PackedCoordinateSequence.Double(
+        count * 2 == packed.length ? packed : Arrays.copyOf(packed, count * 2), 2, 0));
+  }
+
+  /**
+   * Binary search for the segment of an edge that contains the given distance.
+   *
+   * @return the vertex that ends the segment
+   */
+  private int findSegmentEnd(int node, double distance) {
+    int low = getVertexStart(node) + 1;
+    int high = getVertexEnd(node) - 1;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (cumulativeDistances.get(mid) < distance) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * @param segmentEnd the vertex that ends the segment
+   * @param distance   the distance from the start of the edge, within the segment
+   */
+  private void interpolate(int segmentEnd, double distance, double[] lonLat) {
+    geodesicKernel.interpolate(getX(segmentEnd - 1), getY(segmentEnd - 1), getX(segmentEnd),
+        getY(segmentEnd), distance - cumulativeDistances.get(segmentEnd - 1), lonLat);
+  }
+
+  /**
+   * Find the point the distance along an edge, with a binary search for its segment and a single
+   * interpolation.
+   *
+   * @param node     the edge
+   * @param distance the distance from the start of the edge, in meters
+   * @return the point, or null if the distance is not on the edge
+   */
+  public Point locateAlongEdge(int node, double distance) {
+    if (distance < 0 || distance > getLength(node)) {
+      return null;
+    }
+
+    double[] lonLat = new double[2];
+    interpolate(findSegmentEnd(node, distance), distance, lonLat);
+    return geometryFactory.createPoint(new Coordinate(lonLat[0], lonLat[1]));
+  }
+}
@@ -0,0 +1,191 @@
+package com.yakovliam;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import org.locationtech.jts.geom.LineString;
+
+/**
+ * A "compiled", read-only form of an {@link EdgeNodeTreeConstructor.EdgeNode} tree.
+ * <p>
+ * All geodesic math is done once, when the tree is compiled. Every node keeps the distance of
+ * each of its vertices from the start of its edge, and its own distance from the source, so
+ * queries only have to compare against cached numbers.
+ */
+public class CompiledEdgeTree {
+
+  private final CompiledEdgeNode root;
+
+  private final List<CompiledEdgeNode> nodes;
+
+  private final GeodesicKernel geodesicKernel;
+
+  private CompiledEdgeTree(CompiledEdgeNode root, List<CompiledEdgeNode> nodes,
+                           GeodesicKernel geodesicKernel) {
+    this.root = root;
+    this.nodes = Collections.unmodifiableList(nodes);
+    this.geodesicKernel = geodesicKernel;
+  }
+
+  /**
+   * Compile an edge tree, computing the cumulative distances of every edge.
+   *
+   * @param rootNode the root of the tree, i.e. the edge that starts at the source
+   * @return the compiled tree
+   */
+  public static CompiledEdgeTree compile(EdgeNodeTreeConstructor.EdgeNode rootNode) {
+    long startNanos = System.nanoTime();
+    GeodesicKernel geodesicKernel = GeometryUtil.getKernel(rootNode.getEdge().getLineString());
+    List<CompiledEdgeNode> nodes = new ArrayList<>();
+    CompiledEdgeNode root = compileNode(rootNode, null, 0.0, geodesicKernel, nodes);
+
+    // walk the tree with an explicit stack, deep radial feeders would overflow the call stack
+    Deque<CompiledEdgeNode> stack = new ArrayDeque<>();
+    Deque<EdgeNodeTreeConstructor.EdgeNode> sources = new ArrayDeque<>();
+    stack.push(root);
+    sources.push(rootNode);
+
+    while (!stack.isEmpty()) {
+      CompiledEdgeNode node = stack.pop();
+      List<EdgeNodeTreeConstructor.EdgeNode> children = sources.pop().getChildren();
+
+      for (int i = 0; i < children.size(); i++) {
+        node.children[i] = compileNode(children.get(i), node, node.getDistanceToEnd(),
+            geodesicKernel, nodes);
+      }
+
+      // push in reverse so children are numbered in order
+      for (int i = children.size() - 1; i >= 0; i--) {
+        stack.push(node.children[i]);
+        sources.push(children.get(i));
+      }
+    }
+
+    Metrics.getGlobal().recordStage(Metrics.Stage.COMPILE, startNanos);
+    return new CompiledEdgeTree(root, nodes, geodesicKernel);
+  }
+
+  private static CompiledEdgeNode compileNode(EdgeNodeTreeConstructor.EdgeNode edgeNode,
+                                              CompiledEdgeNode parent,
+                                              double distanceFromSource,
+                                              GeodesicKernel geodesicKernel,
+                                              List<CompiledEdgeNode> nodes) {
+    EdgeNodeTreeConstructor.Edge edge = edgeNode.getEdge();
+    CompiledEdgeNode node = new CompiledEdgeNode(nodes.size(), edge, parent,
+        GeometryUtil.getCumulativeLengthsInMeters(edge.getLineString(), geodesicKernel),
+        distanceFromSource,
+        edgeNode.getChildren().size());
+    nodes.add(node);
+    return node;
+  }
+
+  public CompiledEdgeNode getRoot() {
+    return root;
+  }
+
+  /**
+   * @return every node of the tree, in depth-first pre-order; a node's index is its position
+   */
+  public List<CompiledEdgeNode> getNodes() {
+    return nodes;
+  }
+
+  public int size() {
+    return nodes.size();
+  }
+
+  /**
+   * @return the kernel the distances were computed with
+   */
+  public GeodesicKernel getGeodesicKernel() {
+    return geodesicKernel;
+  }
+
+  public static class CompiledEdgeNode {
+
+    private final int index;
+
+    private final EdgeNodeTreeConstructor.Edge edge;
+
+    private final CompiledEdgeNode parent;
+
+    private final double[] cumulativeDistances;
+
+    private final double distanceFromSource;
+
+    private final CompiledEdgeNode[] children;
+
+    private CompiledEdgeNode(int index, EdgeNodeTreeConstructor.Edge edge, CompiledEdgeNode parent,
+                             double[] cumulativeDistances, double distanceFromSource,
+                             int childCount) {
+      this.index = index;
+      this.edge = edge;
+      this.parent = parent;
+      this.cumulativeDistances = cumulativeDistances;
+      this.distanceFromSource = distanceFromSource;
+      this.children = new CompiledEdgeNode[childCount];
+    }
+
+    public int getIndex() {
+      return index;
+    }
+
+    public EdgeNodeTreeConstructor.Edge getEdge() {
+      return edge;
+    }
+
+    public LineString getLineString() {
+      return edge.getLineString();
+    }
+
+    /**
+     * @return the parent node, or null for the root
+     */
+    public CompiledEdgeNode getParent() {
+      return parent;
+    }
+
+    /**
+     * The distance, in meters, of every vertex from the start of this edge. The array is shared
+     * and must not be modified.
+     *
+     * @return the cumulative distances, one per vertex
+     */
+    public double[] getCumulativeDistances() {
+      return cumulativeDistances;
+    }
+
+    /**
+     * @return the distance, in meters, from the source to the start of this edge
+     */
+    public double getDistanceFromSource() {
+      return distanceFromSource;
+    }
+
+    /**
+     * @return the distance, in meters, from the source to the end of this edge
+     */
+    public double getDistanceToEnd() {
+      return distanceFromSource + getLength();
+    }
+
+    public double getLength() {
+      return cumulativeDistances[cumulativeDistances.length - 1];
+    }
+
+    public List<CompiledEdgeNode> getChildren() {
+      return Collections.unmodifiableList(Arrays.asList(children));
+    }
+
+    public int getChildCount() {
+      return children.length;
+    }
+
+    public CompiledEdgeNode getChild(int i) {
+      return children[i];
+    }
+  }
+}
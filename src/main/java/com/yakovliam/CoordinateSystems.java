@@ -0,0 +1,229 @@
+package com.yakovliam;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.geotools.api.referencing.FactoryException;
+import org.geotools.api.referencing.crs.CoordinateReferenceSystem;
+import org.geotools.api.referencing.crs.GeographicCRS;
+import org.geotools.api.referencing.cs.CoordinateSystem;
+import org.geotools.api.referencing.operation.MathTransform;
+import org.geotools.api.referencing.operation.TransformException;
+import org.geotools.referencing.CRS;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.MultiLineString;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.PrecisionModel;
+import org.locationtech.jts.geom.impl.PackedCoordinateSequence;
+import si.uom.SI;
+
+/**
+ * The coordinate reference systems feeders can be in, by SRID, i.e. EPSG code.
+ * <p>
+ * Lengths and locations are computed in the feeder's own CRS: lon/lat with a geodesic kernel,
+ * projected metres with {@link GeodesicKernel#PLANAR}. Anything else, e.g. a state plane CRS in
+ * feet, is reprojected once at load into a local UTM zone, see {@link #localMetricSrid}, and
+ * results are transformed back to lon/lat only when they are written out.
+ * <p>
+ * An SRID of 0, i.e. unknown, is taken as WGS84, as it always was. CRSs are looked up through
+ * GeoTools' EPSG database once and cached.
+ */
+public final class CoordinateSystems {
+
+  public static final int WGS84 = 4326;
+
+  private static final Map<Integer, CoordinateReferenceSystem> CRS_BY_SRID =
+      new ConcurrentHashMap<>();
+
+  private static final Map<Integer, GeometryFactory> FACTORY_BY_SRID = new ConcurrentHashMap<>();
+
+  private CoordinateSystems() {
+  }
+
+  /**
+   * @return true for WGS84 and unknown SRIDs, which are taken as WGS84
+   */
+  public static boolean isWgs84(int srid) {
+    return srid == 0 || srid == WGS84;
+  }
+
+  /**
+   * @return true if both SRIDs are the same CRS, taking unknown as WGS84
+   */
+  public static boolean isSame(int srid, int otherSrid) {
+    return isWgs84(srid) ? isWgs84(otherSrid) : srid == otherSrid;
+  }
+
+  /**
+   * @return the CRS, decoded with longitude, or easting, first
+   * @throws IllegalArgumentException if the SRID isn't a known EPSG code
+   */
+  public static CoordinateReferenceSystem decode(int srid) {
+    int code = isWgs84(srid) ? WGS84 : srid;
+    return CRS_BY_SRID.computeIfAbsent(code, key -> {
+      try {
+        return CRS.decode("EPSG:" + key, true);
+      } catch (FactoryException e) {
+        throw new IllegalArgumentException("Unknown SRID: " + key, e);
+      }
+    });
+  }
+
+  /**
+   * @return whether the CRS is lon/lat rather than projected
+   */
+  public static boolean isGeographic(int srid) {
+    return isWgs84(srid) || decode(srid) instanceof GeographicCRS;
+  }
+
+  /**
+   * @return whether lengths can be computed in the CRS as it is, i.e. it is geographic or its units
+   * are metres
+   */
+  public static boolean isMeasurable(int srid) {
+    if (isWgs84(srid)) {
+      return true;
+    }
+    CoordinateReferenceSystem crs = decode(srid);
+    return crs instanceof GeographicCRS || isMetric(crs);
+  }
+
+  private static boolean isMetric(CoordinateReferenceSystem crs) {
+    CoordinateSystem cs = crs.getCoordinateSystem();
+    return SI.METRE.equals(cs.getAxis(0).getUnit()) && SI.METRE.equals(cs.getAxis(1).getUnit());
+  }
+
+  /**
+   * @return the kernel lengths and locations are computed with in the CRS, the
+   * {@link GeometryUtil#getGeodesicKernel() geodesic kernel} for geographic CRSs and
+   * {@link GeodesicKernel#PLANAR} for projected ones in metres
+   * @throws IllegalArgumentException if the SRID is unknown, or projected in other units, those
+   *                                  have to be reprojected first
+   */
+  public static GeodesicKernel kernelFor(int srid) {
+    if (isWgs84(srid)) {
+      return GeometryUtil.getGeodesicKernel();
+    }
+    CoordinateReferenceSystem crs = decode(srid);
+    if (crs instanceof GeographicCRS) {
+      return GeometryUtil.getGeodesicKernel();
+    }
+    if (!isMetric(crs)) {
+      throw new IllegalArgumentException("SRID " + srid + " is projected in "
+          + crs.getCoordinateSystem().getAxis(0).getUnit() + ", reproject it to metres first");
+    }
+    return GeodesicKernel.PLANAR;
+  }
+
+  /**
+   * @return the WGS84 UTM zone a lon/lat position is in, a metric CRS with little distortion for a
+   * feeder around it
+   */
+  public static int localMetricSrid(double lon, double lat) {
+    int zone = (int) Math.floor((lon + 180) / 6) + 1;
+    zone = Math.max(1, Math.min(60, zone));
+    return (lat >= 0 ? 32600 : 32700) + zone;
+  }
+
+  /**
+   * @return a factory for geometries in the CRS
+   */
+  public static GeometryFactory geometryFactory(int srid) {
+    return FACTORY_BY_SRID.computeIfAbsent(isWgs84(srid) ? WGS84 : srid,
+        key -> new GeometryFactory(new PrecisionModel(), key));
+  }
+
+  /**
+   * @param sourceSrid the CRS coordinates are in
+   * @param targetSrid the CRS to transform them to
+   * @return the transform
+   * @throws IllegalArgumentException if either SRID is unknown or there is no transform between
+   *                                  them
+   */
+  public static Transform transform(int sourceSrid, int targetSrid) {
+    try {
+      return new Transform(sourceSrid, targetSrid,
+          CRS.findMathTransform(decode(sourceSrid), decode(targetSrid), true));
+    } catch (FactoryException e) {
+      throw new IllegalArgumentException("No transform from SRID " + sourceSrid + " to "
+          + targetSrid, e);
+    }
+  }
+
+  /**
+   * A transform between two CRSs that creates its results in the target CRS. Safe to share
+   * between threads.
+   */
+  public static final class Transform {
+
+    private final int sourceSrid;
+
+    private final int targetSrid;
+
+    private final MathTransform mathTransform;
+
+    private final GeometryFactory targetFactory;
+
+    private Transform(int sourceSrid, int targetSrid, MathTransform mathTransform) {
+      this.sourceSrid = sourceSrid;
+      this.targetSrid = targetSrid;
+      this.mathTransform = mathTransform;
+      this.targetFactory = geometryFactory(targetSrid);
+    }
+
+    public int getSourceSrid() {
+      return sourceSrid;
+    }
+
+    public int getTargetSrid() {
+      return targetSrid;
+    }
+
+    public Point apply(double x, double y) {
+      double[] xy = {x, y};
+      transformInPlace(xy, 1);
+      return targetFactory.createPoint(new Coordinate(xy[0], xy[1]));
+    }
+
+    public Point apply(Point point) {
+      return apply(point.getX(), point.getY());
+    }
+
+    public LineString apply(LineString lineString) {
+      CoordinateSequence sequence = lineString.getCoordinateSequence();
+      double[] packed = new double[sequence.size() * 2];
+      for (int i = 0; i < sequence.size(); i++) {
+        packed[i * 2] = sequence.getX(i);
+        packed[i * 2 + 1] = sequence.getY(i);
+      }
+      transformInPlace(packed, sequence.size());
+      return targetFactory.createLineString(new PackedCoordinateSequence.Double(packed, 2, 0));
+    }
+
+    public MultiLineString apply(MultiLineString multiLineString) {
+      LineString[] lineStrings = new LineString[multiLineString.getNumGeometries()];
+      for (int i = 0; i < lineStrings.length; i++) {
+        lineStrings[i] = apply((LineString) multiLineString.getGeometryN(i));
+      }
+      return targetFactory.createMultiLineString(lineStrings);
+    }
+
+    /**
+     * @return the transform back
+     */
+    public Transform inverse() {
+      return transform(targetSrid, sourceSrid);
+    }
+
+    private void transformInPlace(double[] packed, int count) {
+      try {
+        mathTransform.transform(packed, 0, packed, 0, count);
+      } catch (TransformException e) {
+        throw new RuntimeException("Failed to transform from SRID " + sourceSrid + " to "
+            + targetSrid, e);
+      }
+    }
+  }
+}
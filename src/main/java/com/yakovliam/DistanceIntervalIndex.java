@@ -0,0 +1,232 @@
+package com.yakovliam;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.locationtech.jts.geom.LineString;
+
+/**
+ * Interval index over the distance from the source covered by every edge of a
+ * {@link CompactEdgeTree}, for fault distances given as a band rather than a single number.
+ * <p>
+ * The edges are sorted by the distance their start is at, and the sorted array is read as an
+ * implicit balanced binary tree, where every node also keeps the largest end distance in its
+ * subtree (as in Heng Li's cgranges). A query only descends into subtrees that can hold an
+ * overlapping edge, costing O(log n + k) for k edges in the band, without walking the feeder.
+ */
+public class DistanceIntervalIndex {
+
+  /**
+   * Subtrees this small are scanned rather than descended into.
+   */
+  private static final int SCAN_LEVEL = 3;
+
+  private final CompactEdgeTree tree;
+
+  /**
+   * Tree nodes sorted by start distance, with their start, end and subtree maximum end.
+   */
+  private final int[] nodes;
+
+  private final double[] starts;
+
+  private final double[] ends;
+
+  private final double[] maxEnds;
+
+  /**
+   * The level of the root of the implicit tree, -1 if empty.
+   */
+  private final int rootLevel;
+
+  public DistanceIntervalIndex(CompactEdgeTree tree) {
+    this.tree = tree;
+    int n = tree.getNodeCount();
+
+    double[] unsortedStarts = new double[n];
+    for (int node = 0; node < n; node++) {
+      unsortedStarts[node] = tree.getDistanceFromSource(node);
+    }
+    int[] sorted = sortByStart(unsortedStarts);
+
+    this.nodes = sorted;
+    this.starts = new double[n];
+    this.ends = new double[n];
+    this.maxEnds = new double[n];
+    for (int i = 0; i < n; i++) {
+      starts[i] = tree.getDistanceFromSource(sorted[i]);
+      ends[i] = tree.getDistanceToEnd(sorted[i]);
+    }
+
+    this.rootLevel = index();
+  }
+
+  private static int[] sortByStart(double[] starts) {
+    int n = starts.length;
+    int[] order = new int[n];
+    for (int i = 0; i < n; i++) {
+      order[i] = i;
+    }
+    // merge sort on indices, stable, so edges at the same distance stay in tree order
+    int[] buffer = new int[n];
+    for (int width = 1; width < n; width *= 2) {
+      for (int low = 0; low < n - width; low += 2 * width) {
+        int mid = low + width;
+        int high = Math.min(low + 2 * width, n);
+        int i = low;
+        int j = mid;
+        int k = low;
+        while (i < mid && j < high) {
+          buffer[k++] = starts[order[j]] < starts[order[i]] ? order[j++] : order[i++];
+        }
+        while (i < mid) {
+          buffer[k++] = order[i++];
+        }
+        while (j < high) {
+          buffer[k++] = order[j++];
+        }
+        System.arraycopy(buffer, low, order, low, high - low);
+      }
+    }
+    return order;
+  }
+
+  /**
+   * Fill in the subtree maximum ends, level by level. Leaves are the even positions, the nodes of
+   * level k are at positions {@code 2^k - 1 + i * 2^(k+1)}. A node's right subtree can run past the
+   * end of the array, then the maximum of what is there stands in for it.
+   *
+   * @return the level of the root
+   */
+  private int index() {
+    int n = starts.length;
+    if (n == 0) {
+      return -1;
+    }
+
+    int lastIndex = 0;
+    double last = 0;
+    for (int i = 0; i < n; i += 2) {
+      lastIndex = i;
+      last = maxEnds[i] = ends[i];
+    }
+
+    int k = 1;
+    for (; 1L << k <= n; k++) {
+      int x = 1 << (k - 1);
+      int first = (x << 1) - 1;
+      int step = x << 2;
+      for (int i = first; i < n; i += step) {
+        double leftMax = maxEnds[i - x];
+        double rightMax = i + x < n ? maxEnds[i + x] : last;
+        maxEnds[i] = Math.max(ends[i], Math.max(leftMax, rightMax));
+      }
+      // move up to the parent of the last node of the level below
+      lastIndex = (lastIndex >> k & 1) != 0 ? lastIndex - x : lastIndex + x;
+      if (lastIndex < n && maxEnds[lastIndex] > last) {
+        last = maxEnds[lastIndex];
+      }
+    }
+
+    return k - 1;
+  }
+
+  public CompactEdgeTree getTree() {
+    return tree;
+  }
+
+  /**
+   * Find every edge that covers part of a band of distances from the source.
+   *
+   * @param minDistance the start of the band, in meters from the source
+   * @param maxDistance the end of the band, in meters from the source
+   * @return the tree nodes of the edges, in order of the distance they start at
+   */
+  public int[] query(double minDistance, double maxDistance) {
+    if (maxDistance < minDistance) {
+      throw new IllegalArgumentException("Band is empty: " + minDistance + " > " + maxDistance);
+    }
+
+    int n = starts.length;
+    int[] found = new int[16];
+    int count = 0;
+    if (rootLevel < 0) {
+      return new int[0];
+    }
+
+    // implicit tree nodes, their level, and whether their left subtree is done
+    int[] stackNodes = new int[64];
+    int[] stackLevels = new int[64];
+    boolean[] leftDone = new boolean[64];
+    int size = 0;
+    stackNodes[size] = (1 << rootLevel) - 1;
+    stackLevels[size] = rootLevel;
+    leftDone[size++] = false;
+
+    while (size > 0) {
+      size--;
+      int x = stackNodes[size];
+      int level = stackLevels[size];
+
+      if (level <= SCAN_LEVEL) {
+        // small subtree, scan it in order
+        int from = x >> level << level;
+        int to = Math.min(from + (1 << (level + 1)) - 1, n);
+        for (int i = from; i < to && starts[i] <= maxDistance; i++) {
+          if (ends[i] >= minDistance) {
+            if (count == found.length) {
+              found = Arrays.copyOf(found, count * 2);
+            }
+            found[count++] = nodes[i];
+          }
+        }
+      } else if (!leftDone[size]) {
+        int left = x - (1 << (level - 1));
+        // come back for this node and its right subtree after the left one
+        stackNodes[size] = x;
+        stackLevels[size] = level;
+        leftDone[size++] = true;
+        // a left child past the end of the array still has positions in range below it
+        if (left >= n || maxEnds[left] >= minDistance) {
+          stackNodes[size] = left;
+          stackLevels[size] = level - 1;
+          leftDone[size++] = false;
+        }
+      } else if (x < n && starts[x] <= maxDistance) {
+        if (ends[x] >= minDistance) {
+          if (count == found.length) {
+            found = Arrays.copyOf(found, count * 2);
+          }
+          found[count++] = nodes[x];
+        }
+        stackNodes[size] = x + (1 << (level - 1));
+        stackLevels[size] = level - 1;
+        leftDone[size++] = false;
+      }
+    }
+
+    return Arrays.copyOf(found, count);
+  }
+
+  /**
+   * Find the part of every branch that lies within a band of distances from the source, e.g. the
+   * search zone of a relay distance estimate and its error bars.
+   *
+   * @param minDistance the start of the band, in meters from the source
+   * @param maxDistance the end of the band, in meters from the source
+   * @return the part of every edge within the band, in order of the distance the edges start at
+   */
+  public List<LineString> locateBand(double minDistance, double maxDistance) {
+    int[] found = query(minDistance, maxDistance);
+    List<LineString> lineStrings = new ArrayList<>(found.length);
+    for (int node : found) {
+      double start = tree.getDistanceFromSource(node);
+      double length = tree.getLength(node);
+      // clamp, subtracting the start distance back out can overshoot the length by an ulp
+      double from = Math.min(Math.max(minDistance - start, 0.0), length);
+      double to = Math.max(Math.min(maxDistance - start, length), from);
+      lineStrings.add(tree.extractAlongEdge(node, from, to));
+    }
+    return lineStrings;
+  }
+}
@@ -1,9 +1,10 @@
 package com.yakovliam;
 
 import java.io.File;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
 import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.GeometryFactory;
 import org.locationtech.jts.geom.LineString;
@@ -33,76 +34,143 @@ public class EdgeNodeTreeConstructor {
   private static final Logger LOGGER =
       org.slf4j.LoggerFactory.getLogger(EdgeNodeTreeConstructor.class);
 
-  public EdgeNode constructEdgeNodeTree(MultiLineString geometry, Point startingPoint) {
-    List<LineString> lineStrings = new ArrayList<>();
-    for (int i = 0; i < geometry.getNumGeometries(); i++) {
-      LineString lineString = (LineString) geometry.getGeometryN(i);
-      lineStrings.add(lineString);
-    }
+  private double coordinateTolerance = 0.0;
 
-    // find the line that contains a start/end point closest to the starting point
-    Point closestPoint = null;
-    double closestDistance = Double.MAX_VALUE;
+  private double sourceSnapTolerance = Double.POSITIVE_INFINITY;
 
-    for (LineString lineString : lineStrings) {
-      Point start = lineString.getFactory().createPoint(lineString.getCoordinateN(0));
-      Point end = lineString.getFactory()
-          .createPoint(lineString.getCoordinateN(lineString.getNumPoints() - 1));
+  private boolean validating = true;
 
-      double startDistance = start.distance(startingPoint);
-      double endDistance = end.distance(startingPoint);
+  private boolean parallel = false;
 
-      if (startDistance < closestDistance) {
-        closestPoint = start;
-        closestDistance = startDistance;
-      }
+  private double maxReach = Double.POSITIVE_INFINITY;
 
-      if (endDistance < closestDistance) {
-        closestPoint = end;
-        closestDistance = endDistance;
-      }
+  /**
+   * @return the maximum distance, in coordinate units, between two end points that are considered
+   * the same point
+   */
+  public double getCoordinateTolerance() {
+    return coordinateTolerance;
+  }
+
+  /**
+   * Set the maximum distance, in coordinate units, between two end points that are considered the
+   * same point. The default of 0 only connects LineStrings whose end points are exactly equal.
+   *
+   * @param coordinateTolerance the tolerance, must be >= 0
+   */
+  public void setCoordinateTolerance(double coordinateTolerance) {
+    if (coordinateTolerance < 0 || Double.isNaN(coordinateTolerance)) {
+      throw new IllegalArgumentException("Tolerance must be >= 0, got " + coordinateTolerance);
     }
+    this.coordinateTolerance = coordinateTolerance;
+  }
+
+  /**
+   * @return the maximum distance, in meters, between the source and the end point it snaps to
+   */
+  public double getSourceSnapTolerance() {
+    return sourceSnapTolerance;
+  }
 
-    if (closestPoint == null) {
-      throw new RuntimeException("No closest point found");
+  /**
+   * Set the maximum distance, in meters, between the source and the end point it snaps to, the
+   * closest end point of any LineString. The default is no maximum, the closest end point is used
+   * however far away it is.
+   *
+   * @param sourceSnapTolerance the tolerance, must be >= 0
+   */
+  public void setSourceSnapTolerance(double sourceSnapTolerance) {
+    if (sourceSnapTolerance < 0 || Double.isNaN(sourceSnapTolerance)) {
+      throw new IllegalArgumentException("Tolerance must be >= 0, got " + sourceSnapTolerance);
     }
+    this.sourceSnapTolerance = sourceSnapTolerance;
+  }
 
-    LOGGER.info("Closest point to start: {}", closestPoint);
+  /**
+   * @return whether constructed trees are checked against the tapped line rules
+   */
+  public boolean isValidating() {
+    return validating;
+  }
 
-    // find the lineString with the closest point
-    LineString closestLineString = null;
-    for (LineString lineString : lineStrings) {
-      Point start = lineString.getFactory().createPoint(lineString.getCoordinateN(0));
-      Point end = lineString.getFactory()
-          .createPoint(lineString.getCoordinateN(lineString.getNumPoints() - 1));
+  /**
+   * Set whether constructed trees are checked against the tapped line rules. Only turn this off
+   * for geometry that is already known to pass them, e.g. by {@link FeederTopology}.
+   *
+   * @param validating whether to validate, the default is true
+   */
+  public void setValidating(boolean validating) {
+    this.validating = validating;
+  }
 
-      if (start.equals(closestPoint) || end.equals(closestPoint)) {
-        closestLineString = lineString;
-        break;
-      }
-    }
+  /**
+   * @return whether end points are indexed and trees validated on the common fork/join pool
+   */
+  public boolean isParallel() {
+    return parallel;
+  }
+
+  /**
+   * Set whether to index end points and validate trees on the common fork/join pool, for very
+   * large networks. The tree and the validation result are the same either way.
+   *
+   * @param parallel whether to use several threads, the default is false
+   */
+  public void setParallel(boolean parallel) {
+    this.parallel = parallel;
+  }
+
+  /**
+   * @return the distance, in meters from the source, trees are built up to
+   */
+  public double getMaxReach() {
+    return maxReach;
+  }
 
-    if (closestLineString == null) {
-      throw new RuntimeException("No closest line string found");
+  /**
+   * Set how far from the source, in meters along the feeder, trees are built, e.g. the protective
+   * reach of the relay at the source. Edges that start beyond it are left out, and only the
+   * LineStrings that made it into the tree are validated. The default is no maximum, the whole
+   * network connected to the source is built and validated.
+   * <p>
+   * See {@link #constructLazyEdgeTree(MultiLineString, Point)} for a tree that can be extended
+   * later.
+   *
+   * @param maxReach the reach, must be > 0
+   */
+  public void setMaxReach(double maxReach) {
+    if (!(maxReach > 0)) {
+      throw new IllegalArgumentException("Reach must be > 0, got " + maxReach);
     }
+    this.maxReach = maxReach;
+  }
 
-    // if the closest point to the starting point is the end
-    // of the line, then reverse the line
-    if (closestLineString.getCoordinateN(closestLineString.getNumPoints() - 1)
-        .equals(closestPoint.getCoordinate())) {
-      closestLineString = closestLineString.reverse();
+  public EdgeNode constructEdgeNodeTree(MultiLineString geometry, Point startingPoint) {
+    if (maxReach != Double.POSITIVE_INFINITY) {
+      return constructLazyEdgeTree(geometry, startingPoint).getRoot();
     }
 
-    // start the edge tree
-    EdgeNode edgeNode = new EdgeNode(new Edge(closestLineString));
-    List<LineString> remainingLineStrings = new CopyOnWriteArrayList<>(lineStrings);
-    remainingLineStrings.remove(closestLineString);
+    long startNanos = System.nanoTime();
+    List<LineString> lineStrings = toList(geometry);
+    EndpointIndex endpointIndex = new EndpointIndex(LineStringCoordinates.of(lineStrings),
+        coordinateTolerance, parallel);
+    EdgeNode output = createRoot(lineStrings, endpointIndex, startingPoint,
+        GeometryUtil.getKernel(geometry));
 
-    EdgeNode output = constructEdgeTree(edgeNode, remainingLineStrings);
+    constructEdgeTree(output, lineStrings, endpointIndex);
+    indexEulerTour(output);
+    Metrics.getGlobal().recordStage(Metrics.Stage.BUILD, startNanos);
 
-    debugPrintEdgeTree(output, 0);
+    if (LOGGER.isDebugEnabled()) {
+      debugPrintEdgeTree(output);
+    }
+
+    if (!validating) {
+      return output;
+    }
 
-    boolean passes = new TappedLineRulesTester().passes(geometry, output);
+    boolean passes =
+        new TappedLineRulesTester(coordinateTolerance, parallel).passes(geometry, output);
     if (!passes) {
       throw new RuntimeException("Edge tree does not pass rules");
     } else {
@@ -112,44 +180,216 @@ public class EdgeNodeTreeConstructor {
     return output;
   }
 
-  private void debugPrintEdgeTree(EdgeNode edgeNode, int depth) {
-    String stringBuilder = "  ".repeat(Math.max(0, depth)) + edgeNode.getEdge().getLineString();
+  /**
+   * Build a tree up to the {@link #setMaxReach(double) maximum reach} that keeps what it needs to
+   * materialise the edges beyond it later, as queries reach further, see
+   * {@link LazyEdgeTree#extendTo(double)}. Only the end points of the whole geometry are indexed
+   * up front, every edge is measured, validated and attached only once it is within reach.
+   *
+   * @param geometry      the LineStrings of the whole network, e.g. a territory
+   * @param startingPoint the source
+   * @return the tree, materialised up to the maximum reach
+   * @throws RuntimeException if no end point is close enough to the starting point, or the
+   *                          materialised LineStrings don't pass the tapped line rules
+   */
+  public LazyEdgeTree constructLazyEdgeTree(MultiLineString geometry, Point startingPoint) {
+    long startNanos = System.nanoTime();
+    List<LineString> lineStrings = toList(geometry);
+    EndpointIndex endpointIndex = new EndpointIndex(LineStringCoordinates.of(lineStrings),
+        coordinateTolerance, parallel);
+    GeodesicKernel kernel = GeometryUtil.getKernel(geometry);
+    EdgeNode root = createRoot(lineStrings, endpointIndex, startingPoint, kernel);
+    Metrics.getGlobal().recordStage(Metrics.Stage.BUILD, startNanos);
+
+    LazyEdgeTree tree = new LazyEdgeTree(root, lineStrings, endpointIndex, kernel,
+        validating ? new TappedLineRulesTester(coordinateTolerance, parallel) : null);
+    tree.extendTo(maxReach);
+    return tree;
+  }
+
+  private static List<LineString> toList(MultiLineString geometry) {
+    List<LineString> lineStrings = new ArrayList<>(geometry.getNumGeometries());
+    for (int i = 0; i < geometry.getNumGeometries(); i++) {
+      LineString lineString = (LineString) geometry.getGeometryN(i);
+      lineStrings.add(lineString);
+    }
+    return lineStrings;
+  }
+
+  /**
+   * Build a graph of the network rather than a tree, for networks with loops, e.g. ties that are
+   * closed or lines run in parallel. Loops aren't rejected, so the tapped line rules aren't
+   * checked. See {@link FeederGraph}.
+   *
+   * @param geometry      the LineStrings of the network
+   * @param startingPoint the source
+   * @return the graph
+   * @throws RuntimeException if no end point is close enough to the starting point
+   */
+  public FeederGraph constructFeederGraph(MultiLineString geometry, Point startingPoint) {
+    long startNanos = System.nanoTime();
+    List<LineString> lineStrings = toList(geometry);
+    EndpointIndex endpointIndex = new EndpointIndex(LineStringCoordinates.of(lineStrings),
+        coordinateTolerance, parallel);
+    GeodesicKernel kernel = GeometryUtil.getKernel(geometry);
+    int sourceEndpoint = snapSource(endpointIndex, startingPoint, kernel).getEndpoint();
+
+    FeederGraph graph = new FeederGraph(lineStrings, endpointIndex, sourceEndpoint, kernel);
+    Metrics.getGlobal().recordStage(Metrics.Stage.BUILD, startNanos);
+    LOGGER.debug("Built a graph of {} vertices and {} edges", graph.getVertexCount(),
+        graph.getEdgeCount());
+    return graph;
+  }
+
+  /**
+   * @return the root edge, the one with the end point closest to the starting point
+   */
+  private EdgeNode createRoot(List<LineString> lineStrings, EndpointIndex endpointIndex,
+                              Point startingPoint, GeodesicKernel kernel) {
+    EndpointIndex.Snap snap = snapSource(endpointIndex, startingPoint, kernel);
 
-    LOGGER.info(stringBuilder);
+    // start the edge tree, if the closest point to the starting point is the end
+    // of the line, then the line is reversed
+    return createEdgeNode(lineStrings, snap.getEndpoint(), snap.getMeters());
+  }
 
-    for (EdgeNode child : edgeNode.getChildren()) {
-      debugPrintEdgeTree(child, depth + 1);
+  /**
+   * @return the end point closest to the starting point, and how far it is
+   * @throws RuntimeException if there is none within the source snap tolerance
+   */
+  private EndpointIndex.Snap snapSource(EndpointIndex endpointIndex, Point startingPoint,
+                                        GeodesicKernel kernel) {
+    // find the line that contains a start/end point closest to the starting point, the starting
+    // point has to be in the same CRS as the geometry
+    EndpointIndex.Snap snap = endpointIndex.closest(startingPoint.getX(), startingPoint.getY(),
+        kernel, sourceSnapTolerance);
+
+    if (snap == null) {
+      throw new RuntimeException(endpointIndex.size() == 0 ? "No closest point found"
+          : "No end point within " + sourceSnapTolerance + " m of the starting point");
     }
+
+    LOGGER.debug("Closest point to start: ({}, {}), {} m away",
+        endpointIndex.getX(snap.getEndpoint()), endpointIndex.getY(snap.getEndpoint()),
+        snap.getMeters());
+    return snap;
   }
 
-  private EdgeNode constructEdgeTree(EdgeNode currentRoot, List<LineString> remainingLineStrings) {
-    // match any lineStrings with a start/end point that are the same as the currentRoot edge
-    // end point.
-    // If found, add them as children to the currentRoot edge
+  private void debugPrintEdgeTree(EdgeNode root) {
+    Deque<EdgeNode> stack = new ArrayDeque<>();
+    Deque<Integer> depths = new ArrayDeque<>();
+    stack.push(root);
+    depths.push(0);
 
-    // reminder: may need to reverse the lineString if the end point is the same as the start point
+    while (!stack.isEmpty()) {
+      EdgeNode edgeNode = stack.pop();
+      int depth = depths.pop();
 
-    for (LineString lineString : remainingLineStrings) {
-      Point start = lineString.getFactory().createPoint(lineString.getCoordinateN(0));
-      Point end = lineString.getFactory()
-          .createPoint(lineString.getCoordinateN(lineString.getNumPoints() - 1));
+      LOGGER.debug("  ".repeat(depth) + edgeNode.getEdge().getLineString());
+
+      for (int i = edgeNode.getChildren().size() - 1; i >= 0; i--) {
+        stack.push(edgeNode.getChildren().get(i));
+        depths.push(depth + 1);
+      }
+    }
+  }
 
-      if (currentRoot.getEdge().getEnd().equals(start)) {
-        EdgeNode edgeNode = new EdgeNode(new Edge(lineString));
-        currentRoot.addChild(edgeNode);
-        remainingLineStrings.remove(lineString);
-        constructEdgeTree(edgeNode, remainingLineStrings);
+  /**
+   * Attach every LineString reachable from the root, using a work stack rather than recursion so
+   * long radial feeders can't overflow the call stack. Each LineString is looked up through the
+   * end point index and claimed at most once, so this is linear in the number of LineStrings.
+   * <p>
+   * With a coordinate tolerance, end points that are close but not equal still connect, the gap
+   * is recorded on the child edge, see {@link Edge#getGapMeters()}.
+   */
+  private void constructEdgeTree(EdgeNode root, List<LineString> lineStrings,
+                                 EndpointIndex endpointIndex) {
+    GeodesicKernel kernel = GeometryUtil.getKernel(root.getEdge().getLineString());
+    boolean[] claimed = new boolean[lineStrings.size()];
+    claimed[root.getEdge().getSegmentIndex()] = true;
+    int gaps = 0;
+    double largestGap = 0;
+
+    Deque<EdgeNode> stack = new ArrayDeque<>();
+    stack.push(root);
+
+    while (!stack.isEmpty()) {
+      EdgeNode currentRoot = stack.pop();
+
+      // match any lineStrings with a start/end point that are the same as the currentRoot edge
+      // end point, and add them as children. The lineString is reversed if it's the end point
+      // that matches
+      Point end = currentRoot.getEdge().getEnd();
+      for (int endpoint : endpointIndex.find(end.getX(), end.getY())) {
+        int lineStringIndex = EndpointIndex.lineStringOf(endpoint);
+        if (claimed[lineStringIndex]) {
+          continue;
+        }
+        claimed[lineStringIndex] = true;
+
+        double x = endpointIndex.getX(endpoint);
+        double y = endpointIndex.getY(endpoint);
+        double gapMeters = 0;
+        if (x != end.getX() || y != end.getY()) {
+          gapMeters = kernel.distance(end.getX(), end.getY(), x, y);
+          gaps++;
+          largestGap = Math.max(largestGap, gapMeters);
+        }
+        currentRoot.addChild(createEdgeNode(lineStrings, endpoint, gapMeters));
       }
 
-      if (currentRoot.getEdge().getEnd().equals(end)) {
-        EdgeNode edgeNode = new EdgeNode(new Edge(lineString.reverse()));
-        currentRoot.addChild(edgeNode);
-        remainingLineStrings.remove(lineString);
-        constructEdgeTree(edgeNode, remainingLineStrings);
+      List<EdgeNode> children = currentRoot.getChildren();
+      for (int i = children.size() - 1; i >= 0; i--) {
+        stack.push(children.get(i));
       }
     }
 
-    return currentRoot;
+    if (gaps > 0) {
+      LOGGER.info("Connected {} gap(s) between end points, the largest is {} m", gaps, largestGap);
+    }
+  }
+
+  /**
+   * Number the nodes of a tree in depth-first pre-order, children in order, setting every node's
+   * entry and exit index, see {@link EdgeNode#isUpstreamOf(EdgeNode)}. The entry index of a node
+   * is its node number in a {@link CompactEdgeTree} compiled from the same tree.
+   * <p>
+   * Trees built by {@link #constructEdgeNodeTree(MultiLineString, Point)} are already numbered,
+   * trees changed or assembled by hand have to be renumbered.
+   *
+   * @param root the root of the tree
+   */
+  public static void indexEulerTour(EdgeNode root) {
+    List<EdgeNode> order = new ArrayList<>();
+    Deque<EdgeNode> stack = new ArrayDeque<>();
+    stack.push(root);
+
+    while (!stack.isEmpty()) {
+      EdgeNode node = stack.pop();
+      node.entryIndex = order.size();
+      order.add(node);
+
+      for (int i = node.getChildren().size() - 1; i >= 0; i--) {
+        stack.push(node.getChildren().get(i));
+      }
+    }
+
+    // children come after their parent, so walking backwards every last child is done first
+    for (int i = order.size() - 1; i >= 0; i--) {
+      EdgeNode node = order.get(i);
+      List<EdgeNode> children = node.getChildren();
+      node.exitIndex = children.isEmpty() ? node.entryIndex
+          : children.get(children.size() - 1).exitIndex;
+    }
+  }
+
+  static EdgeNode createEdgeNode(List<LineString> lineStrings, int startEndpoint,
+                                 double gapMeters) {
+    int lineStringIndex = EndpointIndex.lineStringOf(startEndpoint);
+    LineString lineString = lineStrings.get(lineStringIndex);
+    boolean reversed = EndpointIndex.isEnd(startEndpoint);
+    return new EdgeNode(new Edge(reversed ? lineString.reverse() : lineString, lineStringIndex,
+        reversed, gapMeters));
   }
 
   private void writeToFile(Geometry geometry) {
@@ -176,8 +416,37 @@ public class EdgeNodeTreeConstructor {
 
     private final Point end;
 
+    private final int segmentIndex;
+
+    private final boolean reversed;
+
+    private final double gapMeters;
+
     public Edge(LineString lineString) {
+      this(lineString, -1, false);
+    }
+
+    /**
+     * @param lineString   the LineString, oriented away from the source
+     * @param segmentIndex the index of the LineString in the input geometry
+     * @param reversed     whether the LineString was reversed from its input orientation
+     */
+    public Edge(LineString lineString, int segmentIndex, boolean reversed) {
+      this(lineString, segmentIndex, reversed, 0.0);
+    }
+
+    /**
+     * @param lineString   the LineString, oriented away from the source
+     * @param segmentIndex the index of the LineString in the input geometry
+     * @param reversed     whether the LineString was reversed from its input orientation
+     * @param gapMeters    the distance between the start of the LineString and what it connects
+     *                     to, see {@link #getGapMeters()}
+     */
+    public Edge(LineString lineString, int segmentIndex, boolean reversed, double gapMeters) {
       this.lineString = lineString;
+      this.segmentIndex = segmentIndex;
+      this.reversed = reversed;
+      this.gapMeters = gapMeters;
       this.start = lineString.getFactory().createPoint(lineString.getCoordinateN(0));
       this.end = lineString.getFactory()
           .createPoint(lineString.getCoordinateN(lineString.getNumPoints() - 1));
@@ -194,6 +463,26 @@ public class EdgeNodeTreeConstructor {
     public Point getEnd() {
       return end;
     }
+
+    /**
+     * @return the index of the LineString in the input geometry, or -1 if unknown
+     */
+    public int getSegmentIndex() {
+      return segmentIndex;
+    }
+
+    public boolean isReversed() {
+      return reversed;
+    }
+
+    /**
+     * @return the distance, in meters, between the start of the edge and the end of its parent
+     * edge, or the source for the root edge. It is 0 when they are the same point, and isn't
+     * counted in distances from the source
+     */
+    public double getGapMeters() {
+      return gapMeters;
+    }
   }
 
   public static class EdgeNode {
@@ -202,9 +491,13 @@ public class EdgeNodeTreeConstructor {
 
     private final List<EdgeNode> children;
 
+    private int entryIndex = -1;
+
+    private int exitIndex = -1;
+
     public EdgeNode(Edge edge) {
       this.edge = edge;
-      this.children = new CopyOnWriteArrayList<>();
+      this.children = new ArrayList<>();
     }
 
     public Edge getEdge() {
@@ -218,5 +511,31 @@ public class EdgeNodeTreeConstructor {
     public void addChild(EdgeNode edgeNode) {
       children.add(edgeNode);
     }
+
+    /**
+     * @return the pre-order number of the node, or -1 if the tree isn't numbered, see
+     * {@link #indexEulerTour(EdgeNode)}
+     */
+    public int getEntryIndex() {
+      return entryIndex;
+    }
+
+    /**
+     * @return the largest pre-order number in the node's subtree, or -1 if the tree isn't
+     * numbered. The subtree is exactly the nodes numbered from the entry to the exit index
+     */
+    public int getExitIndex() {
+      return exitIndex;
+    }
+
+    /**
+     * Whether an edge is this one or downstream of it, in constant time with no walk of the tree.
+     *
+     * @param other a node of the same, numbered, tree
+     * @return true if the other node is in this node's subtree, this node included
+     */
+    public boolean isUpstreamOf(EdgeNode other) {
+      return entryIndex <= other.entryIndex && other.entryIndex <= exitIndex;
+    }
   }
 }
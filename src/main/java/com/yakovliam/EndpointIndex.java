@@ -0,0 +1,312 @@
+package com.yakovliam;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.index.strtree.STRtree;
+
+/**
+ * Hash index from LineString end points to the LineStrings that start or end there.
+ * <p>
+ * Every LineString {@code i} contributes two end points: its start, with id {@code 2 * i}, and its
+ * end, with id {@code 2 * i + 1}. With a tolerance of 0 end points match only if their x/y are
+ * exactly equal, otherwise end points within the tolerance of each other match.
+ */
+public class EndpointIndex {
+
+  /**
+   * Fewer meters than a degree of latitude is long anywhere, on the ellipsoid or the sphere.
+   */
+  private static final double MIN_METERS_PER_DEGREE = 110_000;
+
+  private final double tolerance;
+
+  private final double[] xs;
+
+  private final double[] ys;
+
+  private final Map<CellKey, Bucket> cells;
+
+  private STRtree nearestTree;
+
+  public EndpointIndex(List<LineString> lineStrings, double tolerance) {
+    this(LineStringCoordinates.of(lineStrings), tolerance);
+  }
+
+  public EndpointIndex(LineStringCoordinates lineStrings, double tolerance) {
+    this(lineStrings, tolerance, false);
+  }
+
+  /**
+   * @param lineStrings the LineStrings
+   * @param tolerance   the tolerance, in coordinate units, 0 to only match equal end points
+   * @param parallel    whether to index on the common fork/join pool, the index is the same either
+   *                    way
+   */
+  public EndpointIndex(LineStringCoordinates lineStrings, double tolerance, boolean parallel) {
+    if (tolerance < 0 || Double.isNaN(tolerance)) {
+      throw new IllegalArgumentException("Tolerance must be >= 0, got " + tolerance);
+    }
+
+    int lineStringCount = lineStrings.getLineStringCount();
+    this.tolerance = tolerance;
+    this.xs = new double[lineStringCount * 2];
+    this.ys = new double[lineStringCount * 2];
+
+    if (!parallel) {
+      this.cells = new HashMap<>(lineStringCount * 4);
+      for (int i = 0; i < lineStringCount; i++) {
+        int last = lineStrings.getVertexCount(i) - 1;
+        add(startOf(i), lineStrings.getX(i, 0), lineStrings.getY(i, 0));
+        add(endOf(i), lineStrings.getX(i, last), lineStrings.getY(i, last));
+      }
+      return;
+    }
+
+    ConcurrentHashMap<CellKey, Bucket> concurrentCells =
+        new ConcurrentHashMap<>(lineStringCount * 4);
+    IntStream.range(0, lineStringCount).parallel().forEach(i -> {
+      int last = lineStrings.getVertexCount(i) - 1;
+      xs[startOf(i)] = lineStrings.getX(i, 0);
+      ys[startOf(i)] = lineStrings.getY(i, 0);
+      xs[endOf(i)] = lineStrings.getX(i, last);
+      ys[endOf(i)] = lineStrings.getY(i, last);
+      for (int endpoint = startOf(i); endpoint <= endOf(i); endpoint++) {
+        int added = endpoint;
+        concurrentCells.compute(cellKey(xs[endpoint], ys[endpoint]), (key, bucket) -> {
+          Bucket updated = bucket == null ? new Bucket() : bucket;
+          updated.add(added);
+          return updated;
+        });
+      }
+    });
+    // buckets fill in any order here, sort them to match the sequential index
+    concurrentCells.values().parallelStream()
+        .forEach(bucket -> Arrays.sort(bucket.endpoints, 0, bucket.size));
+    this.cells = concurrentCells;
+  }
+
+  private void add(int endpoint, double x, double y) {
+    xs[endpoint] = x;
+    ys[endpoint] = y;
+    cells.computeIfAbsent(cellKey(x, y), key -> new Bucket()).add(endpoint);
+  }
+
+  public static int startOf(int lineStringIndex) {
+    return lineStringIndex << 1;
+  }
+
+  public static int endOf(int lineStringIndex) {
+    return (lineStringIndex << 1) | 1;
+  }
+
+  public static int lineStringOf(int endpoint) {
+    return endpoint >>> 1;
+  }
+
+  public static boolean isEnd(int endpoint) {
+    return (endpoint & 1) == 1;
+  }
+
+  public double getTolerance() {
+    return tolerance;
+  }
+
+  /**
+   * @return the number of end points, i.e. twice the number of LineStrings
+   */
+  public int size() {
+    return xs.length;
+  }
+
+  public double getX(int endpoint) {
+    return xs[endpoint];
+  }
+
+  public double getY(int endpoint) {
+    return ys[endpoint];
+  }
+
+  /**
+   * Find every end point that matches the given location.
+   *
+   * @param x the x of the location
+   * @param y the y of the location
+   * @return the matching end point ids, in ascending order
+   */
+  public int[] find(double x, double y) {
+    if (tolerance == 0) {
+      Bucket bucket = cells.get(cellKey(x, y));
+      return bucket == null ? new int[0] : Arrays.copyOf(bucket.endpoints, bucket.size);
+    }
+
+    // a match can be in a neighbouring cell when it is closer than the tolerance to the border
+    long cellX = (long) Math.floor(x / tolerance);
+    long cellY = (long) Math.floor(y / tolerance);
+    Bucket matches = new Bucket();
+    for (long dx = -1; dx <= 1; dx++) {
+      for (long dy = -1; dy <= 1; dy++) {
+        Bucket bucket = cells.get(new CellKey(cellX + dx, cellY + dy));
+        if (bucket == null) {
+          continue;
+        }
+        for (int i = 0; i < bucket.size; i++) {
+          int endpoint = bucket.endpoints[i];
+          if (Math.hypot(xs[endpoint] - x, ys[endpoint] - y) <= tolerance) {
+            matches.add(endpoint);
+          }
+        }
+      }
+    }
+
+    int[] result = Arrays.copyOf(matches.endpoints, matches.size);
+    Arrays.sort(result);
+    return result;
+  }
+
+  /**
+   * Find the end point closest to the given location in meters, through an R-tree of the end
+   * points that is built on first use. The end point nearest in coordinate units bounds how far the
+   * closest one in meters can be, so only the end points within that bound, and within the
+   * maximum distance, are measured with the kernel.
+   *
+   * @param x         the x of the location
+   * @param y         the y of the location
+   * @param kernel    the kernel to measure with
+   * @param maxMeters the furthest an end point can be, may be infinite
+   * @return the closest end point, the lowest id of equally close ones, or null if there is none
+   * within the maximum distance
+   */
+  public Snap closest(double x, double y, GeodesicKernel kernel, double maxMeters) {
+    if (xs.length == 0) {
+      return null;
+    }
+
+    STRtree tree = getNearestTree();
+    int nearest = (Integer) tree.nearestNeighbour(new Envelope(x, x, y, y), -1, (a, b) ->
+        ((Envelope) a.getBounds()).distance((Envelope) b.getBounds()));
+    double bound = Math.min(kernel.distance(x, y, xs[nearest], ys[nearest]), maxMeters);
+
+    Snap closest = null;
+    for (Object item : tree.query(envelopeWithin(x, y, bound, kernel))) {
+      int endpoint = (Integer) item;
+      double meters = kernel.distance(x, y, xs[endpoint], ys[endpoint]);
+      if (meters <= bound && (closest == null || meters < closest.meters
+          || meters == closest.meters && endpoint < closest.endpoint)) {
+        closest = new Snap(endpoint, meters);
+      }
+    }
+    return closest;
+  }
+
+  /**
+   * @return an envelope, in coordinate units, that holds every point within the distance of the
+   * location
+   */
+  private static Envelope envelopeWithin(double x, double y, double meters,
+                                         GeodesicKernel kernel) {
+    if (!kernel.isGeographic()) {
+      return new Envelope(x - meters, x + meters, y - meters, y + meters);
+    }
+    // a degree of longitude is at least as long as one of latitude times the cosine of the
+    // latitude, take the cosine at the edge of the envelope nearest the pole
+    double latitudeDegrees = meters / MIN_METERS_PER_DEGREE;
+    double poleward = Math.abs(y) + latitudeDegrees;
+    double longitudeDegrees = poleward >= 90 ? 360
+        : latitudeDegrees / Math.cos(Math.toRadians(poleward));
+    return new Envelope(x - longitudeDegrees, x + longitudeDegrees, y - latitudeDegrees,
+        y + latitudeDegrees);
+  }
+
+  private synchronized STRtree getNearestTree() {
+    if (nearestTree == null) {
+      STRtree tree = new STRtree();
+      for (int endpoint = 0; endpoint < xs.length; endpoint++) {
+        tree.insert(new Envelope(xs[endpoint], xs[endpoint], ys[endpoint], ys[endpoint]),
+            endpoint);
+      }
+      tree.build();
+      nearestTree = tree;
+    }
+    return nearestTree;
+  }
+
+  private CellKey cellKey(double x, double y) {
+    if (tolerance == 0) {
+      // + 0.0 folds -0.0 into 0.0, they are equal coordinates
+      return new CellKey(Double.doubleToLongBits(x + 0.0), Double.doubleToLongBits(y + 0.0));
+    }
+    return new CellKey((long) Math.floor(x / tolerance), (long) Math.floor(y / tolerance));
+  }
+
+  /**
+   * An end point a location snapped to, and how far it is.
+   */
+  public static final class Snap {
+
+    private final int endpoint;
+
+    private final double meters;
+
+    private Snap(int endpoint, double meters) {
+      this.endpoint = endpoint;
+      this.meters = meters;
+    }
+
+    public int getEndpoint() {
+      return endpoint;
+    }
+
+    /**
+     * @return the distance, in meters, from the location to the end point
+     */
+    public double getMeters() {
+      return meters;
+    }
+  }
+
+  private static final class CellKey {
+
+    private final long x;
+
+    private final long y;
+
+    private CellKey(long x, long y) {
+      this.x = x;
+      this.y = y;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof CellKey)) {
+        return false;
+      }
+      CellKey other = (CellKey) o;
+      return x == other.x && y == other.y;
+    }
+
+    @Override
+    public int hashCode() {
+      return Long.hashCode(x * 31 + y);
+    }
+  }
+
+  private static final class Bucket {
+
+    private int[] endpoints = new int[2];
+
+    private int size;
+
+    private void add(int endpoint) {
+      if (size == endpoints.length) {
+        endpoints = Arrays.copyOf(endpoints, size * 2);
+      }
+      endpoints[size++] = endpoint;
+    }
+  }
+}
@@ -0,0 +1,70 @@
+package com.yakovliam;
+
+import org.locationtech.jts.geom.Point;
+
+/**
+ * A possible fault location, with where on the feeder it is: the edge of the
+ * {@link CompactEdgeTree} it falls on and how far along that edge.
+ */
+public class FaultCandidate {
+
+  private final double distance;
+
+  private final int edge;
+
+  private final int segmentIndex;
+
+  private final double offset;
+
+  private final Point point;
+
+  /**
+   * @param distance     the distance of the fault from the source, in meters
+   * @param edge         the tree node of the edge the fault is on
+   * @param segmentIndex the index of the edge's LineString in the input geometry, or -1
+   * @param offset       how far along the edge, from its start, the fault is, in meters
+   * @param point        the location
+   */
+  public FaultCandidate(double distance, int edge, int segmentIndex, double offset, Point point) {
+    this.distance = distance;
+    this.edge = edge;
+    this.segmentIndex = segmentIndex;
+    this.offset = offset;
+    this.point = point;
+  }
+
+  public double getDistance() {
+    return distance;
+  }
+
+  /**
+   * @return the tree node of the edge, i.e. the branch, the fault is on
+   */
+  public int getEdge() {
+    return edge;
+  }
+
+  /**
+   * @return the index of the edge's LineString in the input geometry, or -1 if unknown
+   */
+  public int getSegmentIndex() {
+    return segmentIndex;
+  }
+
+  /**
+   * @return how far along the edge, in meters from its start, the fault is
+   */
+  public double getOffset() {
+    return offset;
+  }
+
+  public Point getPoint() {
+    return point;
+  }
+
+  @Override
+  public String toString() {
+    return "FaultCandidate{distance=" + distance + ", edge=" + edge + ", segment=" + segmentIndex
+        + ", offset=" + offset + ", point=" + point + "}";
+  }
+}
@@ -0,0 +1,147 @@
+package com.yakovliam;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import org.locationtech.jts.geom.Point;
+
+/**
+ * Streams fault candidates out as GeoJSON Point features, each with its distance, edge, segment
+ * and offset along the edge as properties. Features are written straight to the stream as they
+ * come, the document is never held in memory. Points are written in WGS84 lon/lat, as GeoJSON
+ * requires, whatever CRS the feeder's tree is in.
+ * <p>
+ * {@link Format#GEOJSON} writes a single FeatureCollection, which is only complete once the writer
+ * is closed. {@link Format#NDJSON} writes one Feature per line, which can be read while it is
+ * still being written.
+ */
+public class FaultCandidateWriter implements Closeable {
+
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+  private final Format format;
+
+  private final FeederRegistry.Feeder feeder;
+
+  private final JsonGenerator generator;
+
+  private long count;
+
+  /**
+   * @param output the stream, closed with the writer
+   * @param format the format to write
+   * @param feeder the feeder the candidates were located on, which maps them to lon/lat
+   * @throws IOException if the start of the document can't be written
+   */
+  public FaultCandidateWriter(OutputStream output, Format format, FeederRegistry.Feeder feeder)
+      throws IOException {
+    this.format = format;
+    this.feeder = feeder;
+    this.generator = JSON_FACTORY.createGenerator(output, JsonEncoding.UTF8);
+
+    if (format == Format.GEOJSON) {
+      generator.writeStartObject();
+      generator.writeStringField("type", "FeatureCollection");
+      generator.writeArrayFieldStart("features");
+    } else {
+      // no separator between the features, each ends its own line instead
+      generator.setRootValueSeparator(null);
+    }
+  }
+
+  /**
+   * Write to a file, in the format its extension calls for: NDJSON for {@code .ndjson} and
+   * {@code .geojsonl}, GeoJSON otherwise.
+   *
+   * @param path   the file, replaced if it exists
+   * @param feeder the feeder the candidates were located on
+   * @return the writer
+   * @throws IOException if the file can't be created
+   */
+  public static FaultCandidateWriter open(Path path, FeederRegistry.Feeder feeder)
+      throws IOException {
+    String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+    Format format = name.endsWith(".ndjson") || name.endsWith(".geojsonl") ? Format.NDJSON
+        : Format.GEOJSON;
+    return new FaultCandidateWriter(new BufferedOutputStream(Files.newOutputStream(path), 1 << 16),
+        format, feeder);
+  }
+
+  public Format getFormat() {
+    return format;
+  }
+
+  /**
+   * @return the number of features written
+   */
+  public long getCount() {
+    return count;
+  }
+
+  public void write(FaultCandidate candidate) throws IOException {
+    generator.writeStartObject();
+    generator.writeStringField("type", "Feature");
+
+    generator.writeObjectFieldStart("geometry");
+    generator.writeStringField("type", "Point");
+    generator.writeArrayFieldStart("coordinates");
+    Point point = feeder.toLonLat(candidate.getPoint());
+    generator.writeNumber(point.getX());
+    generator.writeNumber(point.getY());
+    generator.writeEndArray();
+    generator.writeEndObject();
+
+    generator.writeObjectFieldStart("properties");
+    generator.writeNumberField("distance", candidate.getDistance());
+    generator.writeNumberField("edge", candidate.getEdge());
+    generator.writeNumberField("segment", candidate.getSegmentIndex());
+    generator.writeNumberField("offset", candidate.getOffset());
+    generator.writeEndObject();
+
+    generator.writeEndObject();
+    if (format == Format.NDJSON) {
+      generator.writeRaw('\n');
+    }
+    count++;
+  }
+
+  public void writeAll(Iterable<FaultCandidate> candidates) throws IOException {
+    for (FaultCandidate candidate : candidates) {
+      write(candidate);
+    }
+  }
+
+  public void flush() throws IOException {
+    generator.flush();
+  }
+
+  /**
+   * Finish the document and close the stream.
+   */
+  @Override
+  public void close() throws IOException {
+    if (format == Format.GEOJSON) {
+      generator.writeEndArray();
+      generator.writeEndObject();
+    }
+    generator.close();
+  }
+
+  public enum Format {
+    /**
+     * A single FeatureCollection.
+     */
+    GEOJSON,
+    /**
+     * Newline delimited GeoJSON, one Feature per line.
+     */
+    NDJSON
+  }
+}
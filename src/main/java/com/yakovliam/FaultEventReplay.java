@@ -0,0 +1,353 @@
+package com.yakovliam;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.locationtech.jts.geom.Point;
+import org.slf4j.Logger;
+
+/**
+ * Replays a stream of historical fault events against the feeders of a {@link FeederRegistry},
+ * e.g. for nightly analytics.
+ * <p>
+ * Events are read in batches and located on a fixed pool of workers. The pool's queue is bounded
+ * and a full queue makes the reading thread locate the batch itself, so a fast reader can't run
+ * ahead of the workers. Results are written as one JSON object per line, in the order of the
+ * events, to a single output.
+ * <p>
+ * Events are either CSV, a {@code feeder_id,distance[,id]} line per event with an optional header,
+ * or JSON lines, a {@code {"feederId": ..., "distance": ..., "id": ...}} object per line, with the
+ * id optional in both.
+ */
+public class FaultEventReplay {
+
+  private static final Logger LOGGER = org.slf4j.LoggerFactory.getLogger(FaultEventReplay.class);
+
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+  private final FeederRegistry registry;
+
+  private final FaultLocator faultLocator = new FaultLocator();
+
+  private int threads = Runtime.getRuntime().availableProcessors();
+
+  private int batchSize = 1024;
+
+  private int queueCapacity = 64;
+
+  public FaultEventReplay(FeederRegistry registry) {
+    this.registry = registry;
+  }
+
+  public int getThreads() {
+    return threads;
+  }
+
+  /**
+   * @param threads the number of workers, the default is the number of processors
+   */
+  public void setThreads(int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("Threads must be >= 1, got " + threads);
+    }
+    this.threads = threads;
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  /**
+   * @param batchSize the number of events handed to a worker at a time, the default is 1024
+   */
+  public void setBatchSize(int batchSize) {
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("Batch size must be >= 1, got " + batchSize);
+    }
+    this.batchSize = batchSize;
+  }
+
+  public int getQueueCapacity() {
+    return queueCapacity;
+  }
+
+  /**
+   * @param queueCapacity the number of batches that can wait for a worker, the default is 64
+   */
+  public void setQueueCapacity(int queueCapacity) {
+    if (queueCapacity < 1) {
+      throw new IllegalArgumentException("Queue capacity must be >= 1, got " + queueCapacity);
+    }
+    this.queueCapacity = queueCapacity;
+  }
+
+  /**
+   * Replay every event of a stream.
+   *
+   * @param events    the events
+   * @param jsonLines whether the events are JSON lines rather than CSV
+   * @param output    where the results go, it is flushed but not closed
+   * @return the number of events replayed
+   * @throws IOException if the events can't be read or are malformed, or the output can't be
+   *                     written
+   */
+  public long replay(Reader events, boolean jsonLines, OutputStream output) throws IOException {
+    long startNanos = System.nanoTime();
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0L,
+        TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueCapacity),
+        new ThreadPoolExecutor.CallerRunsPolicy());
+
+    // batches in event order, every one is either queued, running or done
+    Deque<Future<byte[]>> pending = new ArrayDeque<>();
+    int maxPending = threads + queueCapacity;
+    long eventCount = 0;
+
+    try {
+      BufferedReader reader = new BufferedReader(events);
+      List<Event> batch = new ArrayList<>(batchSize);
+      long lineNumber = 0;
+      for (String line; (line = reader.readLine()) != null; ) {
+        lineNumber++;
+        Event event = jsonLines ? parseJsonLine(line, lineNumber)
+            : parseCsvLine(line, lineNumber);
+        if (event == null) {
+          continue;
+        }
+        event.sequence = eventCount++;
+        batch.add(event);
+
+        if (batch.size() == batchSize) {
+          submit(executor, batch, pending);
+          batch = new ArrayList<>(batchSize);
+          // write what is done, and wait for the oldest batch if too many are held
+          writeDone(pending, output, maxPending);
+        }
+      }
+      if (!batch.isEmpty()) {
+        submit(executor, batch, pending);
+      }
+      writeDone(pending, output, 0);
+      output.flush();
+    } finally {
+      executor.shutdownNow();
+    }
+
+    LOGGER.info("Replayed {} event(s) in {} ms", eventCount,
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    return eventCount;
+  }
+
+  private void submit(ThreadPoolExecutor executor, List<Event> batch,
+                      Deque<Future<byte[]>> pending) {
+    pending.addLast(executor.submit(() -> locate(batch)));
+  }
+
+  private static void writeDone(Deque<Future<byte[]>> pending, OutputStream output,
+                                int maxPending) throws IOException {
+    while (!pending.isEmpty() && (pending.size() > maxPending || pending.peekFirst().isDone())) {
+      try {
+        output.write(pending.removeFirst().get());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while replaying", e);
+      } catch (ExecutionException e) {
+        throw new IOException("Failed to locate a batch of events", e.getCause());
+      }
+    }
+  }
+
+  /**
+   * Locate a batch of events, every feeder's events in a single sweep of its tree.
+   *
+   * @return the results of the batch, a JSON line per event, in event order
+   */
+  private byte[] locate(List<Event> batch) throws IOException {
+    Map<String, List<Event>> eventsByFeeder = new LinkedHashMap<>();
+    for (Event event : batch) {
+      eventsByFeeder.computeIfAbsent(event.feederId, id -> new ArrayList<>()).add(event);
+    }
+
+    for (Map.Entry<String, List<Event>> entry : eventsByFeeder.entrySet()) {
+      FeederRegistry.Feeder feeder = registry.get(entry.getKey());
+      if (feeder == null) {
+        for (Event event : entry.getValue()) {
+          event.error = "Unknown feeder: " + entry.getKey();
+        }
+        continue;
+      }
+
+      double[] sorted = entry.getValue().stream().mapToDouble(event -> event.distance).toArray();
+      Arrays.sort(sorted);
+      List<Set<Point>> faultLocations = faultLocator.locateFaults(feeder.getTree(), sorted);
+      for (Event event : entry.getValue()) {
+        event.locations = faultLocations.get(Arrays.binarySearch(sorted, event.distance));
+        event.feeder = feeder;
+      }
+    }
+
+    ByteArrayOutputStream lines = new ByteArrayOutputStream(batch.size() * 96);
+    try (JsonGenerator generator = JSON_FACTORY.createGenerator(lines, JsonEncoding.UTF8)) {
+      // no separator between the objects, each ends its own line instead
+      generator.setRootValueSeparator(null);
+      for (Event event : batch) {
+        writeResult(generator, event);
+        generator.writeRaw('\n');
+      }
+    }
+    return lines.toByteArray();
+  }
+
+  private static void writeResult(JsonGenerator generator, Event event) throws IOException {
+    generator.writeStartObject();
+    generator.writeNumberField("event", event.sequence);
+    if (event.id != null) {
+      generator.writeStringField("id", event.id);
+    }
+    generator.writeStringField("feederId", event.feederId);
+    generator.writeNumberField("distance", event.distance);
+    if (event.error != null) {
+      generator.writeStringField("error", event.error);
+    } else {
+      generator.writeArrayFieldStart("locations");
+      for (Point location : event.locations) {
+        Point point = event.feeder.toLonLat(location);
+        generator.writeStartArray();
+        generator.writeNumber(point.getX());
+        generator.writeNumber(point.getY());
+        generator.writeEndArray();
+      }
+      generator.writeEndArray();
+    }
+    generator.writeEndObject();
+  }
+
+  /**
+   * @return the event, or null for a blank, comment or header line
+   */
+  private static Event parseCsvLine(String line, long lineNumber) throws IOException {
+    line = line.trim();
+    if (line.isEmpty() || line.startsWith("#")) {
+      return null;
+    }
+
+    String[] fields = line.split(",");
+    if (fields.length != 2 && fields.length != 3) {
+      throw new IOException("Line " + lineNumber + ": expected feeder_id,distance[,id], got "
+          + line);
+    }
+
+    double distance;
+    try {
+      distance = Double.parseDouble(fields[1].trim());
+    } catch (NumberFormatException e) {
+      if (lineNumber == 1) {
+        // header
+        return null;
+      }
+      throw new IOException("Line " + lineNumber + ": " + e.getMessage(), e);
+    }
+
+    return new Event(fields[0].trim(), checkDistance(distance, lineNumber),
+        fields.length == 3 ? fields[2].trim() : null);
+  }
+
+  /**
+   * @return the event, or null for a blank line
+   */
+  private static Event parseJsonLine(String line, long lineNumber) throws IOException {
+    if (line.isBlank()) {
+      return null;
+    }
+
+    String feederId = null;
+    Double distance = null;
+    String id = null;
+    try (JsonParser parser = JSON_FACTORY.createParser(line)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new IOException("Line " + lineNumber + ": expected an object, got " + line);
+      }
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.getCurrentName();
+        JsonToken value = parser.nextToken();
+        switch (field) {
+          case "feederId":
+            feederId = value.isScalarValue() ? parser.getText() : null;
+            break;
+          case "distance":
+            distance = value.isNumeric() ? parser.getDoubleValue() : null;
+            break;
+          case "id":
+            id = value.isScalarValue() ? parser.getText() : null;
+            break;
+          default:
+            parser.skipChildren();
+        }
+      }
+    }
+
+    if (feederId == null || distance == null) {
+      throw new IOException("Line " + lineNumber
+          + ": expected feederId and a numeric distance, got " + line);
+    }
+    return new Event(feederId, checkDistance(distance, lineNumber), id);
+  }
+
+  private static double checkDistance(double distance, long lineNumber) throws IOException {
+    if (!Double.isFinite(distance) || distance < 0) {
+      throw new IOException("Line " + lineNumber + ": distance must be >= 0, got " + distance);
+    }
+    return distance;
+  }
+
+  /**
+   * @return whether a file holds JSON lines rather than CSV, going by its extension
+   */
+  static boolean isJsonLines(String fileName) {
+    String name = fileName.toLowerCase(Locale.ROOT);
+    return name.endsWith(".jsonl") || name.endsWith(".ndjson");
+  }
+
+  private static final class Event {
+
+    private final String feederId;
+
+    private final double distance;
+
+    private final String id;
+
+    private long sequence;
+
+    private FeederRegistry.Feeder feeder;
+
+    private Set<Point> locations;
+
+    private String error;
+
+    private Event(String feederId, double distance, String id) {
+      this.feederId = feederId;
+      this.distance = distance;
+      this.id = id;
+    }
+  }
+}
@@ -0,0 +1,95 @@
+package com.yakovliam;
+
+/**
+ * A line-mounted fault circuit indicator: a position on an edge, and whether it saw fault current
+ * pass. A tripped indicator puts the fault downstream of it, one that didn't trip puts the fault
+ * anywhere but downstream of it.
+ * <p>
+ * The indicator keeps its edge's Euler-tour entry and exit indices, so whether a position is
+ * downstream of it is a couple of comparisons, see {@link #isUpstreamOf(int, double)}.
+ */
+public class FaultIndicator {
+
+  private final int edge;
+
+  private final int exitIndex;
+
+  private final double offset;
+
+  private final boolean tripped;
+
+  /**
+   * @param tree    the tree
+   * @param edge    the tree node of the edge the indicator is on
+   * @param offset  how far along the edge, from its start, the indicator is, in meters
+   * @param tripped whether the indicator saw fault current
+   */
+  public FaultIndicator(CompactEdgeTree tree, int edge, double offset, boolean tripped) {
+    if (edge < 0 || edge >= tree.getNodeCount()) {
+      throw new IllegalArgumentException("No such edge: " + edge);
+    }
+    this.edge = edge;
+    this.exitIndex = tree.getExitIndex(edge);
+    this.offset = offset;
+    this.tripped = tripped;
+  }
+
+  /**
+   * @param node    the edge the indicator is on, of a tree numbered by
+   *                {@link EdgeNodeTreeConstructor#indexEulerTour(EdgeNodeTreeConstructor.EdgeNode)}
+   * @param offset  how far along the edge, from its start, the indicator is, in meters
+   * @param tripped whether the indicator saw fault current
+   */
+  public FaultIndicator(EdgeNodeTreeConstructor.EdgeNode node, double offset, boolean tripped) {
+    if (node.getEntryIndex() < 0) {
+      throw new IllegalArgumentException("The edge's tree isn't numbered");
+    }
+    this.edge = node.getEntryIndex();
+    this.exitIndex = node.getExitIndex();
+    this.offset = offset;
+    this.tripped = tripped;
+  }
+
+  /**
+   * @return the tree node, i.e. the entry index, of the edge the indicator is on
+   */
+  public int getEdge() {
+    return edge;
+  }
+
+  /**
+   * @return the largest node number in the subtree of the indicator's edge
+   */
+  public int getExitIndex() {
+    return exitIndex;
+  }
+
+  /**
+   * @return how far along the edge, in meters from its start, the indicator is
+   */
+  public double getOffset() {
+    return offset;
+  }
+
+  public boolean isTripped() {
+    return tripped;
+  }
+
+  /**
+   * @param edge   the tree node of an edge
+   * @param offset how far along the edge, in meters from its start
+   * @return true if current reaching the position passes the indicator, a position at the
+   * indicator included
+   */
+  public boolean isUpstreamOf(int edge, double offset) {
+    if (edge == this.edge) {
+      return offset >= this.offset;
+    }
+    return this.edge < edge && edge <= exitIndex;
+  }
+
+  @Override
+  public String toString() {
+    return "FaultIndicator{edge=" + edge + ", offset=" + offset + ", tripped=" + tripped + "}";
+  }
+}
@@ -0,0 +1,176 @@
+package com.yakovliam;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Keeps the fault candidates that are consistent with a set of fault indicators: downstream of
+ * every tripped indicator and of none that didn't trip.
+ * <p>
+ * In pre-order, the positions downstream of an indicator are one range, from the indicator to the
+ * exit index of its edge, and two such ranges are either nested or disjoint. The tripped
+ * indicators' ranges intersect into a single range, and the others' merge into a sorted list of
+ * disjoint ones, so every candidate is checked with a binary search rather than against every
+ * indicator.
+ */
+public class FaultIndicatorFilter {
+
+  private static final Comparator<FaultIndicator> POSITION_ORDER =
+      Comparator.comparingInt(FaultIndicator::getEdge)
+          .thenComparingDouble(FaultIndicator::getOffset);
+
+  private final int indicatorCount;
+
+  // the range downstream of every tripped indicator, empty if the start is past the exit index
+  private final int trippedEdge;
+
+  private final double trippedOffset;
+
+  private final int trippedExitIndex;
+
+  // the disjoint ranges downstream of any indicator that didn't trip, in order
+  private final int[] clearEdges;
+
+  private final double[] clearOffsets;
+
+  private final int[] clearExitIndices;
+
+  public FaultIndicatorFilter(Collection<FaultIndicator> indicators) {
+    this.indicatorCount = indicators.size();
+
+    int edge = 0;
+    double offset = Double.NEGATIVE_INFINITY;
+    int exitIndex = Integer.MAX_VALUE;
+    List<FaultIndicator> clear = new ArrayList<>();
+    for (FaultIndicator indicator : indicators) {
+      if (!indicator.isTripped()) {
+        clear.add(indicator);
+        continue;
+      }
+      // the later start and the earlier end, nested ranges intersect to the inner one
+      if (indicator.getEdge() > edge
+          || indicator.getEdge() == edge && indicator.getOffset() > offset) {
+        edge = indicator.getEdge();
+        offset = indicator.getOffset();
+      }
+      exitIndex = Math.min(exitIndex, indicator.getExitIndex());
+    }
+    this.trippedEdge = edge;
+    this.trippedOffset = offset;
+    this.trippedExitIndex = exitIndex;
+
+    // a range that starts within the previous kept one is nested in it
+    clear.sort(POSITION_ORDER);
+    List<FaultIndicator> merged = new ArrayList<>(clear.size());
+    for (FaultIndicator indicator : clear) {
+      if (merged.isEmpty()
+          || indicator.getEdge() > merged.get(merged.size() - 1).getExitIndex()) {
+        merged.add(indicator);
+      }
+    }
+    this.clearEdges = new int[merged.size()];
+    this.clearOffsets = new double[merged.size()];
+    this.clearExitIndices = new int[merged.size()];
+    for (int i = 0; i < merged.size(); i++) {
+      clearEdges[i] = merged.get(i).getEdge();
+      clearOffsets[i] = merged.get(i).getOffset();
+      clearExitIndices[i] = merged.get(i).getExitIndex();
+    }
+  }
+
+  /**
+   * @return the number of indicators the filter was built from
+   */
+  public int getIndicatorCount() {
+    return indicatorCount;
+  }
+
+  /**
+   * @return false if the tripped indicators are on different branches, so no position is
+   * consistent with all of them
+   */
+  public boolean isSatisfiable() {
+    return trippedEdge <= trippedExitIndex;
+  }
+
+  /**
+   * @param edge   the tree node of an edge
+   * @param offset how far along the edge, in meters from its start
+   * @return true if a fault at the position is consistent with the indicators
+   */
+  public boolean admits(int edge, double offset) {
+    if (edge < trippedEdge || edge == trippedEdge && offset < trippedOffset
+        || edge > trippedExitIndex) {
+      return false;
+    }
+
+    int range = lastClearRangeFrom(edge, offset);
+    return range < 0 || edge > clearExitIndices[range];
+  }
+
+  /**
+   * @param edge      the tree node of an edge
+   * @param exitIndex the exit index of the edge
+   * @return true if no position on the edge or downstream of it is consistent with the indicators,
+   * so a sweep can skip the whole subtree
+   */
+  public boolean excludesSubtree(int edge, int exitIndex) {
+    if (exitIndex < trippedEdge || edge > trippedExitIndex) {
+      return true;
+    }
+    // ranges are nested or disjoint, one that holds the start of the edge holds its subtree
+    int range = lastClearRangeFrom(edge, 0);
+    return range >= 0 && edge <= clearExitIndices[range];
+  }
+
+  /**
+   * @return the last range downstream of a clear indicator that starts at or before the position,
+   * the only one that can hold it, or -1 if there is none
+   */
+  private int lastClearRangeFrom(int edge, double offset) {
+    int low = 0;
+    int high = clearEdges.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (clearEdges[mid] < edge || clearEdges[mid] == edge && clearOffsets[mid] <= offset) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low - 1;
+  }
+
+  public boolean admits(FaultCandidate candidate) {
+    return admits(candidate.getEdge(), candidate.getOffset());
+  }
+
+  /**
+   * @param candidates the candidates for each distance, e.g. from
+   *                   {@link FaultLocator#locateCandidates(CompactEdgeTree, double[])}
+   * @return the candidates that are consistent with the indicators, for each distance, in the same
+   * order
+   */
+  public List<List<FaultCandidate>> filter(List<List<FaultCandidate>> candidates) {
+    List<List<FaultCandidate>> filtered = new ArrayList<>(candidates.size());
+    for (List<FaultCandidate> distanceCandidates : candidates) {
+      List<FaultCandidate> kept = new ArrayList<>(1);
+      for (FaultCandidate candidate : distanceCandidates) {
+        if (admits(candidate)) {
+          kept.add(candidate);
+        }
+      }
+      filtered.add(kept);
+    }
+    return filtered;
+  }
+
+  @Override
+  public String toString() {
+    return "FaultIndicatorFilter{indicators=" + indicatorCount + ", tripped=[" + trippedEdge + "@"
+        + trippedOffset + ", " + trippedExitIndex + "], clear=" + Arrays.toString(clearEdges) + "}";
+  }
+}
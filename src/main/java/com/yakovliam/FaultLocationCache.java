@@ -0,0 +1,276 @@
+package com.yakovliam;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import org.locationtech.jts.geom.Point;
+
+/**
+ * A size-bounded LRU cache in front of {@link FaultLocator}, for the repeated and near-identical
+ * distances relays and retries send for the same feeder.
+ * <p>
+ * Distances are quantised to a resolution, every distance within the same step gets the fault
+ * locations of the step's center distance, e.g. with the default 1 m resolution 1520.3 m and
+ * 1519.8 m are both located at 1520 m. A resolution of 0 only caches exact repeats.
+ * <p>
+ * Entries are keyed by the {@link FeederRegistry.Feeder#getVersion() version} of the feeder, which
+ * changes whenever the feeder is rebuilt, so a changed topology never gets stale locations. The
+ * cache is split into independently locked segments, so concurrent queries rarely contend.
+ */
+public class FaultLocationCache {
+
+  private static final int SEGMENTS = 16;
+
+  private static final double DEFAULT_RESOLUTION_METERS = 1.0;
+
+  private final double resolution;
+
+  private final Segment[] segments;
+
+  private final FaultLocator faultLocator = new FaultLocator();
+
+  private final LongAdder hits = new LongAdder();
+
+  private final LongAdder misses = new LongAdder();
+
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * @param maxEntries the most distances to keep, across all feeders
+   */
+  public FaultLocationCache(int maxEntries) {
+    this(maxEntries, DEFAULT_RESOLUTION_METERS);
+  }
+
+  /**
+   * @param maxEntries the most distances to keep, across all feeders
+   * @param resolution the step, in meters, distances are rounded to, 0 to cache exact distances
+   */
+  public FaultLocationCache(int maxEntries, double resolution) {
+    if (maxEntries < SEGMENTS) {
+      throw new IllegalArgumentException("Max entries must be >= " + SEGMENTS + ", got "
+          + maxEntries);
+    }
+    if (resolution < 0 || !Double.isFinite(resolution)) {
+      throw new IllegalArgumentException("Resolution must be >= 0, got " + resolution);
+    }
+
+    this.resolution = resolution;
+    this.segments = new Segment[SEGMENTS];
+    for (int i = 0; i < SEGMENTS; i++) {
+      segments[i] = new Segment(maxEntries / SEGMENTS);
+    }
+  }
+
+  public double getResolution() {
+    return resolution;
+  }
+
+  /**
+   * @return the possible fault locations, shared with other callers and unmodifiable
+   */
+  public Set<Point> locateFault(FeederRegistry.Feeder feeder, double distanceMeters) {
+    return locateFaults(feeder, new double[] {distanceMeters}).get(0);
+  }
+
+  /**
+   * Locate several distances, the ones that aren't cached are located in a single sweep.
+   *
+   * @param feeder          the feeder
+   * @param distancesMeters distances of the faults from the source, in ascending order
+   * @return the possible fault locations for each distance, shared with other callers and
+   * unmodifiable
+   */
+  public List<Set<Point>> locateFaults(FeederRegistry.Feeder feeder, double[] distancesMeters) {
+    List<Set<Point>> faultLocations = new ArrayList<>(distancesMeters.length);
+    Key[] keys = new Key[distancesMeters.length];
+
+    // quantising keeps ascending distances ascending, so the misses can be swept as they are
+    double[] missed = new double[distancesMeters.length];
+    int missCount = 0;
+
+    for (int i = 0; i < distancesMeters.length; i++) {
+      keys[i] = new Key(feeder.getVersion(), quantise(distancesMeters[i]));
+      Set<Point> cached = segmentOf(keys[i]).get(keys[i]);
+      faultLocations.add(cached);
+      if (cached == null) {
+        missed[missCount++] = locatedDistance(keys[i], distancesMeters[i]);
+      }
+    }
+
+    hits.add(distancesMeters.length - missCount);
+    misses.add(missCount);
+
+    if (missCount > 0) {
+      double[] missedDistances = missCount == missed.length ? missed
+          : Arrays.copyOf(missed, missCount);
+      List<Set<Point>> located = faultLocator.locateFaults(feeder.getTree(), missedDistances);
+
+      int next = 0;
+      for (int i = 0; i < distancesMeters.length; i++) {
+        if (faultLocations.get(i) == null) {
+          Set<Point> points = Collections.unmodifiableSet(located.get(next++));
+          segmentOf(keys[i]).put(keys[i], points);
+          faultLocations.set(i, points);
+        }
+      }
+    }
+
+    return faultLocations;
+  }
+
+  private long quantise(double distance) {
+    return resolution == 0 ? Double.doubleToLongBits(distance)
+        : Math.round(distance / resolution);
+  }
+
+  /**
+   * @return the distance that is located for a key, the center of its step
+   */
+  private double locatedDistance(Key key, double distance) {
+    return resolution == 0 ? distance : key.quantum * resolution;
+  }
+
+  private Segment segmentOf(Key key) {
+    return segments[(key.hashCode() & 0x7fffffff) % SEGMENTS];
+  }
+
+  /**
+   * Drop every entry.
+   */
+  public void clear() {
+    for (Segment segment : segments) {
+      segment.clear();
+    }
+  }
+
+  public Stats getStats() {
+    int size = 0;
+    for (Segment segment : segments) {
+      size += segment.size();
+    }
+    return new Stats(hits.sum(), misses.sum(), evictions.sum(), size);
+  }
+
+  public static class Stats {
+
+    private final long hits;
+
+    private final long misses;
+
+    private final long evictions;
+
+    private final int size;
+
+    private Stats(long hits, long misses, long evictions, int size) {
+      this.hits = hits;
+      this.misses = misses;
+      this.evictions = evictions;
+      this.size = size;
+    }
+
+    public long getHits() {
+      return hits;
+    }
+
+    public long getMisses() {
+      return misses;
+    }
+
+    public long getEvictions() {
+      return evictions;
+    }
+
+    /**
+     * @return the number of cached distances
+     */
+    public int getSize() {
+      return size;
+    }
+
+    /**
+     * @return the fraction of distances answered from the cache, 0 if there were none
+     */
+    public double getHitRate() {
+      long total = hits + misses;
+      return total == 0 ? 0.0 : (double) hits / total;
+    }
+
+    @Override
+    public String toString() {
+      return "Stats{hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + ", size="
+          + size + "}";
+    }
+  }
+
+  private static final class Key {
+
+    private final long feederVersion;
+
+    private final long quantum;
+
+    private Key(long feederVersion, long quantum) {
+      this.feederVersion = feederVersion;
+      this.quantum = quantum;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key key = (Key) o;
+      return feederVersion == key.feederVersion && quantum == key.quantum;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * Long.hashCode(feederVersion) + Long.hashCode(quantum);
+    }
+  }
+
+  /**
+   * An access-ordered map that drops its least recently used entry when full.
+   */
+  private final class Segment {
+
+    private final Map<Key, Set<Point>> entries;
+
+    private Segment(int maxEntries) {
+      this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Set<Point>> eldest) {
+          if (size() > maxEntries) {
+            evictions.increment();
+            return true;
+          }
+          return false;
+        }
+      };
+    }
+
+    private synchronized Set<Point> get(Key key) {
+      return entries.get(key);
+    }
+
+    private synchronized void put(Key key, Set<Point> points) {
+      entries.put(key, points);
+    }
+
+    private synchronized int size() {
+      return entries.size();
+    }
+
+    private synchronized void clear() {
+      entries.clear();
+    }
+  }
+}
@@ -0,0 +1,515 @@
+package com.yakovliam;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.Point;
+import org.slf4j.Logger;
+
+/**
+ * Local HTTP/JSON service answering fault location queries for the feeders of a
+ * {@link FeederRegistry}.
+ * <ul>
+ *   <li>{@code GET /feeders} lists the feeder ids</li>
+ *   <li>{@code GET /feeders/<id>/faults?distance=<meters>} locates one or more faults, the
+ *   {@code distance} parameter can be repeated or hold a comma separated list</li>
+ *   <li>{@code GET /feeders/<id>/zone?min=<meters>&max=<meters>} returns the parts of every
+ *   branch between two distances from the source, as a GeoJSON MultiLineString</li>
+ *   <li>{@code GET /feeders/<id>/distance?lon=<lon>&lat=<lat>} snaps a position to the nearest
+ *   edge and returns its distance from the source along the feeder</li>
+ *   <li>{@code GET /feeders/<id>/impedance?ohms=<ohms>} locates one or more faults by their
+ *   impedance from the source, for feeders with impedances, see
+ *   {@link FeederRegistry#setImpedanceProperty(String)}. {@code ohms} is repeated like
+ *   {@code distance}</li>
+ *   <li>{@code GET /stats} reports the number of feeders and the cache statistics</li>
+ * </ul>
+ * Every request is handled on its own virtual thread when the JVM has them (Java 21+), and on a
+ * cached thread pool otherwise.
+ */
+public class FaultLocationServer {
+
+  private static final Logger LOGGER =
+      org.slf4j.LoggerFactory.getLogger(FaultLocationServer.class);
+
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+  /**
+   * The most distances a single request can ask for.
+   */
+  private static final int MAX_DISTANCES = 10_000;
+
+  private final FeederRegistry registry;
+
+  private final FaultLocator faultLocator = new FaultLocator();
+
+  private volatile FaultLocationCache cache;
+
+  private HttpServer server;
+
+  private ExecutorService executor;
+
+  public FaultLocationServer(FeederRegistry registry) {
+    this.registry = registry;
+  }
+
+  /**
+   * Answer queries through a cache, or null to always locate.
+   */
+  public void setCache(FaultLocationCache cache) {
+    this.cache = cache;
+  }
+
+  public FaultLocationCache getCache() {
+    return cache;
+  }
+
+  /**
+   * Start listening.
+   *
+   * @param address the address to bind to, port 0 picks a free port
+   * @throws IOException if the server can't bind
+   */
+  public synchronized void start(InetSocketAddress address) throws IOException {
+    if (server != null) {
+      throw new IllegalStateException("Server is already started");
+    }
+
+    executor = newRequestExecutor();
+    server = HttpServer.create(address, 0);
+    server.createContext("/feeders", this::handle);
+    server.createContext("/stats", this::handleStats);
+    server.setExecutor(executor);
+    server.start();
+
+    LOGGER.info("Listening on {} for {} feeder(s)", server.getAddress(), registry.size());
+  }
+
+  /**
+   * Stop listening, waiting up to the given number of seconds for requests in flight.
+   */
+  public synchronized void stop(int delaySeconds) {
+    if (server == null) {
+      return;
+    }
+    server.stop(delaySeconds);
+    executor.shutdown();
+    server = null;
+    executor = null;
+  }
+
+  /**
+   * @return the address the server is bound to
+   */
+  public synchronized InetSocketAddress getAddress() {
+    if (server == null) {
+      throw new IllegalStateException("Server is not started");
+    }
+    return server.getAddress();
+  }
+
+  /**
+   * A virtual thread per request if the JVM has them, found reflectively so the service still
+   * runs on older JVMs.
+   */
+  private static ExecutorService newRequestExecutor() {
+    try {
+      ExecutorService executor = (ExecutorService) Executors.class
+          .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      LOGGER.info("Handling requests on virtual threads");
+      return executor;
+    } catch (ReflectiveOperationException e) {
+      LOGGER.info("Virtual threads not available, handling requests on a cached thread pool");
+      return Executors.newCachedThreadPool();
+    }
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      if (!"GET".equals(exchange.getRequestMethod())) {
+        sendError(exchange, 405, "Only GET is supported");
+        return;
+      }
+
+      // "", "feeders", "<id>", "faults"
+      String[] path = exchange.getRequestURI().getPath().split("/");
+      if (path.length < 2 || !"feeders".equals(path[1])) {
+        sendError(exchange, 404, "Not found");
+      } else if (path.length == 2) {
+        sendFeederIds(exchange);
+      } else if (path.length == 4 && "faults".equals(path[3])) {
+        String id = URLDecoder.decode(path[2], StandardCharsets.UTF_8);
+        sendFaults(exchange, id, exchange.getRequestURI().getRawQuery());
+      } else if (path.length == 4 && "zone".equals(path[3])) {
+        String id = URLDecoder.decode(path[2], StandardCharsets.UTF_8);
+        sendZone(exchange, id, exchange.getRequestURI().getRawQuery());
+      } else if (path.length == 4 && "distance".equals(path[3])) {
+        String id = URLDecoder.decode(path[2], StandardCharsets.UTF_8);
+        sendDistance(exchange, id, exchange.getRequestURI().getRawQuery());
+      } else if (path.length == 4 && "impedance".equals(path[3])) {
+        String id = URLDecoder.decode(path[2], StandardCharsets.UTF_8);
+        sendImpedanceFaults(exchange, id, exchange.getRequestURI().getRawQuery());
+      } else {
+        sendError(exchange, 404, "Not found");
+      }
+    } catch (IllegalArgumentException e) {
+      sendError(exchange, 400, e.getMessage());
+    } catch (RuntimeException e) {
+      LOGGER.error("Failed to handle {}", exchange.getRequestURI(), e);
+      sendError(exchange, 500, "Internal error");
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private void handleStats(HttpExchange exchange) throws IOException {
+    try {
+      FaultLocationCache cache = this.cache;
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      try (JsonGenerator generator = JSON_FACTORY.createGenerator(body, JsonEncoding.UTF8)) {
+        generator.writeStartObject();
+        generator.writeNumberField("feeders", registry.size());
+        if (cache != null) {
+          FaultLocationCache.Stats stats = cache.getStats();
+          generator.writeObjectFieldStart("cache");
+          generator.writeNumberField("hits", stats.getHits());
+          generator.writeNumberField("misses", stats.getMisses());
+          generator.writeNumberField("evictions", stats.getEvictions());
+          generator.writeNumberField("size", stats.getSize());
+          generator.writeNumberField("hitRate", stats.getHitRate());
+          generator.writeEndObject();
+        }
+        writeMetrics(generator, Metrics.getGlobal());
+        generator.writeEndObject();
+      }
+      send(exchange, 200, body.toByteArray());
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private static void writeMetrics(JsonGenerator generator, Metrics metrics) throws IOException {
+    generator.writeObjectFieldStart("metrics");
+    for (Metrics.Stage stage : Metrics.Stage.values()) {
+      Metrics.Histogram latency = metrics.getLatency(stage);
+      generator.writeObjectFieldStart(stage.name().toLowerCase(Locale.ROOT));
+      generator.writeNumberField("count", latency.getCount());
+      generator.writeNumberField("meanMicros", latency.getMean() / 1_000.0);
+      generator.writeNumberField("p50Micros", latency.getPercentile(50) / 1_000.0);
+      generator.writeNumberField("p99Micros", latency.getPercentile(99) / 1_000.0);
+      generator.writeNumberField("maxMicros", latency.getMax() / 1_000.0);
+      generator.writeEndObject();
+    }
+    writeHistogram(generator, "nodesVisited", metrics.getNodesVisited());
+    writeHistogram(generator, "geodesicCalls", metrics.getGeodesicCalls());
+    generator.writeEndObject();
+  }
+
+  private static void writeHistogram(JsonGenerator generator, String name,
+                                     Metrics.Histogram histogram) throws IOException {
+    generator.writeObjectFieldStart(name);
+    generator.writeNumberField("mean", histogram.getMean());
+    generator.writeNumberField("p50", histogram.getPercentile(50));
+    generator.writeNumberField("p99", histogram.getPercentile(99));
+    generator.writeNumberField("max", histogram.getMax());
+    generator.writeEndObject();
+  }
+
+  private void sendFeederIds(HttpExchange exchange) throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    try (JsonGenerator generator = JSON_FACTORY.createGenerator(body, JsonEncoding.UTF8)) {
+      generator.writeStartObject();
+      generator.writeArrayFieldStart("feeders");
+      for (String id : registry.getFeederIds()) {
+        generator.writeString(id);
+      }
+      generator.writeEndArray();
+      generator.writeEndObject();
+    }
+    send(exchange, 200, body.toByteArray());
+  }
+
+  private void sendFaults(HttpExchange exchange, String id, String query) throws IOException {
+    FeederRegistry.Feeder feeder = registry.get(id);
+    if (feeder == null) {
+      sendError(exchange, 404, "Unknown feeder: " + id);
+      return;
+    }
+
+    double[] distances = parseDistances(query);
+
+    // the locator sweeps ascending distances, answer in the order they were asked
+    double[] sorted = distances.clone();
+    Arrays.sort(sorted);
+    FaultLocationCache cache = this.cache;
+    List<Set<Point>> faultLocations = cache == null
+        ? faultLocator.locateFaults(feeder.getTree(), sorted)
+        : cache.locateFaults(feeder, sorted);
+
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    try (JsonGenerator generator = JSON_FACTORY.createGenerator(body, JsonEncoding.UTF8)) {
+      generator.writeStartObject();
+      generator.writeStringField("feederId", feeder.getId());
+      generator.writeArrayFieldStart("faults");
+      for (double distance : distances) {
+        generator.writeStartObject();
+        generator.writeNumberField("distance", distance);
+        generator.writeArrayFieldStart("locations");
+        for (Point location : faultLocations.get(Arrays.binarySearch(sorted, distance))) {
+          Point point = feeder.toLonLat(location);
+          generator.writeStartArray();
+          generator.writeNumber(point.getX());
+          generator.writeNumber(point.getY());
+          generator.writeEndArray();
+        }
+        generator.writeEndArray();
+        generator.writeEndObject();
+      }
+      generator.writeEndArray();
+      generator.writeEndObject();
+    }
+    send(exchange, 200, body.toByteArray());
+  }
+
+  private void sendImpedanceFaults(HttpExchange exchange, String id, String query)
+      throws IOException {
+    FeederRegistry.Feeder feeder = registry.get(id);
+    if (feeder == null) {
+      sendError(exchange, 404, "Unknown feeder: " + id);
+      return;
+    }
+    ImpedanceProfile profile = feeder.getImpedanceProfile();
+    if (profile == null) {
+      sendError(exchange, 404, "Feeder has no impedances: " + id);
+      return;
+    }
+
+    double[] impedances = parseValues(query, "ohms");
+    double[] sorted = impedances.clone();
+    Arrays.sort(sorted);
+    List<List<FaultCandidate>> candidates = faultLocator.locateCandidates(profile, sorted);
+
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    try (JsonGenerator generator = JSON_FACTORY.createGenerator(body, JsonEncoding.UTF8)) {
+      generator.writeStartObject();
+      generator.writeStringField("feederId", feeder.getId());
+      generator.writeArrayFieldStart("faults");
+      for (double impedance : impedances) {
+        generator.writeStartObject();
+        generator.writeNumberField("ohms", impedance);
+        generator.writeArrayFieldStart("locations");
+        for (FaultCandidate candidate : candidates.get(Arrays.binarySearch(sorted, impedance))) {
+          Point point = feeder.toLonLat(candidate.getPoint());
+          generator.writeStartObject();
+          generator.writeNumberField("distance", candidate.getDistance());
+          generator.writeNumberField("edge", candidate.getEdge());
+          generator.writeNumberField("segment", candidate.getSegmentIndex());
+          generator.writeNumberField("offset", candidate.getOffset());
+          generator.writeArrayFieldStart("point");
+          generator.writeNumber(point.getX());
+          generator.writeNumber(point.getY());
+          generator.writeEndArray();
+          generator.writeEndObject();
+        }
+        generator.writeEndArray();
+        generator.writeEndObject();
+      }
+      generator.writeEndArray();
+      generator.writeEndObject();
+    }
+    send(exchange, 200, body.toByteArray());
+  }
+
+  private void sendDistance(HttpExchange exchange, String id, String query) throws IOException {
+    FeederRegistry.Feeder feeder = registry.get(id);
+    if (feeder == null) {
+      sendError(exchange, 404, "Unknown feeder: " + id);
+      return;
+    }
+
+    double lon = parseNumber(query, "lon");
+    double lat = parseNumber(query, "lat");
+    ReverseLocator.Location location =
+        feeder.getReverseLocator().locate(feeder.fromLonLat(lon, lat));
+    if (location == null) {
+      sendError(exchange, 404, "Feeder has no edges: " + id);
+      return;
+    }
+
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    try (JsonGenerator generator = JSON_FACTORY.createGenerator(body, JsonEncoding.UTF8)) {
+      generator.writeStartObject();
+      generator.writeStringField("feederId", feeder.getId());
+      generator.writeNumberField("distance", location.getDistanceFromSource());
+      generator.writeNumberField("edge", location.getEdge());
+      generator.writeNumberField("segment", location.getSegmentIndex());
+      generator.writeNumberField("offset", location.getOffset());
+      generator.writeNumberField("snapMeters", location.getSnapMeters());
+      Point point = feeder.toLonLat(location.getPoint());
+      generator.writeArrayFieldStart("point");
+      generator.writeNumber(point.getX());
+      generator.writeNumber(point.getY());
+      generator.writeEndArray();
+      generator.writeArrayFieldStart("branchPath");
+      for (int node : location.getBranchPath()) {
+        generator.writeNumber(node);
+      }
+      generator.writeEndArray();
+      generator.writeEndObject();
+    }
+    send(exchange, 200, body.toByteArray());
+  }
+
+  private void sendZone(HttpExchange exchange, String id, String query) throws IOException {
+    FeederRegistry.Feeder feeder = registry.get(id);
+    if (feeder == null) {
+      sendError(exchange, 404, "Unknown feeder: " + id);
+      return;
+    }
+
+    double min = parseNumber(query, "min");
+    double max = parseNumber(query, "max");
+    List<LineString> zone = feeder.getDistanceIndex().locateBand(min, max);
+
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    try (JsonGenerator generator = JSON_FACTORY.createGenerator(body, JsonEncoding.UTF8)) {
+      generator.writeStartObject();
+      generator.writeStringField("type", "MultiLineString");
+      generator.writeArrayFieldStart("coordinates");
+      for (LineString lineString : zone) {
+        CoordinateSequence sequence = feeder.toLonLat(lineString).getCoordinateSequence();
+        generator.writeStartArray();
+        for (int i = 0; i < sequence.size(); i++) {
+          generator.writeStartArray();
+          generator.writeNumber(sequence.getX(i));
+          generator.writeNumber(sequence.getY(i));
+          generator.writeEndArray();
+        }
+        generator.writeEndArray();
+      }
+      generator.writeEndArray();
+      generator.writeEndObject();
+    }
+    send(exchange, 200, body.toByteArray());
+  }
+
+  /**
+   * @return the single value of a query parameter, as a number
+   * @throws IllegalArgumentException if it is missing, repeated or not a finite number
+   */
+  static double parseNumber(String query, String name) {
+    String found = null;
+    if (query != null) {
+      for (String parameter : query.split("&")) {
+        if (parameter.startsWith(name + "=")) {
+          if (found != null) {
+            throw new IllegalArgumentException("Expected a single " + name + " parameter");
+          }
+          found = URLDecoder.decode(parameter.substring(name.length() + 1),
+              StandardCharsets.UTF_8);
+        }
+      }
+    }
+    if (found == null) {
+      throw new IllegalArgumentException("Expected a " + name + " parameter");
+    }
+
+    double number;
+    try {
+      number = Double.parseDouble(found.trim());
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Not a number: " + name + "=" + found);
+    }
+    if (!Double.isFinite(number)) {
+      throw new IllegalArgumentException("Not a number: " + name + "=" + found);
+    }
+    return number;
+  }
+
+  /**
+   * @return every {@code distance} of the query, in the order given
+   * @throws IllegalArgumentException if there is none, or one isn't a finite number
+   */
+  static double[] parseDistances(String query) {
+    return parseValues(query, "distance");
+  }
+
+  /**
+   * @return every value of a query parameter, which can be repeated or hold a comma separated list,
+   * in the order given
+   * @throws IllegalArgumentException if there is none, or one isn't a finite number
+   */
+  static double[] parseValues(String query, String name) {
+    double[] values = new double[8];
+    int count = 0;
+
+    if (query != null) {
+      for (String parameter : query.split("&")) {
+        int equals = parameter.indexOf('=');
+        String parameterName = equals < 0 ? parameter : parameter.substring(0, equals);
+        if (!name.equals(parameterName) || equals < 0) {
+          continue;
+        }
+
+        String value = URLDecoder.decode(parameter.substring(equals + 1), StandardCharsets.UTF_8);
+        for (String number : value.split(",")) {
+          if (count == MAX_DISTANCES) {
+            throw new IllegalArgumentException("At most " + MAX_DISTANCES + " " + name
+                + " values");
+          }
+          if (count == values.length) {
+            values = Arrays.copyOf(values, count * 2);
+          }
+          try {
+            values[count] = Double.parseDouble(number.trim());
+          } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a number: " + name + "=" + number);
+          }
+          if (!Double.isFinite(values[count])) {
+            throw new IllegalArgumentException("Not a number: " + name + "=" + number);
+          }
+          count++;
+        }
+      }
+    }
+
+    if (count == 0) {
+      throw new IllegalArgumentException("Expected at least one " + name + " parameter");
+    }
+    return Arrays.copyOf(values, count);
+  }
+
+  private static void sendError(HttpExchange exchange, int status, String message)
+      throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    try (JsonGenerator generator = JSON_FACTORY.createGenerator(body, JsonEncoding.UTF8)) {
+      generator.writeStartObject();
+      generator.writeStringField("error", message);
+      generator.writeEndObject();
+    }
+    send(exchange, status, body.toByteArray());
+  }
+
+  private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+    exchange.sendResponseHeaders(status, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+}
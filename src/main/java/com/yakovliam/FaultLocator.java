@@ -1,7 +1,14 @@
 package com.yakovliam;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.function.IntToDoubleFunction;
 import org.locationtech.jts.geom.LineString;
 import org.locationtech.jts.geom.Point;
 import org.slf4j.Logger;
@@ -12,29 +19,429 @@ public class FaultLocator {
   private static final Logger LOGGER = LoggerFactory.getLogger(FaultLocator.class);
 
   public Set<Point> locateFault(EdgeNodeTreeConstructor.EdgeNode rootNode, double distanceMeters) {
+    long startNanos = System.nanoTime();
+
     // walk the tree and locate the multiple possible fault locations
     Set<Point> faultLocations = new CopyOnWriteArraySet<>();
-    walkTree(rootNode, distanceMeters, faultLocations);
+    long[] work = new long[2];
+    walkTree(rootNode, distanceMeters, null, faultLocations, work);
 
+    Metrics.getGlobal().recordQuery(1, work[0], work[1], startNanos);
     return faultLocations;
   }
 
-  private void walkTree(EdgeNodeTreeConstructor.EdgeNode node, double distanceToWalkRemaining,
-                        Set<Point> faultLocations) {
-    LOGGER.info("Walking tree with distance: {}", distanceToWalkRemaining);
-    LOGGER.info("This edge length: {}",
-        GeometryUtil.getLengthInMeters(node.getEdge().getLineString()));
+  /**
+   * Locate the possible fault locations that are consistent with a set of fault indicators.
+   *
+   * @param rootNode       the root of a numbered tree, as built by
+   *                       {@link EdgeNodeTreeConstructor}
+   * @param distanceMeters distance of the fault from the source
+   * @param indicators     the indicators
+   * @return the possible fault locations the indicators allow
+   */
+  public Set<Point> locateFault(EdgeNodeTreeConstructor.EdgeNode rootNode, double distanceMeters,
+                                FaultIndicatorFilter indicators) {
+    long startNanos = System.nanoTime();
+
+    Set<Point> faultLocations = new CopyOnWriteArraySet<>();
+    long[] work = new long[2];
+    if (indicators.isSatisfiable()) {
+      walkTree(rootNode, distanceMeters, indicators, faultLocations, work);
+    }
+
+    Metrics.getGlobal().recordQuery(1, work[0], work[1], startNanos);
+    return faultLocations;
+  }
+
+  /**
+   * Locate the possible fault locations on a compiled tree. No geodesic math is done while walking,
+   * only the edges that contain the distance compute a point.
+   *
+   * @param tree           the compiled tree
+   * @param distanceMeters distance of the fault from the source
+   * @return the possible fault locations, one per branch the distance falls on
+   */
+  public Set<Point> locateFault(CompiledEdgeTree tree, double distanceMeters) {
+    return locateFaults(tree, new double[] {distanceMeters}).get(0);
+  }
+
+  /**
+   * Locate the possible fault locations for several distances in a single sweep of the tree, every
+   * edge is visited at most once per call rather than once per distance.
+   *
+   * @param tree            the compiled tree
+   * @param distancesMeters distances of the faults from the source, in ascending order
+   * @return the possible fault locations for each distance, in the same order as the distances
+   */
+  public List<Set<Point>> locateFaults(CompiledEdgeTree tree, double[] distancesMeters) {
+    long startNanos = System.nanoTime();
+    List<Set<Point>> faultLocations = createResults(distancesMeters);
+
+    if (distancesMeters.length == 0) {
+      return faultLocations;
+    }
+
+    long nodesVisited = 0;
+    long geodesicCalls = 0;
+
+    // every node is paired with the index of the first distance that can reach it, the distances
+    // before that one all ended upstream
+    Deque<CompiledEdgeTree.CompiledEdgeNode> stack = new ArrayDeque<>();
+    Deque<Integer> firstDistances = new ArrayDeque<>();
+    stack.push(tree.getRoot());
+    firstDistances.push(0);
+
+    while (!stack.isEmpty()) {
+      CompiledEdgeTree.CompiledEdgeNode node = stack.pop();
+      int from = firstDistances.pop();
+      nodesVisited++;
+
+      // skip the distances that are before this edge
+      from = firstAbove(distancesMeters, from, node.getDistanceFromSource());
+      int past = firstAbove(distancesMeters, from, node.getDistanceToEnd());
+
+      // these distances are on this edge
+      for (int i = from; i < past; i++) {
+        // clamp, subtracting the start distance back out can overshoot the length by an ulp
+        double distanceAlongEdge =
+            Math.min(distancesMeters[i] - node.getDistanceFromSource(), node.getLength());
+        Point point = GeometryUtil.locateAlongLineString(node.getLineString(),
+            node.getCumulativeDistances(), distanceAlongEdge);
+        geodesicCalls++;
+
+        if (point == null) {
+          LOGGER.warn("Point is null");
+          continue;
+        }
+
+        faultLocations.get(i).add(point);
+      }
+
+      // the remaining distances are past this edge, walk the children edges
+      if (past < distancesMeters.length) {
+        for (int i = node.getChildCount() - 1; i >= 0; i--) {
+          stack.push(node.getChild(i));
+          firstDistances.push(past);
+        }
+      }
+    }
+
+    Metrics.getGlobal().recordQuery(distancesMeters.length, nodesVisited, geodesicCalls,
+        startNanos);
+    return faultLocations;
+  }
+
+  /**
+   * Locate the possible fault locations for several distances on a compact tree, e.g. straight
+   * from a memory-mapped snapshot, in a single sweep like
+   * {@link #locateFaults(CompiledEdgeTree, double[])}.
+   *
+   * @param tree            the compact tree
+   * @param distancesMeters distances of the faults from the source, in ascending order
+   * @return the possible fault locations for each distance, in the same order as the distances
+   */
+  public List<Set<Point>> locateFaults(CompactEdgeTree tree, double[] distancesMeters) {
+    List<Set<Point>> faultLocations = createResults(distancesMeters);
+
+    sweep(tree, distancesMeters, (i, node, distanceAlongEdge) -> {
+      Point point = tree.locateAlongEdge(node, distanceAlongEdge);
+
+      if (point == null) {
+        LOGGER.warn("Point is null");
+        return;
+      }
+
+      faultLocations.get(i).add(point);
+    });
+
+    return faultLocations;
+  }
+
+  /**
+   * Locate the possible fault locations for several distances on a lazily built tree, which is
+   * first materialised as far as the furthest distance.
+   *
+   * @param tree            the lazily built tree
+   * @param distancesMeters distances of the faults from the source, in ascending order
+   * @return the possible fault locations for each distance, in the same order as the distances
+   */
+  public List<Set<Point>> locateFaults(LazyEdgeTree tree, double[] distancesMeters) {
+    checkAscending(distancesMeters);
+    double furthest = distancesMeters.length == 0 ? 0 : distancesMeters[distancesMeters.length - 1];
+    return locateFaults(tree.compile(furthest), distancesMeters);
+  }
+
+  /**
+   * Locate the possible fault locations for several shortest-path distances on a meshed network,
+   * see {@link FeederGraph#locateCandidates(double[])}.
+   *
+   * @param graph           the graph of the network
+   * @param distancesMeters distances of the faults from the source, in ascending order
+   * @return the possible fault locations for each distance, in the same order as the distances
+   */
+  public List<Set<Point>> locateFaults(FeederGraph graph, double[] distancesMeters) {
+    List<Set<Point>> faultLocations = createResults(distancesMeters);
+    List<List<FaultCandidate>> candidates = graph.locateCandidates(distancesMeters);
+    for (int i = 0; i < distancesMeters.length; i++) {
+      for (FaultCandidate candidate : candidates.get(i)) {
+        faultLocations.get(i).add(candidate.getPoint());
+      }
+    }
+    return faultLocations;
+  }
+
+  /**
+   * Locate the possible fault locations for several distances on a compact tree, with the edge
+   * each one is on and how far along it, in a single sweep like
+   * {@link #locateFaults(CompactEdgeTree, double[])}.
+   *
+   * @param tree            the compact tree
+   * @param distancesMeters distances of the faults from the source, in ascending order
+   * @return the candidates for each distance, in the same order as the distances, and each
+   * distance's candidates in tree order
+   */
+  public List<List<FaultCandidate>> locateCandidates(CompactEdgeTree tree,
+                                                     double[] distancesMeters) {
+    checkAscending(distancesMeters);
+    List<List<FaultCandidate>> candidates = new ArrayList<>(distancesMeters.length);
+    for (int i = 0; i < distancesMeters.length; i++) {
+      candidates.add(new ArrayList<>(1));
+    }
+
+    sweep(tree, distancesMeters, (i, node, distanceAlongEdge) -> {
+      Point point = tree.locateAlongEdge(node, distanceAlongEdge);
+
+      if (point == null) {
+        LOGGER.warn("Point is null");
+        return;
+      }
+
+      candidates.get(i).add(new FaultCandidate(distancesMeters[i], node,
+          tree.getSegmentIndex(node), distanceAlongEdge, point));
+    });
 
+    return candidates;
+  }
+
+  /**
+   * Locate the candidates for several distances that are consistent with a set of fault
+   * indicators, like {@link #locateCandidates(CompactEdgeTree, double[])}. Subtrees the indicators
+   * rule out entirely are not walked, and candidates they rule out are dropped before their point
+   * is computed.
+   *
+   * @param tree            the compact tree
+   * @param distancesMeters distances of the faults from the source, in ascending order
+   * @param indicators      the indicators, with edges of the same tree
+   * @return the candidates for each distance the indicators allow, in the same order as the
+   * distances, and each distance's candidates in tree order
+   */
+  public List<List<FaultCandidate>> locateCandidates(CompactEdgeTree tree,
+                                                     double[] distancesMeters,
+                                                     FaultIndicatorFilter indicators) {
+    checkAscending(distancesMeters);
+    List<List<FaultCandidate>> candidates = new ArrayList<>(distancesMeters.length);
+    for (int i = 0; i < distancesMeters.length; i++) {
+      candidates.add(new ArrayList<>(1));
+    }
+    if (!indicators.isSatisfiable()) {
+      return candidates;
+    }
+
+    sweep(tree, tree::getDistanceFromSource, tree::getLength, indicators, distancesMeters,
+        (i, node, distanceAlongEdge) -> {
+          if (!indicators.admits(node, distanceAlongEdge)) {
+            return;
+          }
+          Point point = tree.locateAlongEdge(node, distanceAlongEdge);
+
+          if (point == null) {
+            LOGGER.warn("Point is null");
+            return;
+          }
+
+          candidates.get(i).add(new FaultCandidate(distancesMeters[i], node,
+              tree.getSegmentIndex(node), distanceAlongEdge, point));
+        });
+
+    return candidates;
+  }
+
+  /**
+   * Locate the candidates for several fault impedances, e.g. the reactances a relay reports, on
+   * every branch in a single sweep like {@link #locateCandidates(CompactEdgeTree, double[])}, with
+   * the impedance of every edge's own conductor.
+   *
+   * @param profile        the impedances of the tree
+   * @param impedancesOhms impedances of the faults from the source, in ascending order
+   * @return the candidates for each impedance, in the same order as the impedances, and each
+   * impedance's candidates in tree order. A candidate's distance is its distance from the source
+   */
+  public List<List<FaultCandidate>> locateCandidates(ImpedanceProfile profile,
+                                                     double[] impedancesOhms) {
+    checkAscending(impedancesOhms);
+    CompactEdgeTree tree = profile.getTree();
+    List<List<FaultCandidate>> candidates = new ArrayList<>(impedancesOhms.length);
+    for (int i = 0; i < impedancesOhms.length; i++) {
+      candidates.add(new ArrayList<>(1));
+    }
+
+    sweep(tree, profile::getImpedanceFromSource, profile::getImpedance, null, impedancesOhms,
+        (i, node, ohmsAlongEdge) -> {
+          double distanceAlongEdge = profile.getOffset(node, ohmsAlongEdge);
+          Point point = tree.locateAlongEdge(node, distanceAlongEdge);
+
+          if (point == null) {
+            LOGGER.warn("Point is null");
+            return;
+          }
+
+          candidates.get(i).add(new FaultCandidate(
+              tree.getDistanceFromSource(node) + distanceAlongEdge, node,
+              tree.getSegmentIndex(node), distanceAlongEdge, point));
+        });
+
+    return candidates;
+  }
+
+  /**
+   * Visit every edge each distance falls on, in pre-order. Every hit costs one geodesic
+   * calculation.
+   */
+  private static void sweep(CompactEdgeTree tree, double[] distancesMeters, EdgeHit hit) {
+    sweep(tree, tree::getDistanceFromSource, tree::getLength, null, distancesMeters, hit);
+  }
+
+  /**
+   * Visit every edge each value of a measure that grows along every branch falls on, e.g.
+   * distance or impedance from the source, in pre-order.
+   *
+   * @param startOf    the measure at the start of an edge
+   * @param spanOf     how much the measure grows across an edge
+   * @param indicators the indicators whose ruled out subtrees are skipped, or null to walk them all
+   * @param values     the values, in ascending order
+   * @param hit        called with the measure along the edge for every hit
+   */
+  private static void sweep(CompactEdgeTree tree, IntToDoubleFunction startOf,
+                            IntToDoubleFunction spanOf, FaultIndicatorFilter indicators,
+                            double[] values, EdgeHit hit) {
+    if (values.length == 0) {
+      return;
+    }
+
+    long startNanos = System.nanoTime();
+    long nodesVisited = 0;
+    long hits = 0;
+
+    // nodes and the first value that can reach them, as parallel int stacks
+    int[] nodeStack = new int[64];
+    int[] firstValueStack = new int[64];
+    int size = 0;
+    nodeStack[size] = 0;
+    firstValueStack[size++] = 0;
+
+    while (size > 0) {
+      size--;
+      int node = nodeStack[size];
+      int from = firstValueStack[size];
+      if (indicators != null && indicators.excludesSubtree(node, tree.getExitIndex(node))) {
+        continue;
+      }
+      nodesVisited++;
+
+      double start = startOf.applyAsDouble(node);
+      double span = spanOf.applyAsDouble(node);
+      from = firstAbove(values, from, start);
+      int past = firstAbove(values, from, start + span);
+
+      for (int i = from; i < past; i++) {
+        // clamp, subtracting the start back out can overshoot the span by an ulp
+        hit.accept(i, node, Math.min(values[i] - start, span));
+      }
+      hits += past - from;
+
+      if (past < values.length) {
+        int childCount = tree.getChildCount(node);
+        if (size + childCount > nodeStack.length) {
+          int capacity = Math.max(nodeStack.length * 2, size + childCount);
+          nodeStack = Arrays.copyOf(nodeStack, capacity);
+          firstValueStack = Arrays.copyOf(firstValueStack, capacity);
+        }
+        for (int i = childCount - 1; i >= 0; i--) {
+          nodeStack[size] = tree.getChild(node, i);
+          firstValueStack[size++] = past;
+        }
+      }
+    }
+
+    Metrics.getGlobal().recordQuery(values.length, nodesVisited, hits, startNanos);
+  }
+
+  /**
+   * @return one empty set per distance
+   * @throws IllegalArgumentException if the distances are not in ascending order
+   */
+  private static List<Set<Point>> createResults(double[] distancesMeters) {
+    checkAscending(distancesMeters);
+
+    List<Set<Point>> faultLocations = new ArrayList<>(distancesMeters.length);
+    for (int i = 0; i < distancesMeters.length; i++) {
+      faultLocations.add(new LinkedHashSet<>());
+    }
+    return faultLocations;
+  }
+
+  static void checkAscending(double[] distancesMeters) {
+    for (int i = 1; i < distancesMeters.length; i++) {
+      if (distancesMeters[i] < distancesMeters[i - 1]) {
+        throw new IllegalArgumentException("Distances must be in ascending order");
+      }
+    }
+  }
+
+  /**
+   * @return the index of the first distance at or after {@code from} that is greater than the
+   * bound, or the length of the array if there is none
+   */
+  private static int firstAbove(double[] sortedDistances, int from, double bound) {
+    int low = from;
+    int high = sortedDistances.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (sortedDistances[mid] <= bound) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * @param indicators the indicators the fault locations have to be consistent with, or null
+   * @param work       the number of nodes visited and geodesic calculations done, added to
+   */
+  private void walkTree(EdgeNodeTreeConstructor.EdgeNode node, double distanceToWalkRemaining,
+                        FaultIndicatorFilter indicators, Set<Point> faultLocations,
+                        long[] work) {
     // if we have no more distance to walk, return
     if (distanceToWalkRemaining <= 0) {
       return;
     }
 
+    LineString lineString = node.getEdge().getLineString();
+    double length = GeometryUtil.getLengthInMeters(lineString);
+    work[0]++;
+    work[1] += lineString.getNumPoints() - 1;
+
     // if the distance left is less than the length of the edge, we can calculate the point
     // on this edge and add it to the fault locations
-    if (distanceToWalkRemaining <= GeometryUtil.getLengthInMeters(node.getEdge().getLineString())) {
-      Point point =
-          calculatePointOnLineString(node.getEdge().getLineString(), distanceToWalkRemaining);
+    if (distanceToWalkRemaining <= length) {
+      if (indicators != null
+          && !indicators.admits(node.getEntryIndex(), distanceToWalkRemaining)) {
+        return;
+      }
+      Point point = calculatePointOnLineString(lineString, distanceToWalkRemaining);
+      work[1] += lineString.getNumPoints();
 
       if (point == null) {
         LOGGER.warn("Point is null");
@@ -48,13 +455,19 @@ public class FaultLocator {
     // if we have more distance to walk than the length of the edge, we need to walk the children
     // edges
     for (EdgeNodeTreeConstructor.EdgeNode child : node.getChildren()) {
-      walkTree(child,
-          distanceToWalkRemaining - GeometryUtil.getLengthInMeters(node.getEdge().getLineString()),
-          faultLocations);
+      walkTree(child, distanceToWalkRemaining - length, indicators, faultLocations, work);
     }
   }
 
   private Point calculatePointOnLineString(LineString lineString, double distanceMeters) {
     return GeometryUtil.locateAlong(lineString, distanceMeters);
   }
+
+  /**
+   * An edge a distance falls on, see {@link #sweep(CompactEdgeTree, double[], EdgeHit)}.
+   */
+  private interface EdgeHit {
+
+    void accept(int distanceIndex, int node, double distanceAlongEdge);
+  }
 }
@@ -0,0 +1,160 @@
+package com.yakovliam;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.MultiLineString;
+import org.locationtech.jts.geom.impl.PackedCoordinateSequence;
+
+/**
+ * The LineStrings of a feeder held in flat primitive arrays, as read by
+ * {@link GeoJsonStreamReader}.
+ * <p>
+ * The x/y of every vertex are interleaved in one {@code double[]}, and LineString {@code i} spans
+ * the vertices from {@code getStart(i)} (inclusive) to {@code getStart(i + 1)} (exclusive).
+ */
+public class FeederGeometry implements LineStringCoordinates {
+
+  private final double[] coordinates;
+
+  private final int[] offsets;
+
+  private final List<String> featureIds;
+
+  private final List<Map<String, Object>> properties;
+
+  private final int srid;
+
+  /**
+   * @param coordinates the interleaved x/y of every vertex, WGS84 lon/lat
+   * @param offsets     the index of the first vertex of every LineString, followed by the number
+   *                    of vertices
+   * @param featureIds  the id of the feature every LineString came from, null entries if none
+   * @param properties  the properties of the feature every LineString came from, empty if none
+   */
+  public FeederGeometry(double[] coordinates, int[] offsets, List<String> featureIds,
+                        List<Map<String, Object>> properties) {
+    this(coordinates, offsets, featureIds, properties, CoordinateSystems.WGS84);
+  }
+
+  /**
+   * @param coordinates the interleaved x/y of every vertex
+   * @param offsets     the index of the first vertex of every LineString, followed by the number
+   *                    of vertices
+   * @param featureIds  the id of the feature every LineString came from, null entries if none
+   * @param properties  the properties of the feature every LineString came from, empty if none
+   * @param srid        the SRID of the coordinates
+   */
+  public FeederGeometry(double[] coordinates, int[] offsets, List<String> featureIds,
+                        List<Map<String, Object>> properties, int srid) {
+    if (offsets.length == 0 || offsets[offsets.length - 1] * 2 != coordinates.length) {
+      throw new IllegalArgumentException("Offsets don't match the coordinates");
+    }
+    if (featureIds.size() != offsets.length - 1 || properties.size() != offsets.length - 1) {
+      throw new IllegalArgumentException("Expected one feature id and properties per LineString");
+    }
+
+    this.coordinates = coordinates;
+    this.offsets = offsets;
+    this.featureIds = Collections.unmodifiableList(featureIds);
+    this.properties = Collections.unmodifiableList(properties);
+    this.srid = srid;
+  }
+
+  /**
+   * @return the SRID of the coordinates, WGS84 unless the document named another CRS
+   */
+  public int getSrid() {
+    return srid;
+  }
+
+  @Override
+  public int getLineStringCount() {
+    return offsets.length - 1;
+  }
+
+  public int getVertexCount() {
+    return offsets[offsets.length - 1];
+  }
+
+  /**
+   * @return the index of the first vertex of the LineString
+   */
+  public int getStart(int lineString) {
+    return offsets[lineString];
+  }
+
+  /**
+   * @return the index after the last vertex of the LineString
+   */
+  public int getEnd(int lineString) {
+    return offsets[lineString + 1];
+  }
+
+  @Override
+  public int getVertexCount(int lineString) {
+    return offsets[lineString + 1] - offsets[lineString];
+  }
+
+  @Override
+  public double getX(int lineString, int vertex) {
+    return getX(offsets[lineString] + vertex);
+  }
+
+  @Override
+  public double getY(int lineString, int vertex) {
+    return getY(offsets[lineString] + vertex);
+  }
+
+  public double getX(int vertex) {
+    return coordinates[vertex * 2];
+  }
+
+  public double getY(int vertex) {
+    return coordinates[vertex * 2 + 1];
+  }
+
+  /**
+   * @return the id of the feature the LineString came from, or null if it had none
+   */
+  public String getFeatureId(int lineString) {
+    return featureIds.get(lineString);
+  }
+
+  /**
+   * @return the scalar properties of the feature the LineString came from, empty if it had none
+   */
+  public Map<String, Object> getProperties(int lineString) {
+    return properties.get(lineString);
+  }
+
+  /**
+   * Create the JTS LineStrings in the geometry's own CRS, see
+   * {@link #toMultiLineString(GeometryFactory)}.
+   *
+   * @return a MultiLineString with the LineStrings in order
+   */
+  public MultiLineString toMultiLineString() {
+    return toMultiLineString(CoordinateSystems.geometryFactory(srid));
+  }
+
+  /**
+   * Create the JTS LineStrings. Each one is backed by a packed copy of its own coordinates, not by
+   * {@code Coordinate} objects.
+   *
+   * @param geometryFactory the factory to create the LineStrings with
+   * @return a MultiLineString with the LineStrings in order
+   */
+  public MultiLineString toMultiLineString(GeometryFactory geometryFactory) {
+    LineString[] lineStrings = new LineString[getLineStringCount()];
+    for (int i = 0; i < lineStrings.length; i++) {
+      double[] packed = Arrays.copyOfRange(coordinates, offsets[i] * 2, offsets[i + 1] * 2);
+      lineStrings[i] =
+          geometryFactory.createLineString(new PackedCoordinateSequence.Double(packed, 2, 0));
+    }
+    return geometryFactory.createMultiLineString(lineStrings);
+  }
+}
@@ -0,0 +1,346 @@
+package com.yakovliam;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.Point;
+
+/**
+ * A feeder as a graph rather than a tree, for networks with loops: normally-open ties that are
+ * closed, or lines run in parallel while switching. Distances are shortest-path distances from
+ * the source, so a fault at a distance can be on either side of a loop.
+ * <p>
+ * Vertices are the end points of the LineStrings, matched like {@link EndpointIndex} does, and
+ * every LineString is an edge between the vertices at its ends. Adjacency is held in flat arrays.
+ * A query runs Dijkstra from the source with an indexed binary heap of vertex ids, and stops as
+ * soon as the nearest unsettled vertex is further than the furthest distance asked for, so it only
+ * visits the part of the network within that distance.
+ * <p>
+ * The graph is read-only once built, queries can run from any number of threads.
+ */
+public class FeederGraph {
+
+  private final List<LineString> lineStrings;
+
+  private final double[][] cumulativeLengths;
+
+  private final double[] lengths;
+
+  // the vertex of every end point, by end point id, see EndpointIndex
+  private final int[] vertexOf;
+
+  // the end points at every vertex, those of vertex v are from adjacencyStart[v] to
+  // adjacencyStart[v + 1]
+  private final int[] adjacencyStart;
+
+  private final int[] adjacency;
+
+  private final int vertexCount;
+
+  private final int source;
+
+  private final ThreadLocal<Search> searches;
+
+  /**
+   * @param lineStrings    the LineStrings, every one an edge
+   * @param endpointIndex  the end points of the LineStrings
+   * @param sourceEndpoint the end point the source snapped to
+   * @param kernel         the kernel the edges are measured with
+   */
+  FeederGraph(List<LineString> lineStrings, EndpointIndex endpointIndex, int sourceEndpoint,
+              GeodesicKernel kernel) {
+    int endpointCount = lineStrings.size() * 2;
+    this.lineStrings = lineStrings;
+    this.cumulativeLengths = new double[lineStrings.size()][];
+    this.lengths = new double[lineStrings.size()];
+    this.vertexOf = new int[endpointCount];
+
+    for (int i = 0; i < lineStrings.size(); i++) {
+      cumulativeLengths[i] = GeometryUtil.getCumulativeLengthsInMeters(lineStrings.get(i), kernel);
+      lengths[i] = cumulativeLengths[i][cumulativeLengths[i].length - 1];
+    }
+
+    // an end point and every unassigned end point that matches it become one vertex
+    Arrays.fill(vertexOf, -1);
+    int vertices = 0;
+    for (int endpoint = 0; endpoint < endpointCount; endpoint++) {
+      if (vertexOf[endpoint] >= 0) {
+        continue;
+      }
+      vertexOf[endpoint] = vertices;
+      for (int match : endpointIndex.find(endpointIndex.getX(endpoint),
+          endpointIndex.getY(endpoint))) {
+        if (vertexOf[match] < 0) {
+          vertexOf[match] = vertices;
+        }
+      }
+      vertices++;
+    }
+    this.vertexCount = vertices;
+
+    this.adjacencyStart = new int[vertexCount + 1];
+    for (int endpoint = 0; endpoint < endpointCount; endpoint++) {
+      adjacencyStart[vertexOf[endpoint] + 1]++;
+    }
+    for (int vertex = 0; vertex < vertexCount; vertex++) {
+      adjacencyStart[vertex + 1] += adjacencyStart[vertex];
+    }
+    this.adjacency = new int[endpointCount];
+    int[] next = Arrays.copyOf(adjacencyStart, vertexCount);
+    for (int endpoint = 0; endpoint < endpointCount; endpoint++) {
+      adjacency[next[vertexOf[endpoint]]++] = endpoint;
+    }
+
+    this.source = vertexOf[sourceEndpoint];
+    this.searches = ThreadLocal.withInitial(() -> new Search(vertexCount));
+  }
+
+  public int getVertexCount() {
+    return vertexCount;
+  }
+
+  public int getEdgeCount() {
+    return lineStrings.size();
+  }
+
+  /**
+   * @return the vertex the source snapped to
+   */
+  public int getSource() {
+    return source;
+  }
+
+  /**
+   * @return the length of the edge, i.e. the LineString, in meters
+   */
+  public double getLength(int edge) {
+    return lengths[edge];
+  }
+
+  /**
+   * Locate the possible fault locations for several distances, in a single search.
+   *
+   * @param distancesMeters shortest-path distances of the faults from the source, in ascending
+   *                        order
+   * @return the candidates for each distance, in the same order as the distances, and each
+   * distance's candidates in edge order. A candidate's edge and segment are the index of its
+   * LineString in the input geometry, and its offset is along the LineString as it was input
+   */
+  public List<List<FaultCandidate>> locateCandidates(double[] distancesMeters) {
+    FaultLocator.checkAscending(distancesMeters);
+    long startNanos = System.nanoTime();
+    List<List<FaultCandidate>> candidates = new ArrayList<>(distancesMeters.length);
+    for (int i = 0; i < distancesMeters.length; i++) {
+      candidates.add(new ArrayList<>(1));
+    }
+    if (distancesMeters.length == 0) {
+      return candidates;
+    }
+
+    Search search = searches.get();
+    search.run(this, distancesMeters[distancesMeters.length - 1]);
+
+    long located = 0;
+    for (int i = 0; i < search.settledCount; i++) {
+      int vertex = search.settled[i];
+      double distance = search.distance[vertex];
+      for (int j = adjacencyStart[vertex]; j < adjacencyStart[vertex + 1]; j++) {
+        located += locateFromEndpoint(search, adjacency[j], distance, distancesMeters, candidates);
+      }
+    }
+
+    Comparator<FaultCandidate> edgeOrder = Comparator.comparingInt(FaultCandidate::getEdge)
+        .thenComparingDouble(FaultCandidate::getOffset);
+    for (List<FaultCandidate> list : candidates) {
+      list.sort(edgeOrder);
+    }
+    Metrics.getGlobal().recordQuery(distancesMeters.length, search.settledCount, located,
+        startNanos);
+    return candidates;
+  }
+
+  /**
+   * Add the candidates on the edge of an end point that are reached through that end point, i.e.
+   * closer to the source through it than through the other end.
+   *
+   * @return the number of candidates added
+   */
+  private int locateFromEndpoint(Search search, int endpoint, double distance,
+                                 double[] distancesMeters, List<List<FaultCandidate>> candidates) {
+    int edge = EndpointIndex.lineStringOf(endpoint);
+    double length = lengths[edge];
+    // the other end is further than every distance if it isn't settled
+    double otherDistance = search.distanceIfSettled(vertexOf[endpoint ^ 1]);
+
+    int added = 0;
+    int first = lowerBound(distancesMeters, distance);
+    for (int i = first; i < distancesMeters.length && distancesMeters[i] <= distance + length;
+         i++) {
+      double along = distancesMeters[i] - distance;
+      double throughOther = otherDistance + length - along;
+      // a point as far through either end is added once, through the start of the LineString
+      if (distancesMeters[i] > throughOther
+          || distancesMeters[i] == throughOther && EndpointIndex.isEnd(endpoint)) {
+        continue;
+      }
+
+      double offset = EndpointIndex.isEnd(endpoint) ? length - along : along;
+      Point point = GeometryUtil.locateAlongLineString(lineStrings.get(edge),
+          cumulativeLengths[edge], offset);
+      if (point == null) {
+        continue;
+      }
+      candidates.get(i).add(new FaultCandidate(distancesMeters[i], edge, edge, offset, point));
+      added++;
+    }
+    return added;
+  }
+
+  /**
+   * @return the index of the first value that is >= the key
+   */
+  private static int lowerBound(double[] values, double key) {
+    int low = 0;
+    int high = values.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (values[mid] < key) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * The state of one search, kept per thread and reused. Entries are only valid for the
+   * generation that wrote them, so starting a search doesn't clear every vertex. It doesn't hold
+   * on to the graph, which would keep the graph and its thread local from being collected.
+   */
+  private static final class Search {
+
+    private final double[] distance;
+
+    private final int[] generationOf;
+
+    private final boolean[] isSettled;
+
+    private final int[] heapIndex;
+
+    private final int[] heap;
+
+    private final int[] settled;
+
+    private int heapSize;
+
+    private int settledCount;
+
+    private int generation;
+
+    private Search(int vertexCount) {
+      this.distance = new double[vertexCount];
+      this.generationOf = new int[vertexCount];
+      this.isSettled = new boolean[vertexCount];
+      this.heapIndex = new int[vertexCount];
+      this.heap = new int[vertexCount];
+      this.settled = new int[vertexCount];
+    }
+
+    /**
+     * Settle every vertex within a distance of the source, in order of distance.
+     */
+    private void run(FeederGraph graph, double maxDistance) {
+      if (++generation == Integer.MAX_VALUE) {
+        Arrays.fill(generationOf, 0);
+        generation = 1;
+      }
+      heapSize = 0;
+      settledCount = 0;
+
+      offer(graph.source, 0);
+      while (heapSize > 0 && distance[heap[0]] <= maxDistance) {
+        int vertex = poll();
+        isSettled[vertex] = true;
+        settled[settledCount++] = vertex;
+
+        for (int j = graph.adjacencyStart[vertex]; j < graph.adjacencyStart[vertex + 1]; j++) {
+          int endpoint = graph.adjacency[j];
+          offer(graph.vertexOf[endpoint ^ 1],
+              distance[vertex] + graph.lengths[EndpointIndex.lineStringOf(endpoint)]);
+        }
+      }
+    }
+
+    private double distanceIfSettled(int vertex) {
+      return generationOf[vertex] == generation && isSettled[vertex] ? distance[vertex]
+          : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Add a vertex to the heap, or lower its distance if it is already there.
+     */
+    private void offer(int vertex, double newDistance) {
+      if (generationOf[vertex] != generation) {
+        generationOf[vertex] = generation;
+        isSettled[vertex] = false;
+        distance[vertex] = newDistance;
+        heap[heapSize] = vertex;
+        heapIndex[vertex] = heapSize;
+        siftUp(heapSize++);
+      } else if (!isSettled[vertex] && newDistance < distance[vertex]) {
+        distance[vertex] = newDistance;
+        siftUp(heapIndex[vertex]);
+      }
+    }
+
+    private int poll() {
+      int nearest = heap[0];
+      heapSize--;
+      if (heapSize > 0) {
+        move(heap[heapSize], 0);
+        siftDown(0);
+      }
+      return nearest;
+    }
+
+    private void siftUp(int index) {
+      int vertex = heap[index];
+      while (index > 0) {
+        int parent = (index - 1) >>> 1;
+        if (distance[heap[parent]] <= distance[vertex]) {
+          break;
+        }
+        move(heap[parent], index);
+        index = parent;
+      }
+      move(vertex, index);
+    }
+
+    private void siftDown(int index) {
+      int vertex = heap[index];
+      while (true) {
+        int child = index * 2 + 1;
+        if (child >= heapSize) {
+          break;
+        }
+        if (child + 1 < heapSize && distance[heap[child + 1]] < distance[heap[child]]) {
+          child++;
+        }
+        if (distance[vertex] <= distance[heap[child]]) {
+          break;
+        }
+        move(heap[child], index);
+        index = child;
+      }
+      move(vertex, index);
+    }
+
+    private void move(int vertex, int index) {
+      heap[index] = vertex;
+      heapIndex[vertex] = index;
+    }
+  }
+}
@@ -0,0 +1,451 @@
+package com.yakovliam;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.MultiLineString;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.PrecisionModel;
+import org.slf4j.Logger;
+
+/**
+ * The feeders a service answers queries for, each with its own source point and compiled tree.
+ * <p>
+ * Feeders are immutable once registered, registering a feeder under an existing id replaces it
+ * as a whole, so any number of threads can query the registry while feeders are added or
+ * replaced.
+ */
+public class FeederRegistry {
+
+  private static final Logger LOGGER = org.slf4j.LoggerFactory.getLogger(FeederRegistry.class);
+
+  /**
+   * The file listing the feeders of a directory, one {@code feeder_id,lon,lat} line per feeder.
+   */
+  public static final String SOURCES_FILE = "sources.csv";
+
+  private static final GeometryFactory GEOMETRY_FACTORY =
+      new GeometryFactory(new PrecisionModel(), 4326);
+
+  private final Map<String, Feeder> feeders = new ConcurrentHashMap<>();
+
+  private boolean parallel = false;
+
+  private boolean reprojecting = false;
+
+  private String impedanceProperty;
+
+  /**
+   * @return whether feeders are built with several threads, see {@link #setParallel(boolean)}
+   */
+  public boolean isParallel() {
+    return parallel;
+  }
+
+  /**
+   * Set whether feeders are indexed, validated and compiled on the common fork/join pool, see
+   * {@link EdgeNodeTreeConstructor#setParallel(boolean)}. The feeders are the same either way.
+   *
+   * @param parallel whether to use several threads, the default is false
+   */
+  public void setParallel(boolean parallel) {
+    this.parallel = parallel;
+  }
+
+  /**
+   * @return whether lon/lat feeders are reprojected at load, see {@link #setReprojecting(boolean)}
+   */
+  public boolean isReprojecting() {
+    return reprojecting;
+  }
+
+  /**
+   * Set whether feeders in lon/lat are reprojected once, when they are built, into the UTM zone
+   * they are in, so every length and location after that is planar math rather than geodesic.
+   * Feeders projected in metres are always kept as they are, and feeders projected in other units
+   * are always reprojected. Results are still reported in lon/lat.
+   *
+   * @param reprojecting whether to reproject lon/lat feeders, the default is false
+   */
+  public void setReprojecting(boolean reprojecting) {
+    this.reprojecting = reprojecting;
+  }
+
+  /**
+   * @return the feature property impedances are read from, or null, see
+   * {@link #setImpedanceProperty(String)}
+   */
+  public String getImpedanceProperty() {
+    return impedanceProperty;
+  }
+
+  /**
+   * Set the feature property, in ohm/km, every LineString's impedance is read from when a feeder is
+   * loaded from GeoJSON, so faults on it can be located by impedance, see
+   * {@link Feeder#getImpedanceProfile()}. A feeder loaded from a snapshot takes them from the
+   * snapshot if it records them for the property, see
+   * {@link FeederSnapshot#readOhmsPerKm(Path, String)}, else reads them from the GeoJSON next to
+   * it, and has none if there isn't one.
+   *
+   * @param impedanceProperty the name of the property, null to not read impedances, the default
+   */
+  public void setImpedanceProperty(String impedanceProperty) {
+    this.impedanceProperty = impedanceProperty;
+  }
+
+  /**
+   * Build, validate and compile a feeder, and register it.
+   *
+   * @param id       the feeder id
+   * @param geometry the feeder's LineStrings, in the CRS of their SRID
+   * @param source   the source point, e.g. the substation breaker, in the CRS of its SRID
+   * @return the registered feeder
+   * @throws RuntimeException if the feeder doesn't pass the tapped line rules
+   */
+  public Feeder register(String id, MultiLineString geometry, Point source) {
+    return register(build(id, geometry, source, null));
+  }
+
+  /**
+   * Register a feeder, replacing any feeder with the same id.
+   *
+   * @param feeder the feeder
+   * @return the feeder
+   */
+  public Feeder register(Feeder feeder) {
+    feeders.put(feeder.getId(), feeder);
+    return feeder;
+  }
+
+  /**
+   * @return the feeder, or null if there is no feeder with the id
+   */
+  public Feeder get(String id) {
+    return feeders.get(id);
+  }
+
+  /**
+   * @return the removed feeder, or null if there was no feeder with the id
+   */
+  public Feeder remove(String id) {
+    return feeders.remove(id);
+  }
+
+  /**
+   * @return the ids of every registered feeder, sorted
+   */
+  public List<String> getFeederIds() {
+    List<String> ids = new ArrayList<>(feeders.keySet());
+    Collections.sort(ids);
+    return ids;
+  }
+
+  public int size() {
+    return feeders.size();
+  }
+
+  /**
+   * Register every feeder of a directory. The directory has a {@value #SOURCES_FILE} with a
+   * {@code feeder_id,lon,lat} line per feeder, an optional header line, and for every feeder
+   * either a {@code <feeder_id>.feeder} snapshot, which is mapped as is, or a
+   * {@code <feeder_id>.geojson} file, which is built and validated. A snapshot that wasn't built
+   * from the GeoJSON next to it and the listed source, or with the current kernel and reprojection,
+   * is stale: it is rebuilt from the GeoJSON, or used with a warning if there is no GeoJSON.
+   *
+   * @param directory the directory
+   * @return the number of feeders registered
+   * @throws IOException if a file can't be read
+   */
+  public int registerDirectory(Path directory) throws IOException {
+    int registered = 0;
+
+    try (BufferedReader reader =
+             Files.newBufferedReader(directory.resolve(SOURCES_FILE), StandardCharsets.UTF_8)) {
+      int lineNumber = 0;
+      for (String line; (line = reader.readLine()) != null; ) {
+        lineNumber++;
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+
+        String[] fields = line.split(",");
+        if (fields.length != 3) {
+          throw new IOException(SOURCES_FILE + " line " + lineNumber
+              + ": expected feeder_id,lon,lat, got " + line);
+        }
+
+        String id = fields[0].trim();
+        double lon;
+        double lat;
+        try {
+          lon = Double.parseDouble(fields[1].trim());
+          lat = Double.parseDouble(fields[2].trim());
+        } catch (NumberFormatException e) {
+          if (lineNumber == 1) {
+            // header
+            continue;
+          }
+          throw new IOException(SOURCES_FILE + " line " + lineNumber + ": " + e.getMessage(), e);
+        }
+
+        Point source = GEOMETRY_FACTORY.createPoint(new Coordinate(lon, lat));
+        register(loadFeeder(directory, id, source));
+        registered++;
+      }
+    }
+
+    LOGGER.info("Registered {} feeder(s) from {}", registered, directory);
+    return registered;
+  }
+
+  private Feeder loadFeeder(Path directory, String id, Point source) throws IOException {
+    Path snapshot = directory.resolve(id + ".feeder");
+    Path geoJson = directory.resolve(id + ".geojson");
+    boolean hasGeoJson = Files.exists(geoJson);
+    if (Files.exists(snapshot)) {
+      CompactEdgeTree tree = FeederSnapshot.open(snapshot);
+      String mismatch = findMismatch(tree, snapshot, source, hasGeoJson ? geoJson : null);
+      if (mismatch == null || !hasGeoJson) {
+        if (mismatch != null) {
+          LOGGER.warn("Snapshot {} is stale, {}, and there is no {} to rebuild it from",
+              snapshot, mismatch, geoJson.getFileName());
+        }
+        return new Feeder(id, source, tree,
+            readImpedances(id, tree, snapshot, hasGeoJson ? geoJson : null));
+      }
+      LOGGER.warn("Snapshot {} is stale, {}, rebuilding feeder {} from {}", snapshot, mismatch,
+          id, geoJson.getFileName());
+    }
+
+    FeederGeometry geometry = new GeoJsonStreamReader().read(geoJson);
+    double[] ohmsPerKm = impedanceProperty == null ? null
+        : ImpedanceProfile.readOhmsPerKm(geometry, impedanceProperty);
+    return build(id, geometry.toMultiLineString(), source, ohmsPerKm);
+  }
+
+  /**
+   * @param geoJson the GeoJSON the snapshot was built from, or null if there is none
+   * @return the impedances of a snapshot's tree, from the snapshot if it records them, or null if
+   * there are none
+   */
+  private ImpedanceProfile readImpedances(String id, CompactEdgeTree tree, Path snapshot,
+                                          Path geoJson) throws IOException {
+    if (impedanceProperty == null) {
+      return null;
+    }
+    double[] ohmsPerKm = FeederSnapshot.readOhmsPerKm(snapshot, impedanceProperty);
+    if (ohmsPerKm != null) {
+      return new ImpedanceProfile(tree, ohmsPerKm);
+    }
+    if (geoJson == null) {
+      LOGGER.warn("Feeder {} has no impedances, there is no GeoJSON to read them from", id);
+      return null;
+    }
+    FeederGeometry geometry = new GeoJsonStreamReader().read(geoJson);
+    return new ImpedanceProfile(tree, ImpedanceProfile.readOhmsPerKm(geometry, impedanceProperty));
+  }
+
+  /**
+   * @param geoJson the GeoJSON the snapshot should have been built from, or null if there is none
+   * @return why the snapshot is stale, or null if it isn't
+   */
+  private String findMismatch(CompactEdgeTree tree, Path snapshot, Point source, Path geoJson)
+      throws IOException {
+    String mismatch = FeederSnapshot.findMismatch(tree, FeederSnapshot.readProvenance(snapshot),
+        source, geoJson);
+    if (mismatch == null && reprojecting && CoordinateSystems.isGeographic(tree.getSrid())) {
+      return "it is in lon/lat and feeders are reprojected";
+    }
+    return mismatch;
+  }
+
+  /**
+   * @param ohmsPerKm the impedance of every LineString, or null if there are none
+   */
+  private Feeder build(String id, MultiLineString geometry, Point source, double[] ohmsPerKm) {
+    MultiLineString projected = project(id, geometry);
+    Point projectedSource = CoordinateSystems.isSame(source.getSRID(), projected.getSRID())
+        ? source : CoordinateSystems.transform(source.getSRID(), projected.getSRID()).apply(source);
+
+    EdgeNodeTreeConstructor constructor = new EdgeNodeTreeConstructor();
+    constructor.setParallel(parallel);
+    EdgeNodeTreeConstructor.EdgeNode root =
+        constructor.constructEdgeNodeTree(projected, projectedSource);
+    CompactEdgeTree tree = CompactEdgeTree.compile(root, false, parallel);
+    return new Feeder(id, source, tree,
+        ohmsPerKm == null ? null : new ImpedanceProfile(tree, ohmsPerKm));
+  }
+
+  /**
+   * @return the geometry in the CRS its lengths are computed in, the local UTM zone if it has to
+   * be reprojected, see {@link #setReprojecting(boolean)}
+   */
+  private MultiLineString project(String id, MultiLineString geometry) {
+    int srid = geometry.getSRID();
+    boolean geographic = CoordinateSystems.isGeographic(srid);
+    if (geographic ? !reprojecting : CoordinateSystems.isMeasurable(srid)) {
+      return geometry;
+    }
+
+    Coordinate center = geometry.getEnvelopeInternal().centre();
+    Point lonLat = geographic ? GEOMETRY_FACTORY.createPoint(center)
+        : CoordinateSystems.transform(srid, CoordinateSystems.WGS84).apply(center.x, center.y);
+    int metricSrid = CoordinateSystems.localMetricSrid(lonLat.getX(), lonLat.getY());
+    LOGGER.info("Reprojecting feeder {} from EPSG:{} to EPSG:{}", id, srid, metricSrid);
+    return CoordinateSystems.transform(srid, metricSrid).apply(geometry);
+  }
+
+  /**
+   * A registered feeder. Its tree is read-only and its index is built once, so it can be shared
+   * between threads.
+   */
+  public static class Feeder {
+
+    private static final AtomicLong NEXT_VERSION = new AtomicLong();
+
+    private final String id;
+
+    private final long version;
+
+    private final Point source;
+
+    private final CompactEdgeTree tree;
+
+    private final ImpedanceProfile impedanceProfile;
+
+    // built on first use, each under its own lock so building one doesn't hold up the other
+    private volatile DistanceIntervalIndex distanceIndex;
+
+    private final Object distanceIndexLock = new Object();
+
+    private volatile ReverseLocator reverseLocator;
+
+    private final Object reverseLocatorLock = new Object();
+
+    // null when the tree is in lon/lat already
+    private final CoordinateSystems.Transform toLonLat;
+
+    private final CoordinateSystems.Transform fromLonLat;
+
+    public Feeder(String id, Point source, CompactEdgeTree tree) {
+      this(id, source, tree, null);
+    }
+
+    /**
+     * @param impedanceProfile the impedances of the tree, or null if it has none
+     */
+    public Feeder(String id, Point source, CompactEdgeTree tree,
+                  ImpedanceProfile impedanceProfile) {
+      if (id == null || id.isEmpty()) {
+        throw new IllegalArgumentException("Feeder id must not be empty");
+      }
+      this.id = id;
+      this.version = NEXT_VERSION.incrementAndGet();
+      this.source = source;
+      this.tree = tree;
+      this.impedanceProfile = impedanceProfile;
+      if (CoordinateSystems.isWgs84(tree.getSrid())) {
+        this.toLonLat = null;
+        this.fromLonLat = null;
+      } else {
+        this.toLonLat = CoordinateSystems.transform(tree.getSrid(), CoordinateSystems.WGS84);
+        this.fromLonLat = toLonLat.inverse();
+      }
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    /**
+     * @return a number unique to this feeder and its tree, every rebuilt or replaced feeder gets a
+     * new one
+     */
+    public long getVersion() {
+      return version;
+    }
+
+    public Point getSource() {
+      return source;
+    }
+
+    public CompactEdgeTree getTree() {
+      return tree;
+    }
+
+    /**
+     * @return the impedances of the tree, or null if the feeder has none
+     */
+    public ImpedanceProfile getImpedanceProfile() {
+      return impedanceProfile;
+    }
+
+    /**
+     * @return a point of the tree, e.g. a fault location, in WGS84 lon/lat
+     */
+    public Point toLonLat(Point point) {
+      return toLonLat == null ? point : toLonLat.apply(point);
+    }
+
+    /**
+     * @return a LineString of the tree, e.g. a part of an edge, in WGS84 lon/lat
+     */
+    public LineString toLonLat(LineString lineString) {
+      return toLonLat == null ? lineString : toLonLat.apply(lineString);
+    }
+
+    /**
+     * @return a WGS84 lon/lat position in the CRS of the tree
+     */
+    public Point fromLonLat(double lon, double lat) {
+      return fromLonLat == null ? GEOMETRY_FACTORY.createPoint(new Coordinate(lon, lat))
+          : fromLonLat.apply(lon, lat);
+    }
+
+    /**
+     * @return the distance interval index of the tree, built on first use
+     */
+    public DistanceIntervalIndex getDistanceIndex() {
+      DistanceIntervalIndex index = distanceIndex;
+      if (index == null) {
+        synchronized (distanceIndexLock) {
+          index = distanceIndex;
+          if (index == null) {
+            index = new DistanceIntervalIndex(tree);
+            distanceIndex = index;
+          }
+        }
+      }
+      return index;
+    }
+
+    /**
+     * @return the locator from positions to distances from the source, built on first use
+     */
+    public ReverseLocator getReverseLocator() {
+      ReverseLocator locator = reverseLocator;
+      if (locator == null) {
+        synchronized (reverseLocatorLock) {
+          locator = reverseLocator;
+          if (locator == null) {
+            locator = new ReverseLocator(tree);
+            reverseLocator = locator;
+          }
+        }
+      }
+      return locator;
+    }
+  }
+}
@@ -0,0 +1,533 @@
+package com.yakovliam;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+import org.locationtech.jts.geom.Point;
+
+/**
+ * A built and validated feeder, compiled into a {@link CompactEdgeTree} and written to a binary
+ * file that is opened read-only through a {@link MappedByteBuffer}. The opened tree's buffers are
+ * views of the mapped file, so queries are answered straight from it, opening a snapshot costs the
+ * same for any feeder size, and processes on the same host share the file's pages.
+ * <p>
+ * The file is big-endian. An 80 byte header is followed by the sections, each an array of one
+ * value per node or per vertex:
+ * <pre>
+ *   int    magic, "FDRS"
+ *   int    format version, {@value #VERSION}
+ *   int    node count (n)
+ *   int    vertex count (v)
+ *   int    ordinal of the {@link GeodesicKernel} the distances were computed with
+ *   int    SRID of the coordinates, 0 in older snapshots, which are all WGS84
+ *   long   file length in bytes
+ *   double x/y of the source the tree was built for, NaN if not recorded
+ *   long   length of the input geometry in bytes, -1 if not recorded
+ *   long   last modification time of the input geometry, in milliseconds since the epoch
+ *   long   CRC32C of the input geometry
+ *   int    number of LineStrings with an impedance (m), 0 if none are recorded
+ *   int    {@link String#hashCode()} of the property the impedances were read from
+ *   double distance from the source to the start of each edge [n]
+ *   double x/y of every vertex, interleaved [2v]
+ *   double distance of every vertex from the start of its edge [v]
+ *   double impedance of every LineString in ohm/km, by index in the input geometry [m]
+ *   int    parent of each node, -1 for the root [n]
+ *   int    offset of each node's first child in the children section [n + 1]
+ *   int    children [n - 1]
+ *   int    offset of each node's first vertex [n + 1]
+ *   int    index of each edge's LineString in the input geometry, -1 if unknown [n]
+ *   byte   1 if the edge's LineString was reversed, else 0 [n]
+ * </pre>
+ * Version 1 snapshots have a 32 byte header, without the source, input and impedances, and are
+ * still read.
+ * A version the reader doesn't know is rejected, not guessed at. See {@link Provenance} for how a
+ * snapshot is checked against what it was built from.
+ */
+public final class FeederSnapshot {
+
+  /**
+   * "FDRS" in ASCII.
+   */
+  static final int MAGIC = 0x46445253;
+
+  static final int VERSION = 2;
+
+  private static final int HEADER_BYTES = 80;
+
+  private static final int VERSION_1_HEADER_BYTES = 32;
+
+  private FeederSnapshot() {
+  }
+
+  private static long fileLength(int headerBytes, int nodeCount, int vertexCount,
+                                 int impedanceCount) {
+    return headerBytes
+        + 8L * nodeCount + 16L * vertexCount + 8L * vertexCount + 8L * impedanceCount
+        + 4L * nodeCount + 4L * (nodeCount + 1) + 4L * (nodeCount - 1)
+        + 4L * (nodeCount + 1) + 4L * nodeCount
+        + nodeCount;
+  }
+
+  /**
+   * Write a compiled tree to a snapshot file. The file is written next to the target and moved in
+   * place once complete, so a process opening the target never sees a partial snapshot.
+   *
+   * @param tree the compiled tree, built from a geometry that passed the tapped line rules
+   * @param path the snapshot file, replaced if it exists
+   * @throws IOException if the file can't be written
+   */
+  public static void write(CompactEdgeTree tree, Path path) throws IOException {
+    write(tree, path, null);
+  }
+
+  /**
+   * Write a compiled tree to a snapshot file, with what it was built from, see
+   * {@link #write(CompactEdgeTree, Path)}.
+   *
+   * @param tree       the compiled tree, built from a geometry that passed the tapped line rules
+   * @param path       the snapshot file, replaced if it exists
+   * @param provenance the source and input the tree was built from, or null if unknown
+   * @throws IOException if the file can't be written
+   */
+  public static void write(CompactEdgeTree tree, Path path, Provenance provenance)
+      throws IOException {
+    write(tree, path, provenance, null, null);
+  }
+
+  /**
+   * Write a compiled tree to a snapshot file, with what it was built from and the impedances of
+   * its LineStrings, so they don't have to be read from the input again, see
+   * {@link #readOhmsPerKm(Path, String)}.
+   *
+   * @param tree              the compiled tree, built from a geometry that passed the tapped line
+   *                          rules
+   * @param path              the snapshot file, replaced if it exists
+   * @param provenance        the source and input the tree was built from, or null if unknown
+   * @param impedanceProperty the property the impedances were read from, or null if there are none
+   * @param ohmsPerKm         the impedance of every LineString of the input, e.g. from
+   *                          {@link ImpedanceProfile#readOhmsPerKm(FeederGeometry, String)}, or
+   *                          null if there are none
+   * @throws IOException if the file can't be written
+   */
+  public static void write(CompactEdgeTree tree, Path path, Provenance provenance,
+                           String impedanceProperty, double[] ohmsPerKm) throws IOException {
+    if ((impedanceProperty == null) != (ohmsPerKm == null)) {
+      throw new IllegalArgumentException("Impedances need the property they were read from");
+    }
+    int nodeCount = tree.getNodeCount();
+    int vertexCount = tree.getVertexCount();
+    int impedanceCount = ohmsPerKm == null ? 0 : ohmsPerKm.length;
+    // every section is addressed with an int offset into the mapped buffer
+    if (fileLength(HEADER_BYTES, nodeCount, vertexCount, impedanceCount) > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Tree is too large for a snapshot: " + nodeCount
+          + " nodes, " + vertexCount + " vertices");
+    }
+
+    Path directory = path.toAbsolutePath().getParent();
+    Path temp = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+    try {
+      try (DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(nodeCount);
+        out.writeInt(vertexCount);
+        out.writeInt(tree.getGeodesicKernel().ordinal());
+        out.writeInt(tree.getSrid());
+        out.writeLong(fileLength(HEADER_BYTES, nodeCount, vertexCount, impedanceCount));
+        out.writeDouble(provenance == null ? Double.NaN : provenance.sourceX);
+        out.writeDouble(provenance == null ? Double.NaN : provenance.sourceY);
+        out.writeLong(provenance == null ? -1 : provenance.inputLength);
+        out.writeLong(provenance == null ? 0 : provenance.inputModified);
+        out.writeLong(provenance == null ? 0 : provenance.inputChecksum);
+        out.writeInt(impedanceCount);
+        out.writeInt(impedanceProperty == null ? 0 : impedanceProperty.hashCode());
+
+        for (int node = 0; node < nodeCount; node++) {
+          out.writeDouble(tree.getDistanceFromSource(node));
+        }
+        for (int vertex = 0; vertex < vertexCount; vertex++) {
+          out.writeDouble(tree.getX(vertex));
+          out.writeDouble(tree.getY(vertex));
+        }
+        for (int vertex = 0; vertex < vertexCount; vertex++) {
+          out.writeDouble(tree.getCumulativeDistance(vertex));
+        }
+        for (int i = 0; i < impedanceCount; i++) {
+          out.writeDouble(ohmsPerKm[i]);
+        }
+
+        for (int node = 0; node < nodeCount; node++) {
+          out.writeInt(tree.getParent(node));
+        }
+        int childOffset = 0;
+        for (int node = 0; node < nodeCount; node++) {
+          out.writeInt(childOffset);
+          childOffset += tree.getChildCount(node);
+        }
+        out.writeInt(childOffset);
+        for (int node = 0; node < nodeCount; node++) {
+          for (int i = 0; i < tree.getChildCount(node); i++) {
+            out.writeInt(tree.getChild(node, i));
+          }
+        }
+        for (int node = 0; node < nodeCount; node++) {
+          out.writeInt(tree.getVertexStart(node));
+        }
+        out.writeInt(vertexCount);
+        for (int node = 0; node < nodeCount; node++) {
+          out.writeInt(tree.getSegmentIndex(node));
+        }
+        for (int node = 0; node < nodeCount; node++) {
+          out.writeByte(tree.isReversed(node) ? 1 : 0);
+        }
+      }
+
+      Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  /**
+   * Open a snapshot file read-only. The file is mapped, not read, the OS pages it in as queries
+   * touch it. The file must not be modified while it is open, replace it with
+   * {@link #write(CompactEdgeTree, Path)} instead.
+   *
+   * @param path the snapshot file
+   * @return the tree, backed by the mapped file
+   * @throws IOException if the file can't be mapped, or isn't a snapshot of this version
+   */
+  public static CompactEdgeTree open(Path path) throws IOException {
+    MappedByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException(path + " is too large for a feeder snapshot");
+      }
+      // the mapping stays valid after the channel is closed
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+
+    int headerBytes = headerBytes(path, buffer);
+
+    int nodeCount = buffer.getInt(8);
+    int vertexCount = buffer.getInt(12);
+    int kernel = buffer.getInt(16);
+    int srid = buffer.getInt(20);
+    int impedanceCount = impedanceCount(headerBytes, buffer);
+    if (nodeCount < 1 || vertexCount < 2 * nodeCount || kernel < 0
+        || kernel >= GeodesicKernel.values().length || srid < 0 || impedanceCount < 0) {
+      throw new IOException(path + " has a corrupt header");
+    }
+
+    long length = buffer.getLong(24);
+    if (length != buffer.capacity()
+        || length != fileLength(headerBytes, nodeCount, vertexCount, impedanceCount)) {
+      throw new IOException(path + " is truncated or corrupt, expected " + length + " bytes");
+    }
+
+    int offset = headerBytes;
+    DoubleBuffer distancesFromSource = buffer.slice(offset, nodeCount * 8).asDoubleBuffer();
+    offset += nodeCount * 8;
+    DoubleBuffer coordinates = buffer.slice(offset, vertexCount * 16).asDoubleBuffer();
+    offset += vertexCount * 16;
+    DoubleBuffer cumulativeDistances = buffer.slice(offset, vertexCount * 8).asDoubleBuffer();
+    offset += vertexCount * 8;
+    // the impedances are read on their own, see readOhmsPerKm
+    offset += impedanceCount * 8;
+    IntBuffer parents = buffer.slice(offset, nodeCount * 4).asIntBuffer();
+    offset += nodeCount * 4;
+    IntBuffer childOffsets = buffer.slice(offset, (nodeCount + 1) * 4).asIntBuffer();
+    offset += (nodeCount + 1) * 4;
+    IntBuffer children = buffer.slice(offset, (nodeCount - 1) * 4).asIntBuffer();
+    offset += (nodeCount - 1) * 4;
+    IntBuffer vertexOffsets = buffer.slice(offset, (nodeCount + 1) * 4).asIntBuffer();
+    offset += (nodeCount + 1) * 4;
+    IntBuffer segmentIndices = buffer.slice(offset, nodeCount * 4).asIntBuffer();
+    offset += nodeCount * 4;
+    ByteBuffer reversed = buffer.slice(offset, nodeCount);
+
+    return new CompactEdgeTree(nodeCount, vertexCount, GeodesicKernel.values()[kernel],
+        CoordinateSystems.isWgs84(srid) ? CoordinateSystems.WGS84 : srid, distancesFromSource,
+        coordinates, cumulativeDistances, parents, childOffsets, children, vertexOffsets,
+        segmentIndices, reversed);
+  }
+
+  /**
+   * Read what a snapshot was built from, without mapping the rest of it.
+   *
+   * @param path the snapshot file
+   * @return the source and input the snapshot was built from, or null if it doesn't record them
+   * @throws IOException if the file can't be read, or isn't a snapshot of a known version
+   */
+  public static Provenance readProvenance(Path path) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      readFully(channel, header, 0);
+    }
+    if (headerBytes(path, header) < HEADER_BYTES || Double.isNaN(header.getDouble(32))) {
+      return null;
+    }
+    return new Provenance(header.getDouble(32), header.getDouble(40), header.getLong(48),
+        header.getLong(56), header.getLong(64));
+  }
+
+  /**
+   * Read the impedances a snapshot records, without mapping the rest of it. They were read from
+   * the same input as the tree, so they are as current as its {@link Provenance}.
+   *
+   * @param path     the snapshot file
+   * @param property the property the impedances have to have been read from
+   * @return the impedance of every LineString in ohm/km, by index in the input geometry, or null
+   * if the snapshot doesn't record any from the property
+   * @throws IOException if the file can't be read, or isn't a snapshot of a known version
+   */
+  public static double[] readOhmsPerKm(Path path, String property) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+      readFully(channel, header, 0);
+      int headerBytes = headerBytes(path, header);
+      int impedanceCount = impedanceCount(headerBytes, header);
+      if (impedanceCount <= 0 || header.getInt(76) != property.hashCode()) {
+        return null;
+      }
+
+      long offset = headerBytes + 8L * header.getInt(8) + 24L * header.getInt(12);
+      ByteBuffer section = ByteBuffer.allocate(impedanceCount * 8);
+      readFully(channel, section, offset);
+      if (section.limit() < section.capacity()) {
+        throw new IOException(path + " is truncated or corrupt");
+      }
+      double[] ohmsPerKm = new double[impedanceCount];
+      section.asDoubleBuffer().get(ohmsPerKm);
+      return ohmsPerKm;
+    }
+  }
+
+  /**
+   * Read from the position until the buffer is full or the channel ends, and flip the buffer.
+   */
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position);
+      if (read < 0) {
+        break;
+      }
+      position += read;
+    }
+    buffer.flip();
+  }
+
+  private static int impedanceCount(int headerBytes, ByteBuffer header) {
+    return headerBytes < HEADER_BYTES ? 0 : header.getInt(72);
+  }
+
+  /**
+   * @return the length of the header of the snapshot
+   * @throws IOException if the buffer doesn't start with a snapshot header of a known version
+   */
+  private static int headerBytes(Path path, ByteBuffer buffer) throws IOException {
+    if (buffer.limit() < VERSION_1_HEADER_BYTES || buffer.getInt(0) != MAGIC) {
+      throw new IOException(path + " is not a feeder snapshot");
+    }
+    int version = buffer.getInt(4);
+    if (version == 1) {
+      return VERSION_1_HEADER_BYTES;
+    }
+    if (version != VERSION) {
+      throw new IOException(path + " has snapshot version " + version + ", expected " + VERSION);
+    }
+    if (buffer.limit() < HEADER_BYTES) {
+      throw new IOException(path + " is truncated or corrupt");
+    }
+    return HEADER_BYTES;
+  }
+
+  /**
+   * Check a snapshot against the source and input file it should have been built from, and the
+   * kernel it would be built with now, see {@link CoordinateSystems#kernelFor(int)}. The input is
+   * only read if its length matches and its modification time doesn't, e.g. after a copy, so
+   * checking a snapshot that is up to date costs the same for any input size.
+   *
+   * @param tree     the opened snapshot
+   * @param recorded the provenance the snapshot records, or null if it records none
+   * @param source   the source the snapshot has to be built for
+   * @param input    the input the snapshot has to be built from, or null if it isn't at hand
+   * @return why the snapshot is stale, or null if it matches
+   * @throws IOException if the input can't be read
+   */
+  public static String findMismatch(CompactEdgeTree tree, Provenance recorded, Point source,
+                                    Path input) throws IOException {
+    if (input == null) {
+      return findMismatch(tree, recorded, source, -1, 0, null);
+    }
+    return findMismatch(tree, recorded, source, Files.size(input),
+        Files.getLastModifiedTime(input).toMillis(), () -> Files.newInputStream(input));
+  }
+
+  /**
+   * Check a snapshot against the source and input resource it should have been built from, see
+   * {@link #findMismatch(CompactEdgeTree, Provenance, Point, Path)}.
+   */
+  public static String findMismatch(CompactEdgeTree tree, Provenance recorded, Point source,
+                                    URL input) throws IOException {
+    URLConnection connection = input.openConnection();
+    return findMismatch(tree, recorded, source, connection.getContentLengthLong(),
+        connection.getLastModified(), input::openStream);
+  }
+
+  private static String findMismatch(CompactEdgeTree tree, Provenance recorded, Point source,
+                                     long inputLength, long inputModified, InputOpener input)
+      throws IOException {
+    if (recorded == null) {
+      return "it doesn't record what it was built from";
+    }
+    if (recorded.sourceX != source.getX() || recorded.sourceY != source.getY()) {
+      return "it was built for a source at (" + recorded.sourceX + ", " + recorded.sourceY
+          + "), not (" + source.getX() + ", " + source.getY() + ")";
+    }
+    if (input != null) {
+      boolean changed = recorded.inputLength != inputLength;
+      if (!changed && recorded.inputModified != inputModified) {
+        try (InputStream stream = input.open()) {
+          changed = checksum(stream) != recorded.inputChecksum;
+        }
+      }
+      if (changed) {
+        return "its input has changed since it was written";
+      }
+    }
+    GeodesicKernel kernel = CoordinateSystems.kernelFor(tree.getSrid());
+    if (tree.getGeodesicKernel() != kernel) {
+      return "it was measured with " + tree.getGeodesicKernel() + ", not " + kernel;
+    }
+    return null;
+  }
+
+  private static long checksum(InputStream input) throws IOException {
+    CRC32C checksum = new CRC32C();
+    byte[] buffer = new byte[1 << 16];
+    for (int read; (read = input.read(buffer)) >= 0; ) {
+      checksum.update(buffer, 0, read);
+    }
+    return checksum.getValue();
+  }
+
+  private interface InputOpener {
+
+    InputStream open() throws IOException;
+  }
+
+  /**
+   * What a snapshot was built from: the source, and the length, modification time and CRC32C of
+   * the input geometry, e.g. the GeoJSON file. A snapshot whose provenance doesn't match the source
+   * and input at hand is stale, see
+   * {@link #findMismatch(CompactEdgeTree, Provenance, Point, Path)}.
+   */
+  public static final class Provenance {
+
+    private final double sourceX;
+
+    private final double sourceY;
+
+    private final long inputLength;
+
+    private final long inputModified;
+
+    private final long inputChecksum;
+
+    private Provenance(double sourceX, double sourceY, long inputLength, long inputModified,
+                       long inputChecksum) {
+      this.sourceX = sourceX;
+      this.sourceY = sourceY;
+      this.inputLength = inputLength;
+      this.inputModified = inputModified;
+      this.inputChecksum = inputChecksum;
+    }
+
+    /**
+     * @param source the source, as it is given to the build, e.g. as listed in
+     *               {@value FeederRegistry#SOURCES_FILE}
+     * @param input  the input geometry file
+     * @return the provenance of a tree built from the input for the source
+     * @throws IOException if the input can't be read
+     */
+    public static Provenance of(Point source, Path input) throws IOException {
+      try (InputStream stream = Files.newInputStream(input)) {
+        return new Provenance(source.getX(), source.getY(), Files.size(input),
+            Files.getLastModifiedTime(input).toMillis(), checksum(stream));
+      }
+    }
+
+    /**
+     * @param source the source, as it is given to the build
+     * @param input  the input geometry resource, e.g. on the classpath
+     * @return the provenance of a tree built from the input for the source
+     * @throws IOException if the input can't be read
+     */
+    public static Provenance of(Point source, URL input) throws IOException {
+      URLConnection connection = input.openConnection();
+      try (InputStream stream = connection.getInputStream()) {
+        return new Provenance(source.getX(), source.getY(), connection.getContentLengthLong(),
+            connection.getLastModified(), checksum(stream));
+      }
+    }
+
+    /**
+     * @param source the source
+     * @return the provenance of a tree built for the source, from an input that isn't at hand
+     */
+    public static Provenance of(Point source) {
+      return new Provenance(source.getX(), source.getY(), -1, 0, 0);
+    }
+
+    public double getSourceX() {
+      return sourceX;
+    }
+
+    public double getSourceY() {
+      return sourceY;
+    }
+
+    /**
+     * @return the length of the input in bytes, or -1 if unknown
+     */
+    public long getInputLength() {
+      return inputLength;
+    }
+
+    /**
+     * @return the last modification time of the input, in milliseconds since the epoch, or 0 if
+     * unknown
+     */
+    public long getInputModified() {
+      return inputModified;
+    }
+
+    public long getInputChecksum() {
+      return inputChecksum;
+    }
+
+    @Override
+    public String toString() {
+      return "Provenance{source=(" + sourceX + ", " + sourceY + "), inputLength=" + inputLength
+          + ", inputModified=" + inputModified + ", inputChecksum="
+          + Long.toHexString(inputChecksum) + "}";
+    }
+  }
+}
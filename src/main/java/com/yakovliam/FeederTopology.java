@@ -0,0 +1,529 @@
+package com.yakovliam;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.MultiLineString;
+import org.locationtech.jts.geom.Point;
+import org.slf4j.Logger;
+
+/**
+ * A feeder whose segments change over time, e.g. as switching and construction change the
+ * network, without rebuilding and revalidating the whole feeder for every change.
+ * <p>
+ * Every update checks the tapped line rules only where the change touches the network, then
+ * publishes a new immutable {@link Version} with its own compiled tree. Readers get the current
+ * version without locking and keep using it for as long as they hold it, updates never change a
+ * published version. Updates are serialised with each other.
+ * <p>
+ * End points only connect when they are exactly equal, there is no coordinate tolerance. Segments
+ * stay in the CRS of the geometry the topology was created with, and are measured with its kernel,
+ * see {@link GeometryUtil#getKernel(org.locationtech.jts.geom.Geometry)}.
+ */
+public class FeederTopology {
+
+  private static final Logger LOGGER = org.slf4j.LoggerFactory.getLogger(FeederTopology.class);
+
+  private final String id;
+
+  private final int srid;
+
+  private final GeometryFactory geometryFactory;
+
+  private final AtomicReference<Version> current = new AtomicReference<>();
+
+  private final List<Consumer<Version>> listeners = new CopyOnWriteArrayList<>();
+
+  // the rest is only used by updates, under the lock
+
+  /**
+   * The ids of the segments that start or end at each point.
+   */
+  private final Map<Coordinate, List<Integer>> endpoints = new HashMap<>();
+
+  /**
+   * The id of the segment each interior vertex belongs to.
+   */
+  private final Map<Coordinate, Integer> interiorVertices = new HashMap<>();
+
+  private int nextSegmentId;
+
+  /**
+   * Validate a feeder as a whole and publish its first version. The segments get the ids 0 to
+   * n - 1, in the order of the geometry.
+   *
+   * @param id       the feeder id
+   * @param geometry the feeder's LineStrings, in the CRS of their SRID
+   * @param source   the source point, e.g. the substation breaker, in the CRS of its SRID
+   * @throws IllegalArgumentException if the feeder doesn't pass the tapped line rules
+   */
+  public FeederTopology(String id, MultiLineString geometry, Point source) {
+    this.id = id;
+    this.srid = geometry.getSRID();
+    this.geometryFactory = CoordinateSystems.geometryFactory(srid);
+
+    List<LineString> lineStrings = new ArrayList<>(geometry.getNumGeometries());
+    for (int i = 0; i < geometry.getNumGeometries(); i++) {
+      lineStrings.add((LineString) geometry.getGeometryN(i));
+    }
+    if (lineStrings.isEmpty()) {
+      throw new IllegalArgumentException("Feeder " + id + " has no LineStrings");
+    }
+
+    TopologyReport report = new TappedLineRulesTester().validate(lineStrings);
+    if (!report.isValid()) {
+      throw new IllegalArgumentException("Feeder " + id + " does not pass rules: " + report);
+    }
+
+    List<Segment> segments = new ArrayList<>(lineStrings.size());
+    for (LineString lineString : lineStrings) {
+      segments.add(new Segment(nextSegmentId++, lineString));
+    }
+    Version version = build(segments, source);
+    for (Segment segment : segments) {
+      index(segment);
+    }
+    publish(version);
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  /**
+   * @return the current version, never null
+   */
+  public Version getCurrent() {
+    return current.get();
+  }
+
+  /**
+   * Be told of every version published from now on, e.g. to register it with a
+   * {@link FeederRegistry}. The listener is called by the updating thread.
+   *
+   * @param listener the listener
+   */
+  public void addListener(Consumer<Version> listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Add a segment to the network. It has to touch the network with exactly one of its end points,
+   * and share no other vertex with it.
+   *
+   * @param lineString the segment, in the CRS of the feeder
+   * @return the new version
+   * @throws IllegalArgumentException if the segment is in another CRS, or would break the tapped
+   *                                  line rules
+   */
+  public synchronized Version addSegment(LineString lineString) {
+    if (lineString.getNumPoints() < 2) {
+      throw new IllegalArgumentException("Segment needs at least 2 points");
+    }
+    if (!CoordinateSystems.isSame(lineString.getSRID(), srid)) {
+      throw new IllegalArgumentException("Segment is in SRID " + lineString.getSRID()
+          + ", feeder " + id + " is in SRID " + srid);
+    }
+
+    Version version = current.get();
+    int segmentId = nextSegmentId;
+    List<TopologyReport.Violation> violations = new ArrayList<>();
+    checkNewSegment(segmentId, lineString.getCoordinateSequence(), violations);
+    rejectIfAny(version, violations);
+
+    Segment segment = new Segment(segmentId, lineString);
+    List<Segment> segments = new ArrayList<>(version.segments.size() + 1);
+    segments.addAll(version.segments);
+    segments.add(segment);
+    Version next = build(segments, version.source);
+
+    nextSegmentId++;
+    index(segment);
+    return publish(next);
+  }
+
+  /**
+   * Remove a segment from the network. It has to be at the edge of the network, i.e. one of its
+   * end points must not touch another segment, or the segments beyond it would be cut off. The
+   * segment the source is on can only be removed once the source is moved off it, see
+   * {@link #moveSource(Point)}, the feeder would be rooted somewhere else otherwise.
+   *
+   * @param segmentId the id of the segment
+   * @return the new version
+   * @throws IllegalArgumentException if there is no such segment, it is the last one, it holds the
+   *                                  source, or removing it would disconnect part of the network
+   */
+  public synchronized Version removeSegment(int segmentId) {
+    Version version = current.get();
+    int index = version.indexOf(segmentId);
+    if (index < 0) {
+      throw new IllegalArgumentException("No segment " + segmentId + " in feeder " + id);
+    }
+    if (version.segments.size() == 1) {
+      throw new IllegalArgumentException("Can't remove the last segment of feeder " + id);
+    }
+
+    Segment segment = version.segments.get(index);
+    CoordinateSequence sequence = segment.lineString.getCoordinateSequence();
+    Coordinate start = sequence.getCoordinate(0);
+    Coordinate end = sequence.getCoordinate(sequence.size() - 1);
+    int startDegree = endpoints.get(start).size();
+    int endDegree = endpoints.get(end).size();
+
+    // the source snapped to the start of the root edge, if no other segment shares that end point
+    // the source would snap to another one
+    CompactEdgeTree tree = version.feeder.getTree();
+    int rootStart = tree.getVertexStart(0);
+    Coordinate sourceEnd = new Coordinate(tree.getX(rootStart), tree.getY(rootStart));
+    if (startDegree == 1 && start.equals2D(sourceEnd)
+        || endDegree == 1 && end.equals2D(sourceEnd)) {
+      throw new IllegalArgumentException("Segment " + segmentId + " holds the source of feeder "
+          + id + ", move the source first");
+    }
+    if (startDegree > 1 && endDegree > 1) {
+      rejectIfAny(version, List.of(new TopologyReport.Violation(
+          TopologyReport.ViolationType.DISCONNECTED_ISLAND, new int[] {segmentId}, null)));
+    }
+
+    List<Segment> segments = new ArrayList<>(version.segments);
+    segments.remove(index);
+    Version next = build(segments, version.source);
+
+    unindex(segment);
+    return publish(next);
+  }
+
+  /**
+   * Split a segment in two, e.g. where a new tap goes in. The point is added as a vertex if it
+   * isn't one already. The first part keeps the start of the segment, the second part its end,
+   * both get new ids.
+   *
+   * @param segmentId      the id of the segment
+   * @param distanceMeters how far along the segment, from its start, to split it
+   * @return the new version
+   * @throws IllegalArgumentException if there is no such segment, the distance isn't strictly
+   *                                  within it, or the split point is on another segment
+   */
+  public synchronized Version splitSegment(int segmentId, double distanceMeters) {
+    Version version = current.get();
+    int index = version.indexOf(segmentId);
+    if (index < 0) {
+      throw new IllegalArgumentException("No segment " + segmentId + " in feeder " + id);
+    }
+
+    Segment segment = version.segments.get(index);
+    GeodesicKernel kernel = GeometryUtil.getKernel(segment.lineString);
+    double[] cumulative = segment.getCumulativeLengths(kernel);
+    double length = cumulative[cumulative.length - 1];
+    if (!(distanceMeters > 0 && distanceMeters < length)) {
+      throw new IllegalArgumentException("Split distance must be within (0, " + length
+          + "), got " + distanceMeters);
+    }
+
+    CoordinateSequence sequence = segment.lineString.getCoordinateSequence();
+    int segmentEnd = GeometryUtil.findSegmentEnd(cumulative, distanceMeters);
+    Coordinate[] first;
+    Coordinate[] second;
+    if (cumulative[segmentEnd] == distanceMeters) {
+      // right on a vertex, which becomes the end of one part and the start of the other
+      first = coordinates(sequence, 0, segmentEnd + 1, null);
+      second = coordinates(sequence, segmentEnd, sequence.size(), null);
+    } else {
+      Coordinate split = GeometryUtil.interpolate(kernel, segment.lineString.getFactory(),
+          sequence.getX(segmentEnd - 1), sequence.getY(segmentEnd - 1),
+          sequence.getX(segmentEnd), sequence.getY(segmentEnd),
+          distanceMeters - cumulative[segmentEnd - 1]).getCoordinate();
+      if (endpoints.containsKey(split) || interiorVertices.containsKey(split)) {
+        Integer other = interiorVertices.get(split);
+        int[] involved = other != null ? new int[] {segmentId, other}
+            : toArray(segmentId, endpoints.get(split));
+        rejectIfAny(version, List.of(new TopologyReport.Violation(
+            TopologyReport.ViolationType.SHARED_INTERIOR_VERTEX, involved, split)));
+      }
+      first = coordinates(sequence, 0, segmentEnd, split);
+      second = new Coordinate[sequence.size() - segmentEnd + 1];
+      second[0] = split;
+      System.arraycopy(coordinates(sequence, segmentEnd, sequence.size(), null), 0, second, 1,
+          second.length - 1);
+    }
+
+    Segment firstPart = new Segment(nextSegmentId,
+        segment.lineString.getFactory().createLineString(first));
+    Segment secondPart = new Segment(nextSegmentId + 1,
+        segment.lineString.getFactory().createLineString(second));
+    List<Segment> segments = new ArrayList<>(version.segments.size() + 1);
+    segments.addAll(version.segments);
+    segments.set(index, firstPart);
+    segments.add(index + 1, secondPart);
+    Version next = build(segments, version.source);
+
+    nextSegmentId += 2;
+    unindex(segment);
+    index(firstPart);
+    index(secondPart);
+    return publish(next);
+  }
+
+  /**
+   * Move the source, e.g. when the feeder is backfed from another substation. The network is
+   * unchanged, so nothing is revalidated, only the tree is rebuilt from the new source.
+   *
+   * @param source the new source point, in the CRS of its SRID
+   * @return the new version
+   */
+  public synchronized Version moveSource(Point source) {
+    Version version = current.get();
+    return publish(build(version.segments, source));
+  }
+
+  /**
+   * Check a new segment against the network: no vertex of it on another segment other than at
+   * the end points, and exactly one end point on the network.
+   */
+  private void checkNewSegment(int segmentId, CoordinateSequence sequence,
+                               List<TopologyReport.Violation> violations) {
+    Coordinate start = sequence.getCoordinate(0);
+    Coordinate end = sequence.getCoordinate(sequence.size() - 1);
+    if (start.equals2D(end)) {
+      violations.add(new TopologyReport.Violation(TopologyReport.ViolationType.CLOSED_LOOP,
+          new int[] {segmentId}, start));
+      return;
+    }
+
+    for (int j = 1; j < sequence.size() - 1; j++) {
+      Coordinate vertex = sequence.getCoordinate(j);
+      Integer other = interiorVertices.get(vertex);
+      List<Integer> others = endpoints.get(vertex);
+      if (other != null || others != null) {
+        violations.add(new TopologyReport.Violation(
+            TopologyReport.ViolationType.SHARED_INTERIOR_VERTEX,
+            other != null ? new int[] {segmentId, other} : toArray(segmentId, others), vertex));
+      }
+    }
+
+    int connected = 0;
+    for (Coordinate endpoint : new Coordinate[] {start, end}) {
+      Integer other = interiorVertices.get(endpoint);
+      if (other != null) {
+        violations.add(new TopologyReport.Violation(
+            TopologyReport.ViolationType.SHARED_INTERIOR_VERTEX, new int[] {segmentId, other},
+            endpoint));
+      }
+      if (endpoints.containsKey(endpoint)) {
+        connected++;
+      }
+    }
+
+    if (connected == 0) {
+      violations.add(new TopologyReport.Violation(
+          TopologyReport.ViolationType.DISCONNECTED_ISLAND, new int[] {segmentId}, null));
+    } else if (connected == 2) {
+      violations.add(new TopologyReport.Violation(TopologyReport.ViolationType.CLOSED_LOOP,
+          new int[] {segmentId}, end));
+    }
+  }
+
+  private void rejectIfAny(Version version, List<TopologyReport.Violation> violations) {
+    if (!violations.isEmpty()) {
+      TopologyReport report = new TopologyReport(version.segments.size(), violations);
+      throw new IllegalArgumentException("Update of feeder " + id + " does not pass rules: "
+          + report);
+    }
+  }
+
+  private void index(Segment segment) {
+    CoordinateSequence sequence = segment.lineString.getCoordinateSequence();
+    int last = sequence.size() - 1;
+    endpoints.computeIfAbsent(sequence.getCoordinate(0), c -> new ArrayList<>(2))
+        .add(segment.id);
+    endpoints.computeIfAbsent(sequence.getCoordinate(last), c -> new ArrayList<>(2))
+        .add(segment.id);
+    for (int j = 1; j < last; j++) {
+      interiorVertices.put(sequence.getCoordinate(j), segment.id);
+    }
+  }
+
+  private void unindex(Segment segment) {
+    CoordinateSequence sequence = segment.lineString.getCoordinateSequence();
+    int last = sequence.size() - 1;
+    for (Coordinate endpoint : new Coordinate[] {sequence.getCoordinate(0),
+        sequence.getCoordinate(last)}) {
+      List<Integer> ids = endpoints.get(endpoint);
+      ids.remove(Integer.valueOf(segment.id));
+      if (ids.isEmpty()) {
+        endpoints.remove(endpoint);
+      }
+    }
+    for (int j = 1; j < last; j++) {
+      interiorVertices.remove(sequence.getCoordinate(j), segment.id);
+    }
+  }
+
+  /**
+   * Build the tree of the segments, which are known to pass the rules, as the next version. Nothing
+   * is changed, so an update that fails here leaves the topology as it was.
+   */
+  private Version build(List<Segment> segments, Point source) {
+    LineString[] lineStrings = new LineString[segments.size()];
+    double[][] segmentLengths = new double[segments.size()][];
+    for (int i = 0; i < lineStrings.length; i++) {
+      Segment segment = segments.get(i);
+      lineStrings[i] = segment.lineString;
+      // only the segments that changed are measured again
+      segmentLengths[i] = segment.getCumulativeLengths(GeometryUtil.getKernel(segment.lineString));
+    }
+
+    Point treeSource = CoordinateSystems.isSame(source.getSRID(), srid) ? source
+        : CoordinateSystems.transform(source.getSRID(), srid).apply(source);
+    EdgeNodeTreeConstructor constructor = new EdgeNodeTreeConstructor();
+    constructor.setValidating(false);
+    EdgeNodeTreeConstructor.EdgeNode root =
+        constructor.constructEdgeNodeTree(geometryFactory.createMultiLineString(lineStrings),
+            treeSource);
+    CompactEdgeTree tree = CompactEdgeTree.compile(root, false, segmentLengths);
+
+    Version previous = current.get();
+    return new Version(previous == null ? 1 : previous.number + 1,
+        Collections.unmodifiableList(segments), source,
+        new FeederRegistry.Feeder(id, source, tree));
+  }
+
+  /**
+   * Make a built version the current one, once the update's own state reflects it.
+   */
+  private Version publish(Version version) {
+    current.set(version);
+
+    LOGGER.debug("Published version {} of feeder {}, {} segment(s)", version.number, id,
+        version.segments.size());
+    for (Consumer<Version> listener : listeners) {
+      listener.accept(version);
+    }
+    return version;
+  }
+
+  private static Coordinate[] coordinates(CoordinateSequence sequence, int from, int to,
+                                          Coordinate append) {
+    Coordinate[] coordinates = new Coordinate[to - from + (append == null ? 0 : 1)];
+    for (int j = from; j < to; j++) {
+      coordinates[j - from] = sequence.getCoordinateCopy(j);
+    }
+    if (append != null) {
+      coordinates[coordinates.length - 1] = append;
+    }
+    return coordinates;
+  }
+
+  private static int[] toArray(int first, List<Integer> rest) {
+    int[] ids = new int[rest.size() + 1];
+    ids[0] = first;
+    for (int i = 0; i < rest.size(); i++) {
+      ids[i + 1] = rest.get(i);
+    }
+    return ids;
+  }
+
+  /**
+   * An immutable version of the feeder. The segment index of every edge of its tree is the index
+   * of the segment in {@link #getSegments()}.
+   */
+  public static class Version {
+
+    private final long number;
+
+    private final List<Segment> segments;
+
+    private final Point source;
+
+    private final FeederRegistry.Feeder feeder;
+
+    private final Map<Integer, Integer> indexById;
+
+    private Version(long number, List<Segment> segments, Point source,
+                    FeederRegistry.Feeder feeder) {
+      this.number = number;
+      this.segments = segments;
+      this.source = source;
+      this.feeder = feeder;
+      this.indexById = new HashMap<>(segments.size() * 2);
+      for (int i = 0; i < segments.size(); i++) {
+        indexById.put(segments.get(i).id, i);
+      }
+    }
+
+    /**
+     * @return the number of the version, counting from 1 for each topology
+     */
+    public long getNumber() {
+      return number;
+    }
+
+    public List<Segment> getSegments() {
+      return segments;
+    }
+
+    public Point getSource() {
+      return source;
+    }
+
+    /**
+     * @return the version as a feeder, with its own compiled tree and
+     * {@link FeederRegistry.Feeder#getVersion() feeder version}
+     */
+    public FeederRegistry.Feeder getFeeder() {
+      return feeder;
+    }
+
+    /**
+     * @return the index of the segment in {@link #getSegments()}, or -1 if it isn't in this
+     * version
+     */
+    public int indexOf(int segmentId) {
+      Integer index = indexById.get(segmentId);
+      return index == null ? -1 : index;
+    }
+  }
+
+  /**
+   * A segment of the network, with an id that stays the same across versions.
+   */
+  public static class Segment {
+
+    private final int id;
+
+    private final LineString lineString;
+
+    private final GeodesicKernel kernel;
+
+    private final double[] cumulativeLengths;
+
+    private Segment(int id, LineString lineString) {
+      this.id = id;
+      this.lineString = lineString;
+      this.kernel = GeometryUtil.getKernel(lineString);
+      this.cumulativeLengths = GeometryUtil.getCumulativeLengthsInMeters(lineString, kernel);
+    }
+
+    public int getId() {
+      return id;
+    }
+
+    public LineString getLineString() {
+      return lineString;
+    }
+
+    private double[] getCumulativeLengths(GeodesicKernel kernel) {
+      return kernel == this.kernel ? cumulativeLengths
+          : GeometryUtil.getCumulativeLengthsInMeters(lineString, kernel);
+    }
+  }
+}
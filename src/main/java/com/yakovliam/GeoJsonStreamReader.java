@@ -0,0 +1,340 @@
+package com.yakovliam;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Reads the LineStrings of a GeoJSON document straight into a {@link FeederGeometry}, streaming
+ * the input with Jackson rather than building the whole document in memory.
+ * <p>
+ * Accepts LineString and MultiLineString geometries, on their own, as the geometry of a Feature or
+ * inside a FeatureCollection or GeometryCollection. Every LineString keeps the id and scalar
+ * properties of its feature. Other geometry types are skipped.
+ * <p>
+ * The coordinates are WGS84 lon/lat, as RFC 7946 has it, unless the document has a named
+ * {@code crs} member as in the older GeoJSON spec, e.g. {@code "urn:ogc:def:crs:EPSG::2223"}, which
+ * is how GIS exports in a projected CRS say so.
+ */
+public class GeoJsonStreamReader {
+
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+  public FeederGeometry read(Path path) throws IOException {
+    try (InputStream inputStream = new BufferedInputStream(Files.newInputStream(path))) {
+      return read(inputStream);
+    }
+  }
+
+  /**
+   * Read a GeoJSON document. The stream is read to the end but not closed.
+   *
+   * @param inputStream the GeoJSON, UTF-8
+   * @return the LineStrings, in document order
+   * @throws IOException if the stream can't be read, isn't GeoJSON or has no LineStrings
+   */
+  public FeederGeometry read(InputStream inputStream) throws IOException {
+    long startNanos = System.nanoTime();
+    Builder builder = new Builder();
+
+    try (JsonParser parser = JSON_FACTORY.createParser(inputStream)) {
+      parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new IOException("Expected a GeoJSON object");
+      }
+      readObject(parser, builder);
+    }
+
+    if (builder.lineStringCount == 0) {
+      throw new IOException("No LineStrings found");
+    }
+
+    FeederGeometry geometry = builder.build();
+    Metrics.getGlobal().recordStage(Metrics.Stage.PARSE, startNanos);
+    return geometry;
+  }
+
+  /**
+   * Read any GeoJSON object, the parser is on its START_OBJECT. Members can come in any order, so
+   * coordinates are buffered as they come and dropped again if the type turns out to be one that
+   * isn't handled.
+   */
+  private void readObject(JsonParser parser, Builder builder) throws IOException {
+    int firstLineString = builder.lineStringCount;
+    int firstCoordinatesLineString = -1;
+    String type = null;
+    String id = null;
+    Map<String, Object> properties = Collections.emptyMap();
+
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = parser.getCurrentName();
+      JsonToken value = parser.nextToken();
+
+      switch (name) {
+        case "type":
+          type = parser.getValueAsString();
+          parser.skipChildren();
+          break;
+        case "id":
+          id = value.isScalarValue() && value != JsonToken.VALUE_NULL ? parser.getText() : null;
+          parser.skipChildren();
+          break;
+        case "coordinates":
+          firstCoordinatesLineString = builder.lineStringCount;
+          if (value == JsonToken.START_ARRAY) {
+            readCoordinates(parser, builder);
+          } else {
+            parser.skipChildren();
+          }
+          break;
+        case "geometry":
+          if (value == JsonToken.START_OBJECT) {
+            readObject(parser, builder);
+          } else {
+            parser.skipChildren();
+          }
+          break;
+        case "features":
+        case "geometries":
+          if (value == JsonToken.START_ARRAY) {
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+              if (parser.currentToken() == JsonToken.START_OBJECT) {
+                readObject(parser, builder);
+              } else {
+                parser.skipChildren();
+              }
+            }
+          } else {
+            parser.skipChildren();
+          }
+          break;
+        case "properties":
+          if (value == JsonToken.START_OBJECT) {
+            properties = readProperties(parser);
+          } else {
+            parser.skipChildren();
+          }
+          break;
+        case "crs":
+          if (value == JsonToken.START_OBJECT) {
+            builder.srid = readCrs(parser);
+          } else {
+            parser.skipChildren();
+          }
+          break;
+        default:
+          parser.skipChildren();
+          break;
+      }
+    }
+
+    if (firstCoordinatesLineString >= 0
+        && !"LineString".equals(type) && !"MultiLineString".equals(type)) {
+      builder.truncate(firstCoordinatesLineString);
+    }
+
+    if ("LineString".equals(type) && firstCoordinatesLineString >= 0
+        && builder.lineStringCount - firstCoordinatesLineString > 1) {
+      throw new IOException("A LineString must have a single array of positions");
+    }
+
+    if (firstCoordinatesLineString >= 0) {
+      for (int i = firstCoordinatesLineString; i < builder.lineStringCount; i++) {
+        if (builder.offsets[i + 1] - builder.offsets[i] < 2) {
+          throw new IOException("A LineString must have at least two positions");
+        }
+      }
+    }
+
+    if ("Feature".equals(type)) {
+      builder.setFeature(firstLineString, id, properties);
+    }
+  }
+
+  /**
+   * Read a coordinates array of any depth, the parser is on its START_ARRAY. Every array of
+   * positions is added as a LineString.
+   *
+   * @return true if the array was a position
+   */
+  private boolean readCoordinates(JsonParser parser, Builder builder) throws IOException {
+    JsonToken token = parser.nextToken();
+
+    if (token == JsonToken.VALUE_NUMBER_INT || token == JsonToken.VALUE_NUMBER_FLOAT) {
+      double x = parser.getDoubleValue();
+      if (!parser.nextToken().isNumeric()) {
+        throw new IOException("A position must have at least two numbers");
+      }
+      double y = parser.getDoubleValue();
+      // skip any elevation
+      while (parser.nextToken() != JsonToken.END_ARRAY) {
+        parser.skipChildren();
+      }
+      builder.addVertex(x, y);
+      return true;
+    }
+
+    boolean positions = false;
+    for (; token != JsonToken.END_ARRAY; token = parser.nextToken()) {
+      if (token != JsonToken.START_ARRAY) {
+        throw new IOException("Unexpected " + token + " in coordinates");
+      }
+      positions = readCoordinates(parser, builder);
+    }
+
+    if (positions) {
+      builder.endLineString();
+    }
+    return false;
+  }
+
+  /**
+   * Read a named crs object, the parser is on its START_OBJECT.
+   *
+   * @return the SRID of the named CRS
+   */
+  private int readCrs(JsonParser parser) throws IOException {
+    String crsName = null;
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = parser.getCurrentName();
+      JsonToken value = parser.nextToken();
+      if ("properties".equals(name) && value == JsonToken.START_OBJECT) {
+        crsName = (String) readProperties(parser).get("name");
+      } else {
+        parser.skipChildren();
+      }
+    }
+    if (crsName == null) {
+      throw new IOException("Only named crs objects are supported");
+    }
+    return parseSrid(crsName);
+  }
+
+  /**
+   * @param crsName a CRS name such as {@code EPSG:2223}, {@code urn:ogc:def:crs:EPSG::2223} or
+   *                {@code urn:ogc:def:crs:OGC:1.3:CRS84}
+   * @return the SRID
+   * @throws IOException if the name isn't an EPSG code or CRS84
+   */
+  static int parseSrid(String crsName) throws IOException {
+    String name = crsName.trim().toUpperCase(Locale.ROOT);
+    if (name.endsWith("CRS84")) {
+      return CoordinateSystems.WGS84;
+    }
+    int epsg = name.lastIndexOf("EPSG:");
+    if (epsg >= 0) {
+      String code = name.substring(name.lastIndexOf(':') + 1);
+      try {
+        return Integer.parseInt(code);
+      } catch (NumberFormatException e) {
+        throw new IOException("Not an EPSG code: " + crsName, e);
+      }
+    }
+    throw new IOException("Unsupported crs: " + crsName);
+  }
+
+  private Map<String, Object> readProperties(JsonParser parser) throws IOException {
+    Map<String, Object> properties = new LinkedHashMap<>();
+
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = parser.getCurrentName();
+      JsonToken value = parser.nextToken();
+
+      switch (value) {
+        case VALUE_STRING:
+          properties.put(name, parser.getText());
+          break;
+        case VALUE_NUMBER_INT:
+          properties.put(name, parser.getLongValue());
+          break;
+        case VALUE_NUMBER_FLOAT:
+          properties.put(name, parser.getDoubleValue());
+          break;
+        case VALUE_TRUE:
+        case VALUE_FALSE:
+          properties.put(name, parser.getBooleanValue());
+          break;
+        case VALUE_NULL:
+          properties.put(name, null);
+          break;
+        default:
+          // only scalar properties are kept
+          parser.skipChildren();
+          break;
+      }
+    }
+
+    return Collections.unmodifiableMap(properties);
+  }
+
+  private static final class Builder {
+
+    private double[] coordinates = new double[1024];
+
+    private int vertexCount;
+
+    private int[] offsets = new int[64];
+
+    private int lineStringCount;
+
+    private final List<String> featureIds = new ArrayList<>();
+
+    private final List<Map<String, Object>> properties = new ArrayList<>();
+
+    private int srid = CoordinateSystems.WGS84;
+
+    private void addVertex(double x, double y) {
+      if (vertexCount * 2 == coordinates.length) {
+        coordinates = Arrays.copyOf(coordinates, coordinates.length * 2);
+      }
+      coordinates[vertexCount * 2] = x;
+      coordinates[vertexCount * 2 + 1] = y;
+      vertexCount++;
+    }
+
+    private void endLineString() {
+      if (lineStringCount + 2 > offsets.length) {
+        offsets = Arrays.copyOf(offsets, offsets.length * 2);
+      }
+      offsets[++lineStringCount] = vertexCount;
+      featureIds.add(null);
+      properties.add(Collections.emptyMap());
+    }
+
+    /**
+     * Drop every LineString from the given one on, and any vertices added after them.
+     */
+    private void truncate(int lineString) {
+      vertexCount = offsets[lineString];
+      lineStringCount = lineString;
+      featureIds.subList(lineString, featureIds.size()).clear();
+      properties.subList(lineString, properties.size()).clear();
+    }
+
+    private void setFeature(int firstLineString, String id, Map<String, Object> featureProperties) {
+      for (int i = firstLineString; i < lineStringCount; i++) {
+        featureIds.set(i, id);
+        properties.set(i, featureProperties);
+      }
+    }
+
+    private FeederGeometry build() {
+      return new FeederGeometry(Arrays.copyOf(coordinates, vertexCount * 2),
+          Arrays.copyOf(offsets, lineStringCount + 1), new ArrayList<>(featureIds),
+          new ArrayList<>(properties), srid);
+    }
+  }
+}
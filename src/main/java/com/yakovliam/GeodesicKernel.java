@@ -0,0 +1,295 @@
+package com.yakovliam;
+
+import net.sf.geographiclib.Geodesic;
+import net.sf.geographiclib.GeodesicData;
+import net.sf.geographiclib.GeodesicLine;
+import net.sf.geographiclib.GeodesicMask;
+
+/**
+ * Geodesic math on WGS84 lon/lat degrees, working directly on primitive doubles, and plain planar
+ * math on projected coordinates.
+ * <p>
+ * The geographic kernels trade accuracy for speed:
+ * <ul>
+ *   <li>{@link #HAVERSINE} treats the earth as a sphere, within about 0.5% of the ellipsoidal
+ *   distance</li>
+ *   <li>{@link #VINCENTY} iterates on the ellipsoid, within a millimetre of {@link #KARNEY}</li>
+ *   <li>{@link #KARNEY} uses GeographicLib, the same algorithm GeoTools' GeodeticCalculator uses,
+ *   without its CRS and DirectPosition overhead</li>
+ * </ul>
+ * {@link #HAVERSINE} and {@link #VINCENTY} don't allocate; {@link #KARNEY} allocates
+ * GeographicLib's small result objects.
+ * <p>
+ * {@link #PLANAR} is for coordinates in a projected CRS with metre units, e.g. UTM, where a
+ * distance is a square root and a location a linear interpolation. It is picked by the SRID of the
+ * geometry, see {@link CoordinateSystems#kernelFor(int)}, never for lon/lat.
+ */
+public enum GeodesicKernel {
+
+  HAVERSINE {
+    @Override
+    public double distance(double lon1, double lat1, double lon2, double lat2) {
+      double phi1 = Math.toRadians(lat1);
+      double phi2 = Math.toRadians(lat2);
+      double sinHalfDeltaPhi = Math.sin((phi2 - phi1) / 2);
+      double sinHalfDeltaLambda = Math.sin(Math.toRadians(lon2 - lon1) / 2);
+      double h = sinHalfDeltaPhi * sinHalfDeltaPhi
+          + Math.cos(phi1) * Math.cos(phi2) * sinHalfDeltaLambda * sinHalfDeltaLambda;
+      return 2 * MEAN_RADIUS * Math.asin(Math.sqrt(Math.min(1.0, h)));
+    }
+
+    @Override
+    public void interpolate(double lon1, double lat1, double lon2, double lat2, double distance,
+                            double[] out) {
+      double phi1 = Math.toRadians(lat1);
+      double phi2 = Math.toRadians(lat2);
+      double deltaLambda = Math.toRadians(lon2 - lon1);
+      double cosPhi1 = Math.cos(phi1);
+      double sinPhi1 = Math.sin(phi1);
+      double cosPhi2 = Math.cos(phi2);
+
+      double bearing = Math.atan2(Math.sin(deltaLambda) * cosPhi2,
+          cosPhi1 * Math.sin(phi2) - sinPhi1 * cosPhi2 * Math.cos(deltaLambda));
+
+      double delta = distance / MEAN_RADIUS;
+      double sinDelta = Math.sin(delta);
+      double cosDelta = Math.cos(delta);
+      double sinPhi = sinPhi1 * cosDelta + cosPhi1 * sinDelta * Math.cos(bearing);
+      double lambda =
+          Math.atan2(Math.sin(bearing) * sinDelta * cosPhi1, cosDelta - sinPhi1 * sinPhi);
+
+      out[0] = normalizeLongitude(lon1 + Math.toDegrees(lambda));
+      out[1] = Math.toDegrees(Math.asin(sinPhi));
+    }
+  },
+
+  VINCENTY {
+    @Override
+    public double distance(double lon1, double lat1, double lon2, double lat2) {
+      double distance = vincentyInverse(lon1, lat1, lon2, lat2, false);
+      return Double.isNaN(distance) ? KARNEY.distance(lon1, lat1, lon2, lat2) : distance;
+    }
+
+    @Override
+    public void interpolate(double lon1, double lat1, double lon2, double lat2, double distance,
+                            double[] out) {
+      double azimuth = vincentyInverse(lon1, lat1, lon2, lat2, true);
+      if (Double.isNaN(azimuth)) {
+        KARNEY.interpolate(lon1, lat1, lon2, lat2, distance, out);
+        return;
+      }
+      vincentyDirect(lon1, lat1, azimuth, distance, out);
+    }
+  },
+
+  KARNEY {
+    @Override
+    public double distance(double lon1, double lat1, double lon2, double lat2) {
+      return Geodesic.WGS84.Inverse(lat1, lon1, lat2, lon2, GeodesicMask.DISTANCE).s12;
+    }
+
+    @Override
+    public void interpolate(double lon1, double lat1, double lon2, double lat2, double distance,
+                            double[] out) {
+      GeodesicLine line = Geodesic.WGS84.InverseLine(lat1, lon1, lat2, lon2,
+          GeodesicMask.LATITUDE | GeodesicMask.LONGITUDE);
+      GeodesicData position =
+          line.Position(distance, GeodesicMask.LATITUDE | GeodesicMask.LONGITUDE);
+      out[0] = position.lon2;
+      out[1] = position.lat2;
+    }
+  },
+
+  PLANAR {
+    @Override
+    public double distance(double x1, double y1, double x2, double y2) {
+      return Math.hypot(x2 - x1, y2 - y1);
+    }
+
+    @Override
+    public void interpolate(double x1, double y1, double x2, double y2, double distance,
+                            double[] out) {
+      double length = Math.hypot(x2 - x1, y2 - y1);
+      double t = length == 0 ? 0 : distance / length;
+      out[0] = x1 + t * (x2 - x1);
+      out[1] = y1 + t * (y2 - y1);
+    }
+
+    @Override
+    public boolean isGeographic() {
+      return false;
+    }
+  };
+
+  /**
+   * Mean earth radius (IUGG), in meters.
+   */
+  private static final double MEAN_RADIUS = 6371008.8;
+
+  private static final double WGS84_A = 6378137.0;
+
+  private static final double WGS84_F = 1 / 298.257223563;
+
+  private static final double WGS84_B = WGS84_A * (1 - WGS84_F);
+
+  private static final int MAX_ITERATIONS = 200;
+
+  private static final double CONVERGENCE = 1e-12;
+
+  /**
+   * @return whether the kernel works on lon/lat degrees, rather than projected coordinates
+   */
+  public boolean isGeographic() {
+    return true;
+  }
+
+  /**
+   * @return the distance, in meters, between two lon/lat points
+   */
+  public abstract double distance(double lon1, double lat1, double lon2, double lat2);
+
+  /**
+   * Find the point the given distance from the first point, towards the second point.
+   *
+   * @param distance distance from the first point, in meters
+   * @param out      receives the longitude at index 0 and the latitude at index 1
+   */
+  public abstract void interpolate(double lon1, double lat1, double lon2, double lat2,
+                                   double distance, double[] out);
+
+  /**
+   * Vincenty's inverse formula.
+   *
+   * @param azimuth whether to return the initial azimuth rather than the distance
+   * @return the distance in meters or the initial azimuth in radians, or NaN if the iteration
+   * didn't converge, which happens for nearly antipodal points
+   */
+  private static double vincentyInverse(double lon1, double lat1, double lon2, double lat2,
+                                        boolean azimuth) {
+    double l = Math.toRadians(lon2 - lon1);
+    double tanU1 = (1 - WGS84_F) * Math.tan(Math.toRadians(lat1));
+    double cosU1 = 1 / Math.sqrt(1 + tanU1 * tanU1);
+    double sinU1 = tanU1 * cosU1;
+    double tanU2 = (1 - WGS84_F) * Math.tan(Math.toRadians(lat2));
+    double cosU2 = 1 / Math.sqrt(1 + tanU2 * tanU2);
+    double sinU2 = tanU2 * cosU2;
+
+    double lambda = l;
+    double sinLambda;
+    double cosLambda;
+    double sinSigma;
+    double cosSigma;
+    double sigma;
+    double cosSqAlpha;
+    double cos2SigmaM;
+    int iterations = 0;
+
+    do {
+      sinLambda = Math.sin(lambda);
+      cosLambda = Math.cos(lambda);
+      double a = cosU2 * sinLambda;
+      double b = cosU1 * sinU2 - sinU1 * cosU2 * cosLambda;
+      sinSigma = Math.sqrt(a * a + b * b);
+      if (sinSigma == 0) {
+        // coincident points
+        return 0.0;
+      }
+      cosSigma = sinU1 * sinU2 + cosU1 * cosU2 * cosLambda;
+      sigma = Math.atan2(sinSigma, cosSigma);
+      double sinAlpha = cosU1 * cosU2 * sinLambda / sinSigma;
+      cosSqAlpha = 1 - sinAlpha * sinAlpha;
+      // cosSqAlpha is 0 on an equatorial line
+      cos2SigmaM = cosSqAlpha != 0 ? cosSigma - 2 * sinU1 * sinU2 / cosSqAlpha : 0;
+      double c = WGS84_F / 16 * cosSqAlpha * (4 + WGS84_F * (4 - 3 * cosSqAlpha));
+      double previous = lambda;
+      lambda = l + (1 - c) * WGS84_F * sinAlpha * (sigma + c * sinSigma
+          * (cos2SigmaM + c * cosSigma * (-1 + 2 * cos2SigmaM * cos2SigmaM)));
+      if (Math.abs(lambda - previous) <= CONVERGENCE) {
+        break;
+      }
+    } while (++iterations < MAX_ITERATIONS);
+
+    if (iterations >= MAX_ITERATIONS) {
+      return Double.NaN;
+    }
+
+    if (azimuth) {
+      return Math.atan2(cosU2 * Math.sin(lambda),
+          cosU1 * sinU2 - sinU1 * cosU2 * Math.cos(lambda));
+    }
+
+    double uSq = cosSqAlpha * (WGS84_A * WGS84_A - WGS84_B * WGS84_B) / (WGS84_B * WGS84_B);
+    double bigA = 1 + uSq / 16384 * (4096 + uSq * (-768 + uSq * (320 - 175 * uSq)));
+    double bigB = uSq / 1024 * (256 + uSq * (-128 + uSq * (74 - 47 * uSq)));
+    double deltaSigma = deltaSigma(bigB, sinSigma, cosSigma, cos2SigmaM);
+    return WGS84_B * bigA * (sigma - deltaSigma);
+  }
+
+  /**
+   * Vincenty's direct formula.
+   *
+   * @param azimuth initial azimuth, in radians
+   * @param out     receives the longitude at index 0 and the latitude at index 1
+   */
+  private static void vincentyDirect(double lon1, double lat1, double azimuth, double distance,
+                                     double[] out) {
+    double sinAlpha1 = Math.sin(azimuth);
+    double cosAlpha1 = Math.cos(azimuth);
+    double tanU1 = (1 - WGS84_F) * Math.tan(Math.toRadians(lat1));
+    double cosU1 = 1 / Math.sqrt(1 + tanU1 * tanU1);
+    double sinU1 = tanU1 * cosU1;
+    double sigma1 = Math.atan2(tanU1, cosAlpha1);
+    double sinAlpha = cosU1 * sinAlpha1;
+    double cosSqAlpha = 1 - sinAlpha * sinAlpha;
+    double uSq = cosSqAlpha * (WGS84_A * WGS84_A - WGS84_B * WGS84_B) / (WGS84_B * WGS84_B);
+    double bigA = 1 + uSq / 16384 * (4096 + uSq * (-768 + uSq * (320 - 175 * uSq)));
+    double bigB = uSq / 1024 * (256 + uSq * (-128 + uSq * (74 - 47 * uSq)));
+
+    double sigma = distance / (WGS84_B * bigA);
+    double sinSigma;
+    double cosSigma;
+    double cos2SigmaM;
+    int iterations = 0;
+
+    do {
+      cos2SigmaM = Math.cos(2 * sigma1 + sigma);
+      sinSigma = Math.sin(sigma);
+      cosSigma = Math.cos(sigma);
+      double previous = sigma;
+      sigma = distance / (WGS84_B * bigA) + deltaSigma(bigB, sinSigma, cosSigma, cos2SigmaM);
+      if (Math.abs(sigma - previous) <= CONVERGENCE) {
+        break;
+      }
+    } while (++iterations < MAX_ITERATIONS);
+
+    sinSigma = Math.sin(sigma);
+    cosSigma = Math.cos(sigma);
+    cos2SigmaM = Math.cos(2 * sigma1 + sigma);
+
+    double x = sinU1 * sinSigma - cosU1 * cosSigma * cosAlpha1;
+    double phi2 = Math.atan2(sinU1 * cosSigma + cosU1 * sinSigma * cosAlpha1,
+        (1 - WGS84_F) * Math.sqrt(sinAlpha * sinAlpha + x * x));
+    double lambda =
+        Math.atan2(sinSigma * sinAlpha1, cosU1 * cosSigma - sinU1 * sinSigma * cosAlpha1);
+    double c = WGS84_F / 16 * cosSqAlpha * (4 + WGS84_F * (4 - 3 * cosSqAlpha));
+    double l = lambda - (1 - c) * WGS84_F * sinAlpha
+        * (sigma + c * sinSigma * (cos2SigmaM + c * cosSigma * (-1 + 2 * cos2SigmaM * cos2SigmaM)));
+
+    out[0] = normalizeLongitude(lon1 + Math.toDegrees(l));
+    out[1] = Math.toDegrees(phi2);
+  }
+
+  private static double deltaSigma(double bigB, double sinSigma, double cosSigma,
+                                   double cos2SigmaM) {
+    double cos2SigmaMSq = cos2SigmaM * cos2SigmaM;
+    return bigB * sinSigma * (cos2SigmaM + bigB / 4 * (cosSigma * (-1 + 2 * cos2SigmaMSq)
+        - bigB / 6 * cos2SigmaM * (-3 + 4 * sinSigma * sinSigma) * (-3 + 4 * cos2SigmaMSq)));
+  }
+
+  private static double normalizeLongitude(double longitude) {
+    if (longitude >= -180 && longitude <= 180) {
+      return longitude;
+    }
+    return ((longitude + 540) % 360) - 180;
+  }
+}
@@ -1,11 +1,8 @@
 package com.yakovliam;
 
-import org.geotools.api.referencing.crs.CoordinateReferenceSystem;
-import org.geotools.api.referencing.operation.TransformException;
-import org.geotools.geometry.jts.JTS;
-import org.geotools.referencing.GeodeticCalculator;
-import org.geotools.referencing.crs.DefaultGeographicCRS;
+import java.util.Locale;
 import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.CoordinateSequence;
 import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.GeometryFactory;
 import org.locationtech.jts.geom.LineString;
@@ -21,9 +18,40 @@ public class GeometryUtil {
   private static final int SRID = 4326;
   private static final PrecisionModel PRECISION_MODEL = new PrecisionModel();
 
-  private static CoordinateReferenceSystem crs = DefaultGeographicCRS.WGS84;
   private static GeometryFactory geomFact = new GeometryFactory(PRECISION_MODEL, SRID);
 
+  /**
+   * Defaults to {@link GeodesicKernel#KARNEY}, the algorithm GeoTools uses. Can be picked per
+   * deployment with the {@code geodesic.kernel} system property.
+   */
+  private static volatile GeodesicKernel geodesicKernel = GeodesicKernel.valueOf(
+      System.getProperty("geodesic.kernel", GeodesicKernel.KARNEY.name())
+          .toUpperCase(Locale.ROOT));
+
+  public static GeodesicKernel getGeodesicKernel() {
+    return geodesicKernel;
+  }
+
+  /**
+   * Set the kernel used for all lengths and locations in lon/lat, trading accuracy for speed.
+   *
+   * @param kernel the kernel
+   * @throws IllegalArgumentException if the kernel isn't for lon/lat, the planar kernel is picked
+   *                                  by SRID
+   */
+  public static void setGeodesicKernel(GeodesicKernel kernel) {
+    if (!kernel.isGeographic()) {
+      throw new IllegalArgumentException(kernel + " is not a lon/lat kernel");
+    }
+    geodesicKernel = kernel;
+  }
+
+  /**
+   * @return the kernel for the geometry's SRID, see {@link CoordinateSystems#kernelFor(int)}
+   */
+  public static GeodesicKernel getKernel(Geometry geometry) {
+    return CoordinateSystems.kernelFor(geometry.getSRID());
+  }
 
   /**
    * Find the distance along the geometry.
@@ -52,45 +80,98 @@ public class GeometryUtil {
    * @return the location of the fault or null if the distance is longer than the linestring.
    */
   private static Point locateAlongLineString(LineString lineStr, double distance) {
-    try {
-      //FIXME using the default WGS84 (SRID 4326). This should really read and match what
-      //is stored in the geometry....
-      GeodeticCalculator gc = new GeodeticCalculator(crs);
-
-//      lineStr = flipLineStringXY(lineStr);
-
-      double distLeft = distance;
-      Point lastPoint = lineStr.getStartPoint();
-
-      for (int i = 1; i < lineStr.getNumPoints(); i++) {
-        Point p = lineStr.getPointN(i);
-
-        gc.setStartingPosition(JTS.toDirectPosition(lastPoint.getCoordinate(), crs));
-        gc.setDestinationPosition(JTS.toDirectPosition(p.getCoordinate(), crs));
-
-        double d2 = gc.getOrthodromicDistance();
-        LOG.debug("distance from: " + lastPoint + " to " + p + " is " + d2);
-        if (distLeft - d2 <= 0) {
-          double azimuth = gc.getAzimuth();
-          gc.setDirection(azimuth, distLeft);
-          Point resultP = JTS.toGeometry(gc.getDestinationPosition());
-          resultP.setSRID(SRID);
-          return resultP;
-        } else {
-          distLeft -= d2;
-          lastPoint = p;
-        }
+    GeodesicKernel kernel = getKernel(lineStr);
+    CoordinateSequence sequence = lineStr.getCoordinateSequence();
+
+    double distLeft = distance;
+
+    for (int i = 1; i < sequence.size(); i++) {
+      double d2 = kernel.distance(sequence.getX(i - 1), sequence.getY(i - 1), sequence.getX(i),
+          sequence.getY(i));
+      if (distLeft - d2 <= 0) {
+        return interpolate(kernel, lineStr.getFactory(), sequence, i, distLeft);
+      } else {
+        distLeft -= d2;
       }
-
-      LOG.info("Not able to compute location. Distance: " + distance +
-          " is greater than geometry length.");
-    } catch (TransformException te) {
-      LOG.error("Error transforming point.", te);
     }
 
+    LOG.debug("Not able to compute location. Distance: {} is greater than geometry length.",
+        distance);
+
     return null;
   }
 
+  /**
+   * Walk the line string and find the point d distance along it, using cumulative vertex distances
+   * that were computed beforehand with {@link #getCumulativeLengthsInMeters(LineString)}.
+   * <p>
+   * Only the segment containing the point is touched, so this costs a binary search and a single
+   * geodesic calculation regardless of the number of vertices.
+   *
+   * @param lineStr             linestring to "walk" should be in order from station
+   * @param cumulativeLengths   distance of every vertex from the start of the linestring
+   * @param distance            how far along the fault is
+   * @return the location of the fault or null if the distance is not on the linestring.
+   */
+  public static Point locateAlongLineString(LineString lineStr, double[] cumulativeLengths,
+                                            double distance) {
+    int last = cumulativeLengths.length - 1;
+    if (last < 1 || distance < 0 || distance > cumulativeLengths[last]) {
+      LOG.debug("Not able to compute location. Distance: {} is not on the geometry.", distance);
+      return null;
+    }
+
+    int segmentEnd = findSegmentEnd(cumulativeLengths, distance);
+
+    return interpolate(getKernel(lineStr), lineStr.getFactory(), lineStr.getCoordinateSequence(),
+        segmentEnd, distance - cumulativeLengths[segmentEnd - 1]);
+  }
+
+  /**
+   * @return the point the distance along the segment that ends at the given vertex, created in
+   * the linestring's CRS
+   */
+  private static Point interpolate(GeodesicKernel kernel, GeometryFactory factory,
+                                   CoordinateSequence sequence, int segmentEnd,
+                                   double distanceAlongSegment) {
+    double[] xy = new double[2];
+    kernel.interpolate(sequence.getX(segmentEnd - 1), sequence.getY(segmentEnd - 1),
+        sequence.getX(segmentEnd), sequence.getY(segmentEnd), distanceAlongSegment, xy);
+    return factory.createPoint(new Coordinate(xy[0], xy[1]));
+  }
+
+  /**
+   * @return the point the distance along the segment from (x1, y1) to (x2, y2), created with the
+   * factory, i.e. in the CRS of the segment
+   */
+  static Point interpolate(GeodesicKernel kernel, GeometryFactory factory, double x1, double y1,
+                           double x2, double y2, double distanceAlongSegment) {
+    double[] xy = new double[2];
+    kernel.interpolate(x1, y1, x2, y2, distanceAlongSegment, xy);
+    return factory.createPoint(new Coordinate(xy[0], xy[1]));
+  }
+
+  /**
+   * Binary search for the segment that contains the given distance.
+   *
+   * @param cumulativeLengths distance of every vertex from the start of the linestring
+   * @param distance          distance along the linestring, within its length
+   * @return the index of the vertex that ends the segment (always at least 1)
+   */
+  static int findSegmentEnd(double[] cumulativeLengths, double distance) {
+    int low = 1;
+    int high = cumulativeLengths.length - 1;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (cumulativeLengths[mid] < distance) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
   /**
    * Flip lineString x and y coordinates. Lat/lon need to be lon/lat for math to work.
    *
@@ -123,33 +204,48 @@ public class GeometryUtil {
   }
 
   /**
-   * FIXME - results I'm getting from this are completely bogus. Line geometry
-   * from the simulator has calculated distances >100 km when it should be <20km.
+   * Compute the distance of every vertex of the linestring from its start point.
    *
+   * @param lineStr the LineString
+   * @return an array with one entry per vertex, the first being 0 and the last the total length
+   */
+  public static double[] getCumulativeLengthsInMeters(LineString lineStr) {
+    return getCumulativeLengthsInMeters(lineStr, getKernel(lineStr));
+  }
+
+  /**
+   * Compute the distance of every vertex of the linestring from its start point.
+   *
+   * @param lineStr the LineString
+   * @param kernel  the kernel to measure with
+   * @return an array with one entry per vertex, the first being 0 and the last the total length
+   */
+  public static double[] getCumulativeLengthsInMeters(LineString lineStr, GeodesicKernel kernel) {
+    CoordinateSequence sequence = lineStr.getCoordinateSequence();
+    double[] cumulativeLengths = new double[sequence.size()];
+
+    for (int i = 1; i < cumulativeLengths.length; i++) {
+      cumulativeLengths[i] = cumulativeLengths[i - 1] + kernel.distance(sequence.getX(i - 1),
+          sequence.getY(i - 1), sequence.getX(i), sequence.getY(i));
+    }
+
+    return cumulativeLengths;
+  }
+
+  /**
    * @param lineStr the LineString
    * @return the length or null if not computable.
    */
   private static Double getLineStringLength(LineString lineStr) {
-    //FIXME using the default WGS84 (SRID 4326). This should really read and match what
-    //is stored in the geometry....
-    GeodeticCalculator gc = new GeodeticCalculator(crs);
+    GeodesicKernel kernel = getKernel(lineStr);
+    CoordinateSequence sequence = lineStr.getCoordinateSequence();
     double distance = 0.0;
-    Point lastPoint = lineStr.getStartPoint();
-
-    try {
-      for (int i = 1; i < lineStr.getNumPoints(); i++) {
-        Point p = lineStr.getPointN(i);
 
-        gc.setStartingPosition(JTS.toDirectPosition(lastPoint.getCoordinate(), crs));
-        gc.setDestinationPosition(JTS.toDirectPosition(p.getCoordinate(), crs));
-
-        distance += gc.getOrthodromicDistance();
-      }
-    } catch (TransformException te) {
-      LOG.warn("Transform Exception calculating LineString length.", te);
-      return null;
+    for (int i = 1; i < sequence.size(); i++) {
+      distance += kernel.distance(sequence.getX(i - 1), sequence.getY(i - 1), sequence.getX(i),
+          sequence.getY(i));
     }
 
     return distance;
   }
-}
\ No newline at end of file
+}
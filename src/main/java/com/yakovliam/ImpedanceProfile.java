@@ -0,0 +1,117 @@
+package com.yakovliam;
+
+/**
+ * The impedance from the source to every edge of a {@link CompactEdgeTree}, for relays that report
+ * a fault's impedance, e.g. its reactance, rather than its distance. Converting the impedance to
+ * a distance assumes the same conductor everywhere, this follows the conductor of every edge.
+ * <p>
+ * Every LineString has its own impedance per unit length, usually read from a property of its
+ * feature, see {@link #readOhmsPerKm(FeederGeometry, String)}. The impedance at the start of every
+ * edge is summed up once, in tree order, so a query costs the same sweep as a distance query,
+ * and an impedance maps to an offset along its edge with a single division.
+ */
+public class ImpedanceProfile {
+
+  private final CompactEdgeTree tree;
+
+  private final double[] impedancesFromSource;
+
+  private final double[] ohmsPerMeter;
+
+  /**
+   * @param tree      the tree
+   * @param ohmsPerKm the impedance per kilometer of every LineString, by segment index
+   * @throws IllegalArgumentException if an edge of the tree has no impedance, or a negative one
+   */
+  public ImpedanceProfile(CompactEdgeTree tree, double[] ohmsPerKm) {
+    int nodeCount = tree.getNodeCount();
+    this.tree = tree;
+    this.impedancesFromSource = new double[nodeCount];
+    this.ohmsPerMeter = new double[nodeCount];
+
+    // a parent always comes before its children in pre-order
+    for (int node = 0; node < nodeCount; node++) {
+      int segmentIndex = tree.getSegmentIndex(node);
+      if (segmentIndex < 0 || segmentIndex >= ohmsPerKm.length) {
+        throw new IllegalArgumentException("No impedance for segment " + segmentIndex);
+      }
+      double perKm = ohmsPerKm[segmentIndex];
+      if (!(perKm >= 0) || Double.isInfinite(perKm)) {
+        throw new IllegalArgumentException("Impedance of segment " + segmentIndex
+            + " must be >= 0 ohm/km, got " + perKm);
+      }
+      ohmsPerMeter[node] = perKm / 1_000.0;
+
+      int parent = tree.getParent(node);
+      if (parent >= 0) {
+        impedancesFromSource[node] = impedancesFromSource[parent] + getImpedance(parent);
+      }
+    }
+  }
+
+  /**
+   * Read the impedance per kilometer of every LineString from a numeric property of its feature.
+   *
+   * @param geometry the geometry, with the properties of its features
+   * @param property the name of the property, in ohm/km
+   * @return the impedances, by LineString index
+   * @throws IllegalArgumentException if a feature doesn't have the property, or it isn't a number
+   */
+  public static double[] readOhmsPerKm(FeederGeometry geometry, String property) {
+    double[] ohmsPerKm = new double[geometry.getLineStringCount()];
+    for (int i = 0; i < ohmsPerKm.length; i++) {
+      Object value = geometry.getProperties(i).get(property);
+      if (value instanceof Number) {
+        ohmsPerKm[i] = ((Number) value).doubleValue();
+        continue;
+      }
+      if (value instanceof String) {
+        try {
+          ohmsPerKm[i] = Double.parseDouble(((String) value).trim());
+          continue;
+        } catch (NumberFormatException e) {
+          // reported below
+        }
+      }
+      throw new IllegalArgumentException("Feature " + geometry.getFeatureId(i) + " has no "
+          + property + " impedance, got " + value);
+    }
+    return ohmsPerKm;
+  }
+
+  public CompactEdgeTree getTree() {
+    return tree;
+  }
+
+  /**
+   * @return the impedance, in ohms, from the source to the start of the edge
+   */
+  public double getImpedanceFromSource(int node) {
+    return impedancesFromSource[node];
+  }
+
+  /**
+   * @return the impedance, in ohms, of the whole edge
+   */
+  public double getImpedance(int node) {
+    return ohmsPerMeter[node] * tree.getLength(node);
+  }
+
+  /**
+   * @return the impedance, in ohms, per meter of the edge
+   */
+  public double getOhmsPerMeter(int node) {
+    return ohmsPerMeter[node];
+  }
+
+  /**
+   * @param node the tree node of the edge
+   * @param ohms the impedance along the edge, from its start
+   * @return how far along the edge, in meters, the impedance is reached, the start of the edge if
+   * it has no impedance
+   */
+  public double getOffset(int node, double ohms) {
+    double perMeter = ohmsPerMeter[node];
+    return perMeter == 0 ? 0 : Math.min(ohms / perMeter, tree.getLength(node));
+  }
+}
@@ -0,0 +1,214 @@
+package com.yakovliam;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.Point;
+import org.slf4j.Logger;
+
+/**
+ * An edge tree that is only materialised as far from the source as it has been asked to reach,
+ * for networks much larger than the part a source can reach, e.g. a territory-wide dataset
+ * queried for one substation at a time.
+ * <p>
+ * Edges are attached in order of the distance from the source to their end, so extending the
+ * reach only measures and attaches the edges that start within it. Every LineString is measured
+ * once, and the lengths are reused whenever the tree is compiled. Validation isn't incremental, a
+ * new edge can share a vertex with any edge already attached, so every extension validates all the
+ * LineStrings materialised so far.
+ * <p>
+ * Once an extension fails validation the tree is left as it was then, and every later extension
+ * or compile fails the same way, so a tree that doesn't pass the rules is never handed out.
+ * <p>
+ * The tree is extended in place, so {@link #getRoot()} must not be walked while another thread
+ * extends it. {@link #compile(double)} hands out compiled trees that are safe to query from any
+ * thread.
+ */
+public class LazyEdgeTree {
+
+  private static final Logger LOGGER = org.slf4j.LoggerFactory.getLogger(LazyEdgeTree.class);
+
+  private final EdgeNodeTreeConstructor.EdgeNode root;
+
+  private final List<LineString> lineStrings;
+
+  private final EndpointIndex endpointIndex;
+
+  private final GeodesicKernel kernel;
+
+  private final TappedLineRulesTester tester;
+
+  private final boolean[] claimed;
+
+  // the cumulative distances of every measured LineString, in its input orientation
+  private final double[][] segmentLengths;
+
+  // the edges whose children aren't attached yet, the nearest end first
+  private final PriorityQueue<Pending> frontier =
+      new PriorityQueue<>(Comparator.comparingDouble(pending -> pending.distanceToEnd));
+
+  private final List<LineString> materialised = new ArrayList<>();
+
+  private double reach = 0;
+
+  private CompactEdgeTree compiled;
+
+  // why the tree failed validation, null if it hasn't
+  private String invalid;
+
+  /**
+   * @param tester the tester the materialised LineStrings are validated with, or null to not
+   *               validate
+   */
+  LazyEdgeTree(EdgeNodeTreeConstructor.EdgeNode root, List<LineString> lineStrings,
+               EndpointIndex endpointIndex, GeodesicKernel kernel, TappedLineRulesTester tester) {
+    this.root = root;
+    this.lineStrings = lineStrings;
+    this.endpointIndex = endpointIndex;
+    this.kernel = kernel;
+    this.tester = tester;
+    this.claimed = new boolean[lineStrings.size()];
+    this.segmentLengths = new double[lineStrings.size()][];
+
+    claim(root);
+    frontier.add(new Pending(root, measure(root)));
+  }
+
+  public EdgeNodeTreeConstructor.EdgeNode getRoot() {
+    return root;
+  }
+
+  /**
+   * @return the distance, in meters from the source, the tree is materialised up to
+   */
+  public synchronized double getReach() {
+    return reach;
+  }
+
+  /**
+   * @return the number of edges materialised
+   */
+  public synchronized int getEdgeCount() {
+    return materialised.size();
+  }
+
+  /**
+   * @return true if every edge connected to the source is materialised
+   */
+  public synchronized boolean isComplete() {
+    return frontier.isEmpty();
+  }
+
+  /**
+   * Materialise every edge that starts within a distance from the source. Does nothing if the tree
+   * already reaches that far.
+   *
+   * @param meters the distance from the source
+   * @throws RuntimeException if the materialised LineStrings don't pass the tapped line rules, now
+   *                          or at an earlier extension
+   */
+  public synchronized void extendTo(double meters) {
+    if (invalid != null) {
+      throw new RuntimeException(invalid);
+    }
+    if (meters <= reach) {
+      return;
+    }
+    long startNanos = System.nanoTime();
+    reach = meters;
+    int edgeCount = materialised.size();
+
+    // a distance at the very end of an edge is also at the start of its children
+    while (!frontier.isEmpty() && frontier.peek().distanceToEnd <= meters) {
+      Pending pending = frontier.poll();
+      attachChildren(pending);
+    }
+
+    if (materialised.size() == edgeCount) {
+      return;
+    }
+    EdgeNodeTreeConstructor.indexEulerTour(root);
+    compiled = null;
+    Metrics.getGlobal().recordStage(Metrics.Stage.BUILD, startNanos);
+    LOGGER.debug("Materialised {} edge(s) within {} m, {} of {} LineStrings",
+        materialised.size() - edgeCount, meters, materialised.size(), lineStrings.size());
+
+    if (tester != null && !tester.validate(materialised).isValid()) {
+      invalid = "Edge tree does not pass rules within " + meters + " m";
+      throw new RuntimeException(invalid);
+    }
+  }
+
+  /**
+   * Compile the tree, materialised at least up to a distance from the source. The compiled tree
+   * is kept until the tree is extended again.
+   *
+   * @param meters the distance from the source
+   * @return the compiled tree, read-only
+   * @throws RuntimeException if the tree doesn't pass the tapped line rules, see
+   *                          {@link #extendTo(double)}
+   */
+  public synchronized CompactEdgeTree compile(double meters) {
+    extendTo(meters);
+    if (compiled == null) {
+      compiled = CompactEdgeTree.compile(root, false, segmentLengths);
+    }
+    return compiled;
+  }
+
+  /**
+   * Attach the children of an edge, the LineStrings that start at its end, the same way
+   * {@link EdgeNodeTreeConstructor} does.
+   */
+  private void attachChildren(Pending pending) {
+    EdgeNodeTreeConstructor.EdgeNode node = pending.node;
+    Point end = node.getEdge().getEnd();
+    for (int endpoint : endpointIndex.find(end.getX(), end.getY())) {
+      int lineStringIndex = EndpointIndex.lineStringOf(endpoint);
+      if (claimed[lineStringIndex]) {
+        continue;
+      }
+
+      double x = endpointIndex.getX(endpoint);
+      double y = endpointIndex.getY(endpoint);
+      double gapMeters = x != end.getX() || y != end.getY()
+          ? kernel.distance(end.getX(), end.getY(), x, y) : 0;
+      EdgeNodeTreeConstructor.EdgeNode child =
+          EdgeNodeTreeConstructor.createEdgeNode(lineStrings, endpoint, gapMeters);
+      node.addChild(child);
+      claim(child);
+      frontier.add(new Pending(child, pending.distanceToEnd + measure(child)));
+    }
+  }
+
+  private void claim(EdgeNodeTreeConstructor.EdgeNode node) {
+    int lineStringIndex = node.getEdge().getSegmentIndex();
+    claimed[lineStringIndex] = true;
+    materialised.add(lineStrings.get(lineStringIndex));
+  }
+
+  /**
+   * @return the length of the edge, in meters
+   */
+  private double measure(EdgeNodeTreeConstructor.EdgeNode node) {
+    int lineStringIndex = node.getEdge().getSegmentIndex();
+    double[] cumulative =
+        GeometryUtil.getCumulativeLengthsInMeters(lineStrings.get(lineStringIndex), kernel);
+    segmentLengths[lineStringIndex] = cumulative;
+    return cumulative[cumulative.length - 1];
+  }
+
+  private static final class Pending {
+
+    private final EdgeNodeTreeConstructor.EdgeNode node;
+
+    private final double distanceToEnd;
+
+    private Pending(EdgeNodeTreeConstructor.EdgeNode node, double distanceToEnd) {
+      this.node = node;
+      this.distanceToEnd = distanceToEnd;
+    }
+  }
+}
@@ -0,0 +1,47 @@
+package com.yakovliam;
+
+import java.util.List;
+import org.locationtech.jts.geom.LineString;
+
+/**
+ * Read access to the vertices of a list of LineStrings, whatever holds them, so the tapped line
+ * rules can be checked without creating JTS geometries.
+ */
+public interface LineStringCoordinates {
+
+  int getLineStringCount();
+
+  int getVertexCount(int lineString);
+
+  double getX(int lineString, int vertex);
+
+  double getY(int lineString, int vertex);
+
+  /**
+   * @param lineStrings the LineStrings, read through their coordinate sequences
+   * @return a view of the LineStrings, in the same order
+   */
+  static LineStringCoordinates of(List<LineString> lineStrings) {
+    return new LineStringCoordinates() {
+      @Override
+      public int getLineStringCount() {
+        return lineStrings.size();
+      }
+
+      @Override
+      public int getVertexCount(int lineString) {
+        return lineStrings.get(lineString).getCoordinateSequence().size();
+      }
+
+      @Override
+      public double getX(int lineString, int vertex) {
+        return lineStrings.get(lineString).getCoordinateSequence().getX(vertex);
+      }
+
+      @Override
+      public double getY(int lineString, int vertex) {
+        return lineStrings.get(lineString).getCoordinateSequence().getY(vertex);
+      }
+    };
+  }
+}
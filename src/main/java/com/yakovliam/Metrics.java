@@ -0,0 +1,300 @@
+package com.yakovliam;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+
+/**
+ * Counters and histograms of where time goes: how long every parse, build, validate, compile and
+ * locate takes, and how many tree nodes and geodesic calculations every locate costs.
+ * <p>
+ * Recording is a handful of atomic additions, cheap enough to leave on in production. Locate
+ * queries can also be traced, a sample of them is handed to a sink with their own numbers.
+ */
+public class Metrics {
+
+  private static final Logger LOGGER = org.slf4j.LoggerFactory.getLogger(Metrics.class);
+
+  private static final Metrics GLOBAL = createGlobal();
+
+  private final Histogram[] stageLatencies = new Histogram[Stage.values().length];
+
+  private final Histogram nodesVisited = new Histogram();
+
+  private final Histogram geodesicCalls = new Histogram();
+
+  private volatile double traceSampleRate;
+
+  private volatile Consumer<QueryTrace> traceSink;
+
+  public Metrics() {
+    for (int i = 0; i < stageLatencies.length; i++) {
+      stageLatencies[i] = new Histogram();
+    }
+  }
+
+  /**
+   * The global metrics trace to the log when the {@code metrics.trace.rate} system property is set
+   * to the fraction of queries to trace.
+   */
+  private static Metrics createGlobal() {
+    Metrics metrics = new Metrics();
+    double traceRate = Double.parseDouble(System.getProperty("metrics.trace.rate", "0"));
+    if (traceRate > 0) {
+      metrics.setTracing(traceRate, trace -> LOGGER.info("{}", trace));
+    }
+    return metrics;
+  }
+
+  /**
+   * @return the metrics every part of the locator records into
+   */
+  public static Metrics getGlobal() {
+    return GLOBAL;
+  }
+
+  /**
+   * Record how long a stage took.
+   *
+   * @param stage      the stage
+   * @param startNanos the {@link System#nanoTime()} the stage started at
+   */
+  public void recordStage(Stage stage, long startNanos) {
+    stageLatencies[stage.ordinal()].record(System.nanoTime() - startNanos);
+  }
+
+  /**
+   * Record a locate query, and trace it if it is sampled.
+   *
+   * @param distances  the number of distances located
+   * @param nodes      the number of tree nodes visited
+   * @param geodesic   the number of geodesic calculations done
+   * @param startNanos the {@link System#nanoTime()} the query started at
+   */
+  public void recordQuery(int distances, long nodes, long geodesic, long startNanos) {
+    long nanos = System.nanoTime() - startNanos;
+    stageLatencies[Stage.LOCATE.ordinal()].record(nanos);
+    nodesVisited.record(nodes);
+    geodesicCalls.record(geodesic);
+
+    Consumer<QueryTrace> sink = traceSink;
+    if (sink != null && ThreadLocalRandom.current().nextDouble() < traceSampleRate) {
+      sink.accept(new QueryTrace(Thread.currentThread().getName(), distances, nodes, geodesic,
+          nanos));
+    }
+  }
+
+  /**
+   * @return the latencies of a stage, in nanoseconds, its count is the number of times it ran
+   */
+  public Histogram getLatency(Stage stage) {
+    return stageLatencies[stage.ordinal()];
+  }
+
+  /**
+   * @return the number of tree nodes visited per locate query
+   */
+  public Histogram getNodesVisited() {
+    return nodesVisited;
+  }
+
+  /**
+   * @return the number of geodesic calculations per locate query
+   */
+  public Histogram getGeodesicCalls() {
+    return geodesicCalls;
+  }
+
+  /**
+   * Trace a sample of locate queries.
+   *
+   * @param sampleRate the fraction of queries to trace, 0 to 1
+   * @param sink       where the traces go, called on the querying thread, null to stop tracing
+   */
+  public void setTracing(double sampleRate, Consumer<QueryTrace> sink) {
+    if (!(sampleRate >= 0 && sampleRate <= 1)) {
+      throw new IllegalArgumentException("Sample rate must be within [0, 1], got " + sampleRate);
+    }
+    this.traceSampleRate = sampleRate;
+    this.traceSink = sink;
+  }
+
+  public void reset() {
+    for (Histogram histogram : stageLatencies) {
+      histogram.reset();
+    }
+    nodesVisited.reset();
+    geodesicCalls.reset();
+  }
+
+  public enum Stage {
+    PARSE,
+    BUILD,
+    VALIDATE,
+    COMPILE,
+    LOCATE
+  }
+
+  /**
+   * A histogram of non-negative values, with buckets an eighth of a power of two wide, so every
+   * percentile is within 12.5% of the real value.
+   */
+  public static class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    private final LongAdder count = new LongAdder();
+
+    private final LongAdder sum = new LongAdder();
+
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public void record(long value) {
+      if (value < 0) {
+        value = 0;
+      }
+      buckets.incrementAndGet(bucketOf(value));
+      count.increment();
+      sum.add(value);
+      max.accumulate(value);
+    }
+
+    private static int bucketOf(long value) {
+      if (value < SUB_BUCKETS) {
+        return (int) value;
+      }
+      int exponent = 63 - Long.numberOfLeadingZeros(value);
+      int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+      return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the largest value that falls in the bucket
+     */
+    private static long upperBoundOf(int bucket) {
+      if (bucket < SUB_BUCKETS) {
+        return bucket;
+      }
+      int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+      long subBucket = bucket % SUB_BUCKETS;
+      long lowerBound = (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+      return lowerBound + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    public long getCount() {
+      return count.sum();
+    }
+
+    public long getSum() {
+      return sum.sum();
+    }
+
+    public long getMax() {
+      return max.get();
+    }
+
+    /**
+     * @return the mean value, 0 if nothing was recorded
+     */
+    public double getMean() {
+      long n = count.sum();
+      return n == 0 ? 0.0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * @param percentile the percentile, e.g. 99.9
+     * @return the value the percentile of recorded values are at or below, 0 if nothing was
+     * recorded
+     */
+    public long getPercentile(double percentile) {
+      long n = count.sum();
+      if (n == 0) {
+        return 0;
+      }
+      long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+      long seen = 0;
+      for (int bucket = 0; bucket < BUCKETS; bucket++) {
+        seen += buckets.get(bucket);
+        if (seen >= rank) {
+          return Math.min(upperBoundOf(bucket), max.get());
+        }
+      }
+      return max.get();
+    }
+
+    public void reset() {
+      for (int bucket = 0; bucket < BUCKETS; bucket++) {
+        buckets.set(bucket, 0);
+      }
+      count.reset();
+      sum.reset();
+      max.reset();
+    }
+
+    @Override
+    public String toString() {
+      return "Histogram{count=" + getCount() + ", mean=" + getMean() + ", p50=" + getPercentile(50)
+          + ", p99=" + getPercentile(99) + ", max=" + getMax() + "}";
+    }
+  }
+
+  /**
+   * The numbers of a single locate query.
+   */
+  public static class QueryTrace {
+
+    private final String thread;
+
+    private final int distances;
+
+    private final long nodesVisited;
+
+    private final long geodesicCalls;
+
+    private final long nanos;
+
+    private QueryTrace(String thread, int distances, long nodesVisited, long geodesicCalls,
+                       long nanos) {
+      this.thread = thread;
+      this.distances = distances;
+      this.nodesVisited = nodesVisited;
+      this.geodesicCalls = geodesicCalls;
+      this.nanos = nanos;
+    }
+
+    public String getThread() {
+      return thread;
+    }
+
+    public int getDistances() {
+      return distances;
+    }
+
+    public long getNodesVisited() {
+      return nodesVisited;
+    }
+
+    public long getGeodesicCalls() {
+      return geodesicCalls;
+    }
+
+    public long getNanos() {
+      return nanos;
+    }
+
+    @Override
+    public String toString() {
+      return "QueryTrace{thread=" + thread + ", distances=" + distances + ", nodesVisited="
+          + nodesVisited + ", geodesicCalls=" + geodesicCalls + ", nanos=" + nanos + "}";
+    }
+  }
+}
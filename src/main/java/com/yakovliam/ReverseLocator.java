@@ -0,0 +1,243 @@
+package com.yakovliam;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.index.strtree.ItemBoundable;
+import org.locationtech.jts.index.strtree.STRtree;
+
+/**
+ * The inverse of {@link FaultLocator}: from a position, e.g. a crew confirmed fault site or a line
+ * sensor's GPS fix, to its distance from the source along the feeder.
+ * <p>
+ * Every segment between two vertices of a {@link CompactEdgeTree} is put in an R-tree once. A
+ * position snaps to the nearest segment, and its distance from the source is read off the
+ * cumulative distances the tree already holds, so a lookup costs a nearest neighbour search and a
+ * single geodesic calculation.
+ * <p>
+ * In a geographic CRS a degree of longitude is shorter than one of latitude, so longitudes are
+ * scaled by the cosine of the feeder's middle latitude before segments are compared. A feeder
+ * spans little enough latitude for that scale to hold across it.
+ */
+public class ReverseLocator {
+
+  private final CompactEdgeTree tree;
+
+  private final STRtree segments;
+
+  // what x is multiplied by to be in the same units as y
+  private final double xScale;
+
+  public ReverseLocator(CompactEdgeTree tree) {
+    this.tree = tree;
+    this.segments = new STRtree();
+    this.xScale = tree.getGeodesicKernel().isGeographic() ? longitudeScale(tree) : 1;
+
+    // a segment is the index of its first vertex, every vertex but the last of each edge
+    for (int node = 0; node < tree.getNodeCount(); node++) {
+      for (int vertex = tree.getVertexStart(node); vertex < tree.getVertexEnd(node) - 1;
+           vertex++) {
+        Envelope envelope = new Envelope(tree.getX(vertex) * xScale,
+            tree.getX(vertex + 1) * xScale, tree.getY(vertex), tree.getY(vertex + 1));
+        segments.insert(envelope, vertex);
+      }
+    }
+    // build now, the tree isn't safe to build from several querying threads
+    segments.build();
+  }
+
+  /**
+   * @return the length of a degree of longitude, in degrees of latitude, at the middle latitude of
+   * the tree
+   */
+  private static double longitudeScale(CompactEdgeTree tree) {
+    double minY = Double.POSITIVE_INFINITY;
+    double maxY = Double.NEGATIVE_INFINITY;
+    for (int vertex = 0; vertex < tree.getVertexCount(); vertex++) {
+      minY = Math.min(minY, tree.getY(vertex));
+      maxY = Math.max(maxY, tree.getY(vertex));
+    }
+    return minY <= maxY ? Math.cos(Math.toRadians((minY + maxY) / 2)) : 1;
+  }
+
+  public CompactEdgeTree getTree() {
+    return tree;
+  }
+
+  /**
+   * Snap a position to the nearest edge.
+   *
+   * @param position the position
+   * @return where on the feeder the position is, or null if the tree has no segments
+   */
+  public Location locate(Point position) {
+    return locate(position.getX(), position.getY());
+  }
+
+  /**
+   * Snap a position to the nearest edge.
+   *
+   * @param x the longitude of the position
+   * @param y the latitude of the position
+   * @return where on the feeder the position is, or null if the tree has no segments
+   */
+  public Location locate(double x, double y) {
+    if (segments.size() == 0) {
+      return null;
+    }
+
+    Coordinate position = new Coordinate(x * xScale, y);
+    int vertex = (Integer) segments.nearestNeighbour(new Envelope(position), position,
+        this::distance);
+    int node = nodeOf(vertex);
+
+    // the share of the segment before the closest point, the segment is short enough to be
+    // taken as straight in lon/lat
+    double t = projection(position.x, y, tree.getX(vertex) * xScale, tree.getY(vertex),
+        tree.getX(vertex + 1) * xScale, tree.getY(vertex + 1));
+    double segmentStart = tree.getCumulativeDistance(vertex);
+    double segmentLength = tree.getCumulativeDistance(vertex + 1) - segmentStart;
+    double offset = Math.min(segmentStart + t * segmentLength, tree.getLength(node));
+
+    Point snapped = tree.locateAlongEdge(node, offset);
+    double snapMeters = tree.getGeodesicKernel().distance(x, y, snapped.getX(), snapped.getY());
+    return new Location(tree, node, offset, snapped, snapMeters);
+  }
+
+  /**
+   * @return the edge the vertex belongs to, edges hold consecutive vertices in node order
+   */
+  private int nodeOf(int vertex) {
+    int low = 0;
+    int high = tree.getNodeCount() - 1;
+    while (low < high) {
+      int mid = (low + high + 1) >>> 1;
+      if (tree.getVertexStart(mid) <= vertex) {
+        low = mid;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * The planar distance, with x scaled, between the position and a segment. Never less than the
+   * distance between their envelopes, which the R-tree prunes by.
+   */
+  private double distance(ItemBoundable a, ItemBoundable b) {
+    boolean positionFirst = a.getItem() instanceof Coordinate;
+    Coordinate position = (Coordinate) (positionFirst ? a : b).getItem();
+    int vertex = (Integer) (positionFirst ? b : a).getItem();
+
+    double x1 = tree.getX(vertex) * xScale;
+    double y1 = tree.getY(vertex);
+    double x2 = tree.getX(vertex + 1) * xScale;
+    double y2 = tree.getY(vertex + 1);
+    double t = projection(position.x, position.y, x1, y1, x2, y2);
+    return Math.hypot(x1 + t * (x2 - x1) - position.x, y1 + t * (y2 - y1) - position.y);
+  }
+
+  /**
+   * @return the share, from 0 to 1, of the segment from (x1, y1) to (x2, y2) before the point
+   * closest to (x, y)
+   */
+  private static double projection(double x, double y, double x1, double y1, double x2,
+                                   double y2) {
+    double dx = x2 - x1;
+    double dy = y2 - y1;
+    double lengthSquared = dx * dx + dy * dy;
+    if (lengthSquared == 0) {
+      return 0;
+    }
+    return Math.max(0, Math.min(1, ((x - x1) * dx + (y - y1) * dy) / lengthSquared));
+  }
+
+  /**
+   * Where a position is on the feeder.
+   */
+  public static class Location {
+
+    private final CompactEdgeTree tree;
+
+    private final int edge;
+
+    private final double offset;
+
+    private final Point point;
+
+    private final double snapMeters;
+
+    private Location(CompactEdgeTree tree, int edge, double offset, Point point,
+                     double snapMeters) {
+      this.tree = tree;
+      this.edge = edge;
+      this.offset = offset;
+      this.point = point;
+      this.snapMeters = snapMeters;
+    }
+
+    /**
+     * @return the tree node of the edge the position snapped to
+     */
+    public int getEdge() {
+      return edge;
+    }
+
+    /**
+     * @return the index of the edge's LineString in the input geometry, or -1 if unknown
+     */
+    public int getSegmentIndex() {
+      return tree.getSegmentIndex(edge);
+    }
+
+    /**
+     * @return how far along the edge, in meters from its start, the snapped point is
+     */
+    public double getOffset() {
+      return offset;
+    }
+
+    /**
+     * @return the distance, in meters, from the source along the feeder
+     */
+    public double getDistanceFromSource() {
+      return tree.getDistanceFromSource(edge) + offset;
+    }
+
+    /**
+     * @return the point on the edge the position snapped to
+     */
+    public Point getPoint() {
+      return point;
+    }
+
+    /**
+     * @return the distance, in meters, between the position and the point it snapped to
+     */
+    public double getSnapMeters() {
+      return snapMeters;
+    }
+
+    /**
+     * @return the tree nodes of the edges from the source to this one, both included
+     */
+    public int[] getBranchPath() {
+      int depth = 0;
+      for (int node = edge; node >= 0; node = tree.getParent(node)) {
+        depth++;
+      }
+      int[] path = new int[depth];
+      for (int node = edge; node >= 0; node = tree.getParent(node)) {
+        path[--depth] = node;
+      }
+      return path;
+    }
+
+    @Override
+    public String toString() {
+      return "Location{edge=" + edge + ", offset=" + offset + ", distanceFromSource="
+          + getDistanceFromSource() + ", snapMeters=" + snapMeters + "}";
+    }
+  }
+}
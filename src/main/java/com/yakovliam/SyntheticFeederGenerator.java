@@ -0,0 +1,222 @@
+package com.yakovliam;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.SplittableRandom;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.MultiLineString;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.PrecisionModel;
+
+/**
+ * Generates tapped line feeders, as input for {@link EdgeNodeTreeConstructor}, for benchmarks and
+ * scale tests.
+ * <p>
+ * {@link #generate(int, int, int)} builds a regular fan-out tree. {@link #generate(Topology, int,
+ * long)} grows a seeded, reproducible feeder of a given {@link Topology} and size.
+ * <p>
+ * Feeders are laid out in lon/lat around a fixed source, segments are around
+ * {@value #SEGMENT_LENGTH_METERS} meters long. Lengths and headings are varied a little, so that
+ * branches don't end up sharing vertices, which the tapped line rules don't allow.
+ */
+public class SyntheticFeederGenerator {
+
+  private static final double SEGMENT_LENGTH_METERS = 250.0;
+
+  /**
+   * Successive multiples of the golden ratio are evenly spread over [0, 1), giving a deterministic
+   * variation without a random source.
+   */
+  private static final double GOLDEN_RATIO_FRACTION = 0.6180339887498949;
+
+  private static final int MAX_TAPS_PER_END = 4;
+
+  private static final double SOURCE_LON = -111.94005548;
+
+  private static final double SOURCE_LAT = 33.48386668;
+
+  private static final double METERS_PER_DEGREE_LAT = 110_574.0;
+
+  private static final double METERS_PER_DEGREE_LON =
+      111_320.0 * Math.cos(Math.toRadians(SOURCE_LAT));
+
+  private final GeometryFactory geometryFactory = new GeometryFactory(new PrecisionModel(), 4326);
+
+  public Point getSource() {
+    return geometryFactory.createPoint(new Coordinate(SOURCE_LON, SOURCE_LAT));
+  }
+
+  /**
+   * Generate a feeder where every segment taps into the same number of segments, down to the given
+   * depth. The feeder has {@code 1 + fanOut + fanOut^2 + ... + fanOut^(depth - 1)} segments.
+   *
+   * @param depth              the number of segments from the source to a leaf, at least 1
+   * @param fanOut             the number of segments tapped at the end of every other segment
+   * @param verticesPerSegment the number of vertices of every segment, at least 2
+   * @return the feeder, starting at {@link #getSource()}
+   */
+  public MultiLineString generate(int depth, int fanOut, int verticesPerSegment) {
+    if (depth < 1 || fanOut < 1 || verticesPerSegment < 2) {
+      throw new IllegalArgumentException("Depth and fan out must be >= 1, vertices >= 2");
+    }
+
+    List<LineString> lineStrings = new ArrayList<>();
+
+    // every pending segment starts at (x, y), in meters from the source, with a heading in radians
+    Deque<double[]> pending = new ArrayDeque<>();
+    pending.add(new double[] {0.0, 0.0, 0.0, 1});
+
+    while (!pending.isEmpty()) {
+      double[] segment = pending.poll();
+      double x = segment[0];
+      double y = segment[1];
+      double heading = segment[2];
+      int level = (int) segment[3];
+
+      double variation = (lineStrings.size() * GOLDEN_RATIO_FRACTION) % 1.0;
+      double length = SEGMENT_LENGTH_METERS * (0.8 + 0.4 * variation);
+      heading += 0.1 * (variation - 0.5);
+      lineStrings.add(createSegment(x, y, heading, length, verticesPerSegment));
+
+      if (level == depth) {
+        continue;
+      }
+
+      double endX = x + length * Math.cos(heading);
+      double endY = y + length * Math.sin(heading);
+      // spread the taps over a quarter turn, centered on the parent heading
+      double spread = fanOut == 1 ? 0.0 : Math.PI / 2 / (fanOut - 1);
+      for (int i = 0; i < fanOut; i++) {
+        double childHeading = heading + spread * (i - (fanOut - 1) / 2.0);
+        pending.add(new double[] {endX, endY, childHeading, level + 1});
+      }
+    }
+
+    return geometryFactory.createMultiLineString(lineStrings.toArray(new LineString[0]));
+  }
+
+  /**
+   * Grow a feeder one segment at a time. Segments are 100-600 meters long with a vertex every
+   * 30-60 meters, like a pole line, and every segment end can have up to
+   * {@value #MAX_TAPS_PER_END} segments tapped from it.
+   *
+   * @param topology the shape of the feeder
+   * @param segments the number of segments
+   * @param seed     the seed, the same seed always gives the same feeder
+   * @return the feeder, starting at {@link #getSource()}
+   */
+  public MultiLineString generate(Topology topology, int segments, long seed) {
+    if (segments < 1) {
+      throw new IllegalArgumentException("Segments must be >= 1");
+    }
+
+    SplittableRandom random = new SplittableRandom(seed);
+    LineString[] lineStrings = new LineString[segments];
+
+    // the end of every segment, in meters from the source, with its heading and number of taps
+    double[] endXs = new double[segments];
+    double[] endYs = new double[segments];
+    double[] endHeadings = new double[segments];
+    byte[] taps = new byte[segments];
+
+    int trunkTip = 0;
+    for (int i = 0; i < segments; i++) {
+      int parent = i == 0 ? -1 : chooseParent(topology, random, i, trunkTip, taps);
+
+      double x = parent < 0 ? 0.0 : endXs[parent];
+      double y = parent < 0 ? 0.0 : endYs[parent];
+      double heading;
+      if (parent < 0) {
+        heading = random.nextDouble(-Math.PI, Math.PI);
+      } else if (taps[parent] == 0) {
+        // carry on roughly in the same direction
+        heading = endHeadings[parent] + random.nextDouble(-0.5, 0.5);
+      } else {
+        // a tap, off to one side
+        heading = endHeadings[parent] + (random.nextBoolean() ? 1 : -1)
+            * random.nextDouble(0.5, 1.5);
+      }
+
+      double length = random.nextDouble(100.0, 600.0);
+      int vertices = Math.max(2, (int) Math.round(length / random.nextDouble(30.0, 60.0)) + 1);
+      lineStrings[i] = createSegment(x, y, heading, length, vertices);
+
+      endXs[i] = x + length * Math.cos(heading);
+      endYs[i] = y + length * Math.sin(heading);
+      endHeadings[i] = heading;
+      if (parent >= 0) {
+        taps[parent]++;
+        if (parent == trunkTip) {
+          trunkTip = i;
+        }
+      }
+    }
+
+    return geometryFactory.createMultiLineString(lineStrings);
+  }
+
+  /**
+   * Pick the segment the next segment is tapped from.
+   *
+   * @param created  the number of segments created so far
+   * @param trunkTip the last segment of the trunk
+   * @param taps     the number of segments tapped from the end of each segment
+   */
+  private static int chooseParent(Topology topology, SplittableRandom random, int created,
+                                  int trunkTip, byte[] taps) {
+    int parent;
+    switch (topology) {
+      case RADIAL:
+        // mostly extend the trunk, with the occasional short lateral
+        parent = random.nextDouble() < 0.8 ? trunkTip : random.nextInt(created);
+        break;
+      case DEEP_LATERALS:
+        // keep extending the latest lateral, now and then start a new one anywhere
+        parent = random.nextDouble() < 0.95 ? created - 1 : random.nextInt(created);
+        break;
+      case BUSHY:
+        // any end is as likely as any other, which keeps the tree shallow and wide
+        parent = random.nextInt(created);
+        break;
+      default:
+        throw new IllegalArgumentException(topology + " is not handled.");
+    }
+
+    // the end is full, extend the latest segment instead, which never has taps yet
+    return taps[parent] < MAX_TAPS_PER_END ? parent : created - 1;
+  }
+
+  private LineString createSegment(double x, double y, double heading, double length,
+                                   int vertices) {
+    Coordinate[] coordinates = new Coordinate[vertices];
+    for (int i = 0; i < vertices; i++) {
+      double along = i == vertices - 1 ? length : length * i / (vertices - 1);
+      coordinates[i] = toLonLat(x + along * Math.cos(heading), y + along * Math.sin(heading));
+    }
+    return geometryFactory.createLineString(coordinates);
+  }
+
+  private Coordinate toLonLat(double x, double y) {
+    return new Coordinate(SOURCE_LON + x / METERS_PER_DEGREE_LON,
+        SOURCE_LAT + y / METERS_PER_DEGREE_LAT);
+  }
+
+  public enum Topology {
+    /**
+     * A long trunk with a few short laterals.
+     */
+    RADIAL,
+    /**
+     * Long laterals, tapped from each other, giving a very deep tree.
+     */
+    DEEP_LATERALS,
+    /**
+     * Taps everywhere, giving a shallow and wide tree.
+     */
+    BUSHY
+  }
+}
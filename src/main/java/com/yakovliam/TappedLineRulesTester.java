@@ -2,34 +2,61 @@ package com.yakovliam;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
 import org.locationtech.jts.geom.Coordinate;
 import org.locationtech.jts.geom.LineString;
 import org.locationtech.jts.geom.MultiLineString;
 import org.slf4j.Logger;
 
+/**
+ * Checks that a MultiLineString is a valid tapped line: no closed loops, every LineString connected
+ * to the rest of the network, and no shared points unless they are at either end of the
+ * LineStrings sharing them.
+ * <p>
+ * All rules are checked in a single pass over the vertices, using one coordinate occurrence map
+ * and a union-find over the end points, so validation is near-linear in the number of vertices.
+ */
 public class TappedLineRulesTester {
 
   private static final Logger LOGGER =
       org.slf4j.LoggerFactory.getLogger(TappedLineRulesTester.class);
 
-  public boolean passes(MultiLineString geometry, EdgeNodeTreeConstructor.EdgeNode root) {
-    // check for closed loops
-    if (containsClosedLoop(geometry)) {
-      LOGGER.error("Geometry contains a closed loop");
-      return false;
-    }
+  private final double coordinateTolerance;
 
-    // check that LineStrings are connected
-    if (!connectedLineStrings(geometry)) {
-      LOGGER.error("LineStrings are not connected");
-      return false;
-    }
+  private final boolean parallel;
 
-    // check that LineStrings do not have shared points unless the points are at either end of the LineString
-    if (!sharedPoints(geometry)) {
-      LOGGER.error("LineStrings have shared points that are not at the end of the LineString");
-      return false;
+  public TappedLineRulesTester() {
+    this(0.0);
+  }
+
+  /**
+   * @param coordinateTolerance the maximum distance, in coordinate units, between two end points
+   *                            that are considered connected, see {@link EndpointIndex}
+   */
+  public TappedLineRulesTester(double coordinateTolerance) {
+    this(coordinateTolerance, false);
+  }
+
+  /**
+   * @param coordinateTolerance the maximum distance, in coordinate units, between two end points
+   *                            that are considered connected, see {@link EndpointIndex}
+   * @param parallel            whether to run the per vertex and per end point checks on the
+   *                            common fork/join pool, the report is the same either way
+   */
+  public TappedLineRulesTester(double coordinateTolerance, boolean parallel) {
+    this.coordinateTolerance = coordinateTolerance;
+    this.parallel = parallel;
+  }
+
+  public boolean passes(MultiLineString geometry, EdgeNodeTreeConstructor.EdgeNode root) {
+    TopologyReport report = validate(geometry);
+
+    for (TopologyReport.Violation violation : report.getViolations()) {
+      LOGGER.error("Tapped line rule violated: {}", violation);
     }
 
     // check that the root node is not null
@@ -38,112 +65,265 @@ public class TappedLineRulesTester {
       return false;
     }
 
-    return true;
+    return report.isValid();
+  }
+
+  public TopologyReport validate(MultiLineString geometry) {
+    List<LineString> lineStrings = new ArrayList<>(geometry.getNumGeometries());
+    for (int i = 0; i < geometry.getNumGeometries(); i++) {
+      lineStrings.add((LineString) geometry.getGeometryN(i));
+    }
+    return validate(lineStrings);
   }
 
   /**
-   * Check for closed loops, Log message if we find a closed loop
+   * Validate LineStrings against the tapped line rules.
    *
-   * @param geometry MultiLineString
-   * @return boolean
+   * @param lineStrings the LineStrings, violations refer to them by their index in this list
+   * @return a report of every violation found
    */
-  private boolean containsClosedLoop(MultiLineString geometry) {
-    List<LineString> lineStrings = new ArrayList<>();
-    for (int i = 0; i < geometry.getNumGeometries(); i++) {
-      LineString lineString = (LineString) geometry.getGeometryN(i);
-      lineStrings.add(lineString);
+  public TopologyReport validate(List<LineString> lineStrings) {
+    return validate(LineStringCoordinates.of(lineStrings));
+  }
+
+  /**
+   * Validate LineStrings against the tapped line rules, reading their vertices directly, e.g. from
+   * a {@link FeederGeometry} or the edges of a {@link CompactEdgeTree}.
+   *
+   * @param lineStrings the LineStrings, violations refer to them by their index
+   * @return a report of every violation found
+   */
+  public TopologyReport validate(LineStringCoordinates lineStrings) {
+    long startNanos = System.nanoTime();
+    List<TopologyReport.Violation> violations = new ArrayList<>();
+
+    findSharedInteriorVertices(lineStrings, violations);
+
+    UnionFind components = connectEndpoints(lineStrings, violations);
+    findIslands(lineStrings.getLineStringCount(), components, violations);
+
+    Metrics.getGlobal().recordStage(Metrics.Stage.VALIDATE, startNanos);
+    return new TopologyReport(lineStrings.getLineStringCount(), violations);
+  }
+
+  /**
+   * LineStrings must not have shared points unless the points are at either end of the
+   * LineString. Every vertex is recorded once in an occurrence map, then every vertex seen on more
+   * than one LineString, and not at the ends of all of them, is reported.
+   */
+  private void findSharedInteriorVertices(LineStringCoordinates lineStrings,
+                                          List<TopologyReport.Violation> violations) {
+    Map<Coordinate, Occurrences> occurrences;
+    if (parallel) {
+      occurrences = recordOccurrencesInParallel(lineStrings);
+    } else {
+      occurrences = new HashMap<>();
+      for (int i = 0; i < lineStrings.getLineStringCount(); i++) {
+        int last = lineStrings.getVertexCount(i) - 1;
+        for (int j = 0; j <= last; j++) {
+          Coordinate vertex = new Coordinate(lineStrings.getX(i, j), lineStrings.getY(i, j));
+          occurrences.computeIfAbsent(vertex, coordinate -> new Occurrences())
+              .add(i, j != 0 && j != last);
+        }
+      }
     }
 
-    for (LineString lineString : lineStrings) {
-      if (lineString.isClosed()) {
-        return true;
+    List<TopologyReport.Violation> found = new ArrayList<>();
+    for (Map.Entry<Coordinate, Occurrences> entry : occurrences.entrySet()) {
+      Occurrences occurrence = entry.getValue();
+      if (occurrence.interior && occurrence.count > 1) {
+        found.add(new TopologyReport.Violation(TopologyReport.ViolationType.SHARED_INTERIOR_VERTEX,
+            Arrays.copyOf(occurrence.lineStrings, occurrence.count), entry.getKey()));
       }
     }
 
-    return false;
+    // hash order isn't meaningful, report in order of the LineStrings involved, then location
+    found.sort((a, b) -> {
+      int byLineStrings = Arrays.compare(a.getLineStringIndices(), b.getLineStringIndices());
+      return byLineStrings != 0 ? byLineStrings : a.getLocation().compareTo(b.getLocation());
+    });
+    violations.addAll(found);
   }
 
   /**
-   * LineStrings must be connected at least one of it's end points. If there is more then one line string then all LineStrings must be connected. Log error message if there are LineStrings that are not connected.
-   *
-   * @param geometry MultiLineString
-   * @return boolean
+   * Record every vertex with several threads. LineStrings are no longer added to an occurrence in
+   * order, so every occurrence is sorted afterwards, leaving the same occurrences as a sequential
+   * pass.
    */
-  private boolean connectedLineStrings(MultiLineString geometry) {
-    List<LineString> lineStrings = new ArrayList<>();
-    for (int i = 0; i < geometry.getNumGeometries(); i++) {
-      LineString lineString = (LineString) geometry.getGeometryN(i);
-      lineStrings.add(lineString);
-    }
-
-    boolean foundLineThatIsNotConnected = false;
+  private static Map<Coordinate, Occurrences> recordOccurrencesInParallel(
+      LineStringCoordinates lineStrings) {
+    ConcurrentHashMap<Coordinate, Occurrences> occurrences = new ConcurrentHashMap<>();
+    IntStream.range(0, lineStrings.getLineStringCount()).parallel().forEach(i -> {
+      int last = lineStrings.getVertexCount(i) - 1;
+      for (int j = 0; j <= last; j++) {
+        Coordinate vertex = new Coordinate(lineStrings.getX(i, j), lineStrings.getY(i, j));
+        boolean interior = j != 0 && j != last;
+        occurrences.compute(vertex, (coordinate, occurrence) -> {
+          Occurrences updated = occurrence == null ? new Occurrences() : occurrence;
+          updated.add(i, interior);
+          return updated;
+        });
+      }
+    });
+    occurrences.values().parallelStream().forEach(Occurrences::sort);
+    return occurrences;
+  }
 
-    for (LineString lineString : lineStrings) {
-      // check if either the start/end point is shared with another line string's start/end point
-      boolean thisLineStringIsConnected = false;
+  /**
+   * Union the end points that are the same point, then every LineString's start with its end. A
+   * LineString whose start and end are already in the same component closes a loop.
+   */
+  private UnionFind connectEndpoints(LineStringCoordinates lineStrings,
+                                     List<TopologyReport.Violation> violations) {
+    EndpointIndex endpointIndex = new EndpointIndex(lineStrings, coordinateTolerance, parallel);
+    UnionFind unionFind = new UnionFind(endpointIndex.size());
 
-      for (LineString otherLineString : lineStrings) {
-        if (lineString.equals(otherLineString)) {
-          continue;
-        }
+    // the lookups are independent, only the unions have to happen in order
+    int[][] matches = null;
+    if (parallel) {
+      int[][] found = new int[endpointIndex.size()][];
+      IntStream.range(0, found.length).parallel().forEach(endpoint ->
+          found[endpoint] = endpointIndex.find(endpointIndex.getX(endpoint),
+              endpointIndex.getY(endpoint)));
+      matches = found;
+    }
 
-        if (lineString.getStartPoint().equals(otherLineString.getStartPoint()) ||
-            lineString.getStartPoint().equals(otherLineString.getEndPoint()) ||
-            lineString.getEndPoint().equals(otherLineString.getStartPoint()) ||
-            lineString.getEndPoint().equals(otherLineString.getEndPoint())) {
-          thisLineStringIsConnected = true;
-          break;
-        }
+    for (int endpoint = 0; endpoint < endpointIndex.size(); endpoint++) {
+      int[] endpointMatches = matches != null ? matches[endpoint]
+          : endpointIndex.find(endpointIndex.getX(endpoint), endpointIndex.getY(endpoint));
+      for (int match : endpointMatches) {
+        unionFind.union(endpoint, match);
       }
+    }
 
-      if (!thisLineStringIsConnected) {
-        foundLineThatIsNotConnected = true;
-        break;
+    for (int i = 0; i < lineStrings.getLineStringCount(); i++) {
+      if (!unionFind.union(EndpointIndex.startOf(i), EndpointIndex.endOf(i))) {
+        int last = lineStrings.getVertexCount(i) - 1;
+        violations.add(new TopologyReport.Violation(TopologyReport.ViolationType.CLOSED_LOOP,
+            new int[] {i}, new Coordinate(lineStrings.getX(i, last), lineStrings.getY(i, last))));
       }
     }
 
-    return !foundLineThatIsNotConnected;
+    return unionFind;
   }
 
   /**
-   * check that LineStrings do not have shared points unless the points are at either end of the LineString.
-   * Log error message if there are shared points that are not at the end of the LineString.
-   *
-   * @param geometry MultiLineString
-   * @return boolean
+   * LineStrings must all be connected. The largest component is taken to be the network, every
+   * other component is reported as an island.
    */
-  private boolean sharedPoints(MultiLineString geometry) {
-    List<LineString> lineStrings = new ArrayList<>();
-    for (int i = 0; i < geometry.getNumGeometries(); i++) {
-      LineString lineString = (LineString) geometry.getGeometryN(i);
-      lineStrings.add(lineString);
+  private void findIslands(int lineStringCount, UnionFind components,
+                           List<TopologyReport.Violation> violations) {
+    Map<Integer, List<Integer>> lineStringsByComponent = new HashMap<>();
+    int mainComponent = -1;
+    int mainSize = 0;
+
+    for (int i = 0; i < lineStringCount; i++) {
+      int component = components.find(EndpointIndex.startOf(i));
+      List<Integer> members =
+          lineStringsByComponent.computeIfAbsent(component, key -> new ArrayList<>());
+      members.add(i);
+      if (members.size() > mainSize) {
+        mainComponent = component;
+        mainSize = members.size();
+      }
     }
 
-    boolean foundSharedPointNotAtEnd = false;
+    if (lineStringsByComponent.size() <= 1) {
+      return;
+    }
 
-    for (LineString lineString : lineStrings) {
-      // check if any of the points in this lineString are contained
-      // within any other lineStrings, not at that lineString's start/end
-      for (LineString otherLineString : lineStrings) {
-        if (lineString.equals(otherLineString)) {
-          continue;
-        }
+    List<int[]> islands = new ArrayList<>();
+    for (Map.Entry<Integer, List<Integer>> entry : lineStringsByComponent.entrySet()) {
+      if (entry.getKey() != mainComponent) {
+        islands.add(entry.getValue().stream().mapToInt(Integer::intValue).toArray());
+      }
+    }
+
+    islands.sort((a, b) -> Integer.compare(a[0], b[0]));
+    for (int[] island : islands) {
+      violations.add(new TopologyReport.Violation(
+          TopologyReport.ViolationType.DISCONNECTED_ISLAND, island, null));
+    }
+  }
+
+  private static final class Occurrences {
 
-        for (Coordinate coordinate : lineString.getCoordinates()) {
-          if (Arrays.asList(otherLineString.getCoordinates()).contains(coordinate) &&
-              !coordinate.equals(otherLineString.getCoordinateN(0)) && !coordinate.equals(
-              otherLineString.getCoordinateN(otherLineString.getNumPoints() - 1))) {
-            foundSharedPointNotAtEnd = true;
-            break;
-          }
+    private int[] lineStrings = new int[1];
+
+    private int count;
+
+    private boolean interior;
+
+    private void add(int lineString, boolean interiorVertex) {
+      interior |= interiorVertex;
+      // LineStrings are visited in order, so a repeat can only be the last one recorded
+      if (count > 0 && lineStrings[count - 1] == lineString) {
+        return;
+      }
+      if (count == lineStrings.length) {
+        lineStrings = Arrays.copyOf(lineStrings, count * 2);
+      }
+      lineStrings[count++] = lineString;
+    }
+
+    /**
+     * Sort the LineStrings and drop repeats, for occurrences recorded out of order.
+     */
+    private void sort() {
+      Arrays.sort(lineStrings, 0, count);
+      int unique = 0;
+      for (int k = 0; k < count; k++) {
+        if (unique == 0 || lineStrings[unique - 1] != lineStrings[k]) {
+          lineStrings[unique++] = lineStrings[k];
         }
       }
+      count = unique;
+    }
+  }
+
+  /**
+   * Union-find with path halving and union by size.
+   */
+  private static final class UnionFind {
+
+    private final int[] parents;
+
+    private final int[] sizes;
+
+    private UnionFind(int size) {
+      this.parents = new int[size];
+      this.sizes = new int[size];
+      for (int i = 0; i < size; i++) {
+        parents[i] = i;
+        sizes[i] = 1;
+      }
+    }
 
-      if (foundSharedPointNotAtEnd) {
-        break;
+    private int find(int element) {
+      while (parents[element] != element) {
+        parents[element] = parents[parents[element]];
+        element = parents[element];
       }
+      return element;
     }
 
-    return !foundSharedPointNotAtEnd;
+    /**
+     * @return false if both elements were already in the same set
+     */
+    private boolean union(int a, int b) {
+      int rootA = find(a);
+      int rootB = find(b);
+      if (rootA == rootB) {
+        return false;
+      }
+      if (sizes[rootA] < sizes[rootB]) {
+        int swap = rootA;
+        rootA = rootB;
+        rootB = swap;
+      }
+      parents[rootB] = rootA;
+      sizes[rootA] += sizes[rootB];
+      return true;
+    }
   }
 }
@@ -0,0 +1,94 @@
+package com.yakovliam;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.locationtech.jts.geom.Coordinate;
+
+/**
+ * The result of validating a MultiLineString against the tapped line rules, see
+ * {@link TappedLineRulesTester}. Lists every violation that was found rather than only the first.
+ */
+public class TopologyReport {
+
+  private final int lineStringCount;
+
+  private final List<Violation> violations;
+
+  public TopologyReport(int lineStringCount, List<Violation> violations) {
+    this.lineStringCount = lineStringCount;
+    this.violations = Collections.unmodifiableList(new ArrayList<>(violations));
+  }
+
+  public int getLineStringCount() {
+    return lineStringCount;
+  }
+
+  public List<Violation> getViolations() {
+    return violations;
+  }
+
+  public boolean isValid() {
+    return violations.isEmpty();
+  }
+
+  @Override
+  public String toString() {
+    return "TopologyReport{lineStrings=" + lineStringCount + ", violations=" + violations + "}";
+  }
+
+  public enum ViolationType {
+    /**
+     * A LineString closes a loop, either on itself or through other LineStrings. The reported
+     * LineString is the one that closed it.
+     */
+    CLOSED_LOOP,
+    /**
+     * A group of LineStrings that is not connected to the rest of the network.
+     */
+    DISCONNECTED_ISLAND,
+    /**
+     * A vertex is shared by several LineStrings, and isn't at the start/end of all of them.
+     */
+    SHARED_INTERIOR_VERTEX
+  }
+
+  public static class Violation {
+
+    private final ViolationType type;
+
+    private final int[] lineStringIndices;
+
+    private final Coordinate location;
+
+    /**
+     * @param type              the rule that was violated
+     * @param lineStringIndices the indices of the LineStrings involved, in the input geometry
+     * @param location          where the violation is, or null if it isn't a single point
+     */
+    public Violation(ViolationType type, int[] lineStringIndices, Coordinate location) {
+      this.type = type;
+      this.lineStringIndices = lineStringIndices.clone();
+      this.location = location;
+    }
+
+    public ViolationType getType() {
+      return type;
+    }
+
+    public int[] getLineStringIndices() {
+      return lineStringIndices.clone();
+    }
+
+    public Coordinate getLocation() {
+      return location;
+    }
+
+    @Override
+    public String toString() {
+      return type + " " + Arrays.toString(lineStringIndices)
+          + (location == null ? "" : " at " + location);
+    }
+  }
+}
@@ -0,0 +1,77 @@
+package com.yakovliam;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.SplittableRandom;
+import org.junit.jupiter.api.Test;
+
+class CompactEdgeTreeTest {
+
+  @Test
+  void exitIndicesCoverExactlyTheSubtree() {
+    SyntheticFeederGenerator generator = new SyntheticFeederGenerator();
+    for (SyntheticFeederGenerator.Topology topology : SyntheticFeederGenerator.Topology.values()) {
+      CompactEdgeTree tree = CompactEdgeTree.compile(new EdgeNodeTreeConstructor()
+          .constructEdgeNodeTree(generator.generate(topology, 2_000, 1), generator.getSource()));
+
+      // nodes are visited in ascending order, so the last one written is the largest
+      int[] lastDescendant = new int[tree.getNodeCount()];
+      for (int node = 0; node < tree.getNodeCount(); node++) {
+        assertTrue(tree.getParent(node) < node, topology + ": parent after node " + node);
+        for (int ancestor = node; ancestor >= 0; ancestor = tree.getParent(ancestor)) {
+          lastDescendant[ancestor] = node;
+        }
+      }
+      for (int node = 0; node < tree.getNodeCount(); node++) {
+        assertEquals(lastDescendant[node], tree.getExitIndex(node), topology + ": node " + node);
+      }
+    }
+  }
+
+  @Test
+  void isUpstreamOfMatchesTheAncestors() {
+    SyntheticFeederGenerator generator = new SyntheticFeederGenerator();
+    CompactEdgeTree tree = CompactEdgeTree.compile(new EdgeNodeTreeConstructor()
+        .constructEdgeNodeTree(generator.generate(SyntheticFeederGenerator.Topology.DEEP_LATERALS,
+            2_000, 2), generator.getSource()));
+
+    SplittableRandom random = new SplittableRandom(3);
+    for (int i = 0; i < 10_000; i++) {
+      int node = random.nextInt(tree.getNodeCount());
+      int other = random.nextInt(tree.getNodeCount());
+      boolean upstream = false;
+      for (int ancestor = other; ancestor >= 0; ancestor = tree.getParent(ancestor)) {
+        upstream |= ancestor == node;
+      }
+      assertEquals(upstream, tree.isUpstreamOf(node, other), node + " upstream of " + other);
+    }
+  }
+
+  @Test
+  void edgeNodesAreNumberedLikeTheCompiledTree() {
+    SyntheticFeederGenerator generator = new SyntheticFeederGenerator();
+    EdgeNodeTreeConstructor.EdgeNode root = new EdgeNodeTreeConstructor().constructEdgeNodeTree(
+        generator.generate(SyntheticFeederGenerator.Topology.BUSHY, 2_000, 4),
+        generator.getSource());
+    CompactEdgeTree tree = CompactEdgeTree.compile(root);
+
+    // walk the edge nodes in pre-order, children in order
+    Deque<EdgeNodeTreeConstructor.EdgeNode> stack = new ArrayDeque<>();
+    stack.push(root);
+    int node = 0;
+    while (!stack.isEmpty()) {
+      EdgeNodeTreeConstructor.EdgeNode edgeNode = stack.pop();
+      assertEquals(node, edgeNode.getEntryIndex());
+      assertEquals(tree.getExitIndex(node), edgeNode.getExitIndex());
+      assertEquals(tree.getSegmentIndex(node), edgeNode.getEdge().getSegmentIndex());
+      for (int i = edgeNode.getChildren().size() - 1; i >= 0; i--) {
+        stack.push(edgeNode.getChildren().get(i));
+      }
+      node++;
+    }
+    assertEquals(tree.getNodeCount(), node);
+  }
+}
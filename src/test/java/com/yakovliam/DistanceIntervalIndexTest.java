@@ -0,0 +1,81 @@
+package com.yakovliam;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.Test;
+
+class DistanceIntervalIndexTest {
+
+  @Test
+  void queryFindsEveryOverlappingEdge() {
+    SyntheticFeederGenerator generator = new SyntheticFeederGenerator();
+    for (SyntheticFeederGenerator.Topology topology : SyntheticFeederGenerator.Topology.values()) {
+      CompactEdgeTree tree = CompactEdgeTree.compile(new EdgeNodeTreeConstructor()
+          .constructEdgeNodeTree(generator.generate(topology, 3_000, 5), generator.getSource()));
+      DistanceIntervalIndex index = new DistanceIntervalIndex(tree);
+      double furthest = 0;
+      for (int node = 0; node < tree.getNodeCount(); node++) {
+        furthest = Math.max(furthest, tree.getDistanceToEnd(node));
+      }
+
+      SplittableRandom random = new SplittableRandom(5);
+      for (int i = 0; i < 500; i++) {
+        double min = random.nextDouble(-100, furthest + 100);
+        // every fifth band is a single distance
+        double max = i % 5 == 0 ? min : min + random.nextDouble(2_000);
+        int[] found = index.query(min, max);
+
+        for (int j = 1; j < found.length; j++) {
+          assertTrue(tree.getDistanceFromSource(found[j - 1])
+              <= tree.getDistanceFromSource(found[j]), "not in order of start distance");
+        }
+        assertArrayEquals(bruteForce(tree, min, max), sorted(found),
+            topology + " band " + min + " to " + max);
+      }
+    }
+  }
+
+  @Test
+  void bandEndsAreInclusive() {
+    SyntheticFeederGenerator generator = new SyntheticFeederGenerator();
+    CompactEdgeTree tree = CompactEdgeTree.compile(new EdgeNodeTreeConstructor()
+        .constructEdgeNodeTree(generator.generate(SyntheticFeederGenerator.Topology.RADIAL, 200,
+            1), generator.getSource()));
+    DistanceIntervalIndex index = new DistanceIntervalIndex(tree);
+
+    // the end of every edge is the start of its children
+    for (int node = 0; node < tree.getNodeCount(); node++) {
+      double end = tree.getDistanceToEnd(node);
+      assertArrayEquals(bruteForce(tree, end, end), sorted(index.query(end, end)),
+          "at the end of " + node);
+    }
+  }
+
+  @Test
+  void emptyBandIsRejected() {
+    SyntheticFeederGenerator generator = new SyntheticFeederGenerator();
+    DistanceIntervalIndex index = new DistanceIntervalIndex(CompactEdgeTree.compile(
+        new EdgeNodeTreeConstructor().constructEdgeNodeTree(
+            generator.generate(SyntheticFeederGenerator.Topology.RADIAL, 10, 1),
+            generator.getSource())));
+    assertThrows(IllegalArgumentException.class, () -> index.query(10, 5));
+  }
+
+  private static int[] bruteForce(CompactEdgeTree tree, double min, double max) {
+    return IntStream.range(0, tree.getNodeCount())
+        .filter(node -> tree.getDistanceFromSource(node) <= max
+            && tree.getDistanceToEnd(node) >= min)
+        .toArray();
+  }
+
+  private static int[] sorted(int[] nodes) {
+    int[] copy = nodes.clone();
+    Arrays.sort(copy);
+    return copy;
+  }
+}
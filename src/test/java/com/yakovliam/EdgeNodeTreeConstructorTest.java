@@ -0,0 +1,62 @@
+package com.yakovliam;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+import org.locationtech.jts.geom.MultiLineString;
+
+class EdgeNodeTreeConstructorTest {
+
+  @Test
+  void parallelBuildMatchesSequential() {
+    SyntheticFeederGenerator generator = new SyntheticFeederGenerator();
+    for (SyntheticFeederGenerator.Topology topology : SyntheticFeederGenerator.Topology.values()) {
+      MultiLineString geometry = generator.generate(topology, 20_000, 7);
+
+      // both validate the tree they build, and throw if it doesn't pass
+      EdgeNodeTreeConstructor sequential = new EdgeNodeTreeConstructor();
+      CompactEdgeTree expected = CompactEdgeTree.compile(
+          sequential.constructEdgeNodeTree(geometry, generator.getSource()), false, false);
+
+      EdgeNodeTreeConstructor parallel = new EdgeNodeTreeConstructor();
+      parallel.setParallel(true);
+      CompactEdgeTree actual = CompactEdgeTree.compile(
+          parallel.constructEdgeNodeTree(geometry, generator.getSource()), false, true);
+
+      assertEquals(20_000, actual.getNodeCount(), topology + " node count");
+      assertSameTree(expected, actual);
+    }
+  }
+
+  /**
+   * Assert two compiled trees hold the same arrays, value for value.
+   */
+  static void assertSameTree(CompactEdgeTree expected, CompactEdgeTree actual) {
+    assertEquals(expected.getNodeCount(), actual.getNodeCount(), "node count");
+    assertEquals(expected.getVertexCount(), actual.getVertexCount(), "vertex count");
+    assertEquals(expected.getGeodesicKernel(), actual.getGeodesicKernel(), "kernel");
+    assertEquals(expected.getSrid(), actual.getSrid(), "SRID");
+
+    for (int node = 0; node < expected.getNodeCount(); node++) {
+      assertEquals(expected.getParent(node), actual.getParent(node), "parent of " + node);
+      assertEquals(expected.getChildCount(node), actual.getChildCount(node),
+          "child count of " + node);
+      for (int i = 0; i < expected.getChildCount(node); i++) {
+        assertEquals(expected.getChild(node, i), actual.getChild(node, i), "child of " + node);
+      }
+      assertEquals(expected.getDistanceFromSource(node), actual.getDistanceFromSource(node),
+          "distance of " + node);
+      assertEquals(expected.getVertexStart(node), actual.getVertexStart(node),
+          "first vertex of " + node);
+      assertEquals(expected.getSegmentIndex(node), actual.getSegmentIndex(node),
+          "segment of " + node);
+      assertEquals(expected.isReversed(node), actual.isReversed(node), "reversal of " + node);
+    }
+    for (int vertex = 0; vertex < expected.getVertexCount(); vertex++) {
+      assertEquals(expected.getX(vertex), actual.getX(vertex), "x of " + vertex);
+      assertEquals(expected.getY(vertex), actual.getY(vertex), "y of " + vertex);
+      assertEquals(expected.getCumulativeDistance(vertex), actual.getCumulativeDistance(vertex),
+          "cumulative distance of " + vertex);
+    }
+  }
+}
@@ -0,0 +1,75 @@
+package com.yakovliam;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import org.junit.jupiter.api.Test;
+
+class FaultIndicatorFilterTest {
+
+  private final SyntheticFeederGenerator generator = new SyntheticFeederGenerator();
+
+  private final CompactEdgeTree tree = CompactEdgeTree.compile(new EdgeNodeTreeConstructor()
+      .constructEdgeNodeTree(generator.generate(SyntheticFeederGenerator.Topology.DEEP_LATERALS,
+          2_000, 5), generator.getSource()));
+
+  private FaultIndicatorFilter randomFilter(SplittableRandom random) {
+    List<FaultIndicator> indicators = new ArrayList<>();
+    int count = 1 + random.nextInt(6);
+    for (int i = 0; i < count; i++) {
+      int edge = random.nextInt(tree.getNodeCount());
+      double offset = random.nextBoolean() ? 0 : random.nextDouble() * tree.getLength(edge);
+      indicators.add(new FaultIndicator(tree, edge, offset, random.nextInt(3) == 0));
+    }
+    return new FaultIndicatorFilter(indicators);
+  }
+
+  @Test
+  void excludedSubtreesAdmitNothing() {
+    SplittableRandom random = new SplittableRandom(6);
+    for (int i = 0; i < 30; i++) {
+      FaultIndicatorFilter filter = randomFilter(random);
+      for (int node = 0; node < tree.getNodeCount(); node++) {
+        if (!filter.excludesSubtree(node, tree.getExitIndex(node))) {
+          continue;
+        }
+        for (int other = node; other <= tree.getExitIndex(node); other++) {
+          assertFalse(filter.admits(other, 0), "admits " + other);
+          assertFalse(filter.admits(other, tree.getLength(other)), "admits " + other);
+        }
+      }
+    }
+  }
+
+  @Test
+  void prunedSweepMatchesFilteredCandidates() {
+    double reach = 0;
+    for (int node = 0; node < tree.getNodeCount(); node++) {
+      reach = Math.max(reach, tree.getDistanceToEnd(node));
+    }
+    double[] distances = new double[50];
+    for (int i = 0; i < distances.length; i++) {
+      distances[i] = reach * i / distances.length;
+    }
+
+    FaultLocator locator = new FaultLocator();
+    List<List<FaultCandidate>> all = locator.locateCandidates(tree, distances);
+    SplittableRandom random = new SplittableRandom(7);
+    for (int i = 0; i < 100; i++) {
+      FaultIndicatorFilter filter = randomFilter(random);
+      List<List<FaultCandidate>> expected = filter.filter(all);
+      List<List<FaultCandidate>> actual = locator.locateCandidates(tree, distances, filter);
+
+      for (int d = 0; d < distances.length; d++) {
+        assertEquals(expected.get(d).size(), actual.get(d).size(), filter + " at " + distances[d]);
+        for (int c = 0; c < expected.get(d).size(); c++) {
+          assertEquals(expected.get(d).get(c).getEdge(), actual.get(d).get(c).getEdge());
+          assertEquals(expected.get(d).get(c).getOffset(), actual.get(d).get(c).getOffset());
+        }
+      }
+    }
+  }
+}
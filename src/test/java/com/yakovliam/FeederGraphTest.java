@@ -0,0 +1,102 @@
+package com.yakovliam;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Comparator;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.MultiLineString;
+import org.locationtech.jts.geom.PrecisionModel;
+
+class FeederGraphTest {
+
+  // UTM zone 12N, in meters, so every length below is exact
+  private static final GeometryFactory UTM = new GeometryFactory(new PrecisionModel(), 32612);
+
+  private static final double X = 400_000;
+
+  private static final double Y = 3_700_000;
+
+  /**
+   * A 100 m square ring from the source at its corner: A and C leave the source, B joins their
+   * ends through the opposite corner, which is 200 m away both ways round.
+   */
+  private static MultiLineString ring() {
+    LineString a = line(0, 0, 100, 0);
+    LineString b = line(100, 0, 100, 100, 0, 100);
+    LineString c = line(0, 0, 0, 100);
+    return UTM.createMultiLineString(new LineString[] {a, b, c});
+  }
+
+  @Test
+  void pointAsFarBothWaysIsFoundOnce() {
+    FeederGraph graph = new EdgeNodeTreeConstructor().constructFeederGraph(ring(),
+        UTM.createPoint(new Coordinate(X, Y)));
+
+    List<FaultCandidate> candidates = graph.locateCandidates(new double[] {200}).get(0);
+
+    assertEquals(1, candidates.size(), candidates.toString());
+    FaultCandidate candidate = candidates.get(0);
+    assertEquals(1, candidate.getEdge());
+    // reported through the start of the LineString
+    assertEquals(100, candidate.getOffset(), 1e-9);
+    assertEquals(X + 100, candidate.getPoint().getX(), 1e-6);
+    assertEquals(Y + 100, candidate.getPoint().getY(), 1e-6);
+  }
+
+  @Test
+  void distancesAreShortestPaths() {
+    FeederGraph graph = new EdgeNodeTreeConstructor().constructFeederGraph(ring(),
+        UTM.createPoint(new Coordinate(X, Y)));
+
+    // 150 m is 50 m along B from the end of A, and 50 m back along B from the end of C
+    List<FaultCandidate> candidates = graph.locateCandidates(new double[] {150}).get(0);
+
+    assertEquals(2, candidates.size(), candidates.toString());
+    assertEquals(50, candidates.get(0).getOffset(), 1e-9);
+    assertEquals(150, candidates.get(1).getOffset(), 1e-9);
+    assertEquals(X + 100, candidates.get(0).getPoint().getX(), 1e-6);
+    assertEquals(Y + 50, candidates.get(0).getPoint().getY(), 1e-6);
+    assertEquals(X + 50, candidates.get(1).getPoint().getX(), 1e-6);
+    assertEquals(Y + 100, candidates.get(1).getPoint().getY(), 1e-6);
+  }
+
+  @Test
+  void treeWithoutLoopsMatchesFaultLocator() {
+    SyntheticFeederGenerator generator = new SyntheticFeederGenerator();
+    MultiLineString geometry =
+        generator.generate(SyntheticFeederGenerator.Topology.BUSHY, 2_000, 9);
+    EdgeNodeTreeConstructor constructor = new EdgeNodeTreeConstructor();
+    FeederGraph graph = constructor.constructFeederGraph(geometry, generator.getSource());
+    CompactEdgeTree tree = CompactEdgeTree.compile(
+        constructor.constructEdgeNodeTree(geometry, generator.getSource()));
+
+    double[] distances = {0.5, 250, 1_234.5, 3_000, 6_000};
+    List<List<FaultCandidate>> fromGraph = graph.locateCandidates(distances);
+    List<List<FaultCandidate>> fromTree = new FaultLocator().locateCandidates(tree, distances);
+
+    for (int i = 0; i < distances.length; i++) {
+      // a distance reaches an edge of a tree at most once, so candidates pair up by LineString
+      List<FaultCandidate> expected = fromTree.get(i);
+      List<FaultCandidate> actual = fromGraph.get(i);
+      expected.sort(Comparator.comparingInt(FaultCandidate::getSegmentIndex));
+      assertEquals(expected.size(), actual.size(), "candidates at " + distances[i]);
+      for (int j = 0; j < expected.size(); j++) {
+        assertEquals(expected.get(j).getSegmentIndex(), actual.get(j).getSegmentIndex());
+        assertEquals(expected.get(j).getPoint().getX(), actual.get(j).getPoint().getX(), 1e-9);
+        assertEquals(expected.get(j).getPoint().getY(), actual.get(j).getPoint().getY(), 1e-9);
+      }
+    }
+  }
+
+  private static LineString line(double... offsets) {
+    Coordinate[] coordinates = new Coordinate[offsets.length / 2];
+    for (int i = 0; i < coordinates.length; i++) {
+      coordinates[i] = new Coordinate(X + offsets[2 * i], Y + offsets[2 * i + 1]);
+    }
+    return UTM.createLineString(coordinates);
+  }
+}
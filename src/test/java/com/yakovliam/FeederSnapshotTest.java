@@ -0,0 +1,154 @@
+package com.yakovliam;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.PrecisionModel;
+
+class FeederSnapshotTest {
+
+  @TempDir
+  Path directory;
+
+  private final SyntheticFeederGenerator generator = new SyntheticFeederGenerator();
+
+  private CompactEdgeTree build() {
+    return CompactEdgeTree.compile(new EdgeNodeTreeConstructor().constructEdgeNodeTree(
+        generator.generate(SyntheticFeederGenerator.Topology.DEEP_LATERALS, 2_000, 3),
+        generator.getSource()));
+  }
+
+  private Path input(String content) throws IOException {
+    return Files.write(directory.resolve("feeder.geojson"),
+        content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  void openedSnapshotMatchesWrittenTree() throws IOException {
+    CompactEdgeTree tree = build();
+    Path path = directory.resolve("feeder.feeder");
+    FeederSnapshot.write(tree, path, FeederSnapshot.Provenance.of(generator.getSource(),
+        input("{}")));
+
+    CompactEdgeTree opened = FeederSnapshot.open(path);
+
+    assertTrue(opened.isOffHeap());
+    EdgeNodeTreeConstructorTest.assertSameTree(tree, opened);
+    for (int node = 0; node < tree.getNodeCount(); node++) {
+      assertEquals(tree.getExitIndex(node), opened.getExitIndex(node), "exit of " + node);
+    }
+  }
+
+  @Test
+  void provenanceRoundTrips() throws IOException {
+    Path path = directory.resolve("feeder.feeder");
+    Path input = input("{\"type\":0}");
+    FeederSnapshot.Provenance written = FeederSnapshot.Provenance.of(generator.getSource(), input);
+    FeederSnapshot.write(build(), path, written);
+
+    FeederSnapshot.Provenance read = FeederSnapshot.readProvenance(path);
+
+    assertNotNull(read);
+    assertEquals(written.getSourceX(), read.getSourceX());
+    assertEquals(written.getSourceY(), read.getSourceY());
+    assertEquals(10, read.getInputLength());
+    assertEquals(Files.getLastModifiedTime(input).toMillis(), read.getInputModified());
+    assertEquals(written.getInputChecksum(), read.getInputChecksum());
+    assertNull(FeederSnapshot.findMismatch(FeederSnapshot.open(path), read,
+        generator.getSource(), input));
+  }
+
+  @Test
+  void changedSourceOrInputIsStale() throws IOException {
+    Path path = directory.resolve("feeder.feeder");
+    Point source = generator.getSource();
+    Path input = input("{\"a\":1}");
+    FeederSnapshot.write(build(), path, FeederSnapshot.Provenance.of(source, input));
+    CompactEdgeTree opened = FeederSnapshot.open(path);
+    FeederSnapshot.Provenance recorded = FeederSnapshot.readProvenance(path);
+
+    Point moved = new GeometryFactory(new PrecisionModel(), 4326)
+        .createPoint(new Coordinate(source.getX() + 1e-6, source.getY()));
+    assertNotNull(FeederSnapshot.findMismatch(opened, recorded, moved, input));
+
+    // touched but unchanged, the checksum still matches
+    FileTime modified = Files.getLastModifiedTime(input);
+    Files.setLastModifiedTime(input, FileTime.fromMillis(modified.toMillis() + 60_000));
+    assertNull(FeederSnapshot.findMismatch(opened, recorded, source, input));
+
+    // same length and modification time, so the input isn't read
+    Files.write(input, "{\"a\":2}".getBytes(StandardCharsets.UTF_8));
+    Files.setLastModifiedTime(input, modified);
+    assertNull(FeederSnapshot.findMismatch(opened, recorded, source, input));
+
+    // same length, changed content
+    Files.setLastModifiedTime(input, FileTime.fromMillis(modified.toMillis() + 60_000));
+    assertNotNull(FeederSnapshot.findMismatch(opened, recorded, source, input));
+
+    Files.write(input, "{\"a\": 1}".getBytes(StandardCharsets.UTF_8));
+    Files.setLastModifiedTime(input, modified);
+    assertNotNull(FeederSnapshot.findMismatch(opened, recorded, source, input));
+
+    // without the input at hand only the source is compared
+    assertNull(FeederSnapshot.findMismatch(opened, recorded, source, (Path) null));
+  }
+
+  @Test
+  void snapshotWithoutProvenanceIsStale() throws IOException {
+    Path path = directory.resolve("feeder.feeder");
+    FeederSnapshot.write(build(), path);
+
+    assertNull(FeederSnapshot.readProvenance(path));
+    assertNotNull(FeederSnapshot.findMismatch(FeederSnapshot.open(path), null,
+        generator.getSource(), (Path) null));
+  }
+
+  @Test
+  void impedancesRoundTripForTheirProperty() throws IOException {
+    CompactEdgeTree tree = build();
+    int segmentCount = 0;
+    for (int node = 0; node < tree.getNodeCount(); node++) {
+      segmentCount = Math.max(segmentCount, tree.getSegmentIndex(node) + 1);
+    }
+    double[] ohmsPerKm = new double[segmentCount];
+    for (int i = 0; i < segmentCount; i++) {
+      ohmsPerKm[i] = 0.1 + i * 0.001;
+    }
+    Path path = directory.resolve("feeder.feeder");
+    FeederSnapshot.write(tree, path, FeederSnapshot.Provenance.of(generator.getSource()),
+        "ohm_per_km", ohmsPerKm);
+
+    EdgeNodeTreeConstructorTest.assertSameTree(tree, FeederSnapshot.open(path));
+    assertArrayEquals(ohmsPerKm, FeederSnapshot.readOhmsPerKm(path, "ohm_per_km"));
+    assertNull(FeederSnapshot.readOhmsPerKm(path, "x_ohm_per_km"));
+
+    FeederSnapshot.write(tree, path);
+    assertNull(FeederSnapshot.readOhmsPerKm(path, "ohm_per_km"));
+  }
+
+  @Test
+  void truncatedSnapshotIsRejected() throws IOException {
+    Path path = directory.resolve("feeder.feeder");
+    FeederSnapshot.write(build(), path);
+    byte[] bytes = Files.readAllBytes(path);
+    Path truncated = directory.resolve("truncated.feeder");
+    Files.write(truncated, Arrays.copyOf(bytes, bytes.length - 1));
+
+    assertThrows(IOException.class, () -> FeederSnapshot.open(truncated));
+  }
+}
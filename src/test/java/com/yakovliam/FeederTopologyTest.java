@@ -0,0 +1,163 @@
+package com.yakovliam;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.PrecisionModel;
+
+class FeederTopologyTest {
+
+  // UTM zone 12N, in meters, so every length below is exact
+  private static final GeometryFactory UTM = new GeometryFactory(new PrecisionModel(), 32612);
+
+  private static final double X = 400_000;
+
+  private static final double Y = 3_700_000;
+
+  /**
+   * A 100 m trunk east from the source, with a lateral north and a branch east from its end.
+   */
+  private final FeederTopology topology = new FeederTopology("feeder",
+      UTM.createMultiLineString(new LineString[] {
+          line(0, 0, 100, 0),
+          line(100, 0, 100, 100),
+          line(100, 0, 200, 0)
+      }), UTM.createPoint(new Coordinate(X, Y)));
+
+  private static LineString line(double... offsets) {
+    Coordinate[] coordinates = new Coordinate[offsets.length / 2];
+    for (int i = 0; i < coordinates.length; i++) {
+      coordinates[i] = new Coordinate(X + offsets[2 * i], Y + offsets[2 * i + 1]);
+    }
+    return UTM.createLineString(coordinates);
+  }
+
+  private static List<Integer> ids(FeederTopology.Version version) {
+    List<Integer> ids = new ArrayList<>();
+    for (FeederTopology.Segment segment : version.getSegments()) {
+      ids.add(segment.getId());
+    }
+    return ids;
+  }
+
+  private static double reach(FeederTopology.Version version) {
+    CompactEdgeTree tree = version.getFeeder().getTree();
+    double reach = 0;
+    for (int node = 0; node < tree.getNodeCount(); node++) {
+      reach = Math.max(reach, tree.getDistanceToEnd(node));
+    }
+    return reach;
+  }
+
+  @Test
+  void addedSegmentExtendsTheTree() {
+    FeederTopology.Version before = topology.getCurrent();
+
+    FeederTopology.Version after = topology.addSegment(line(100, 100, 100, 250));
+
+    assertSame(after, topology.getCurrent());
+    assertEquals(before.getNumber() + 1, after.getNumber());
+    assertEquals(List.of(0, 1, 2, 3), ids(after));
+    assertEquals(4, after.getFeeder().getTree().getNodeCount());
+    assertEquals(350, reach(after), 1e-9);
+    // published versions never change
+    assertEquals(3, before.getFeeder().getTree().getNodeCount());
+  }
+
+  @Test
+  void rejectedAddChangesNothing() {
+    FeederTopology.Version before = topology.getCurrent();
+
+    // off the network, both ends on it, and an end on the lateral's interior
+    assertThrows(IllegalArgumentException.class,
+        () -> topology.addSegment(line(500, 500, 600, 500)));
+    assertThrows(IllegalArgumentException.class,
+        () -> topology.addSegment(line(100, 100, 200, 0)));
+    assertThrows(IllegalArgumentException.class,
+        () -> topology.addSegment(line(200, 0, 200, 100, 100, 100)));
+    assertSame(before, topology.getCurrent());
+
+    // the next id isn't used up by the rejected updates
+    FeederTopology.Version after = topology.addSegment(line(200, 0, 300, 0));
+    assertEquals(List.of(0, 1, 2, 3), ids(after));
+  }
+
+  @Test
+  void removedLeafLeavesTheTree() {
+    FeederTopology.Version after = topology.removeSegment(1);
+
+    assertEquals(List.of(0, 2), ids(after));
+    assertEquals(2, after.getFeeder().getTree().getNodeCount());
+
+    // its end is free again
+    assertEquals(List.of(0, 2, 3), ids(topology.addSegment(line(100, 0, 50, 50))));
+  }
+
+  @Test
+  void rejectedRemoveChangesNothing() {
+    topology.addSegment(line(100, 100, 100, 200));
+    FeederTopology.Version before = topology.getCurrent();
+
+    // unknown, the source's segment, and one that would cut off the segment beyond it
+    assertThrows(IllegalArgumentException.class, () -> topology.removeSegment(42));
+    assertThrows(IllegalArgumentException.class, () -> topology.removeSegment(0));
+    assertThrows(IllegalArgumentException.class, () -> topology.removeSegment(1));
+    assertSame(before, topology.getCurrent());
+
+    // the lateral's ends are still indexed, so a loop through them is still caught
+    assertThrows(IllegalArgumentException.class,
+        () -> topology.addSegment(line(100, 200, 200, 0)));
+    assertEquals(List.of(0, 1, 2), ids(topology.removeSegment(3)));
+  }
+
+  @Test
+  void splitSegmentKeepsTheLengths() {
+    FeederTopology.Version after = topology.splitSegment(1, 40);
+
+    assertEquals(List.of(0, 3, 4, 2), ids(after));
+    assertEquals(4, after.getFeeder().getTree().getNodeCount());
+    assertEquals(200, reach(after), 1e-9);
+
+    // the split point is an end point now, a tap can go in there
+    FeederTopology.Version tapped = topology.addSegment(line(100, 40, 150, 40));
+    assertEquals(5, tapped.getFeeder().getTree().getNodeCount());
+  }
+
+  @Test
+  void rejectedSplitChangesNothing() {
+    FeederTopology.Version before = topology.getCurrent();
+
+    assertThrows(IllegalArgumentException.class, () -> topology.splitSegment(42, 10));
+    assertThrows(IllegalArgumentException.class, () -> topology.splitSegment(1, 0));
+    assertThrows(IllegalArgumentException.class, () -> topology.splitSegment(1, 100));
+    assertSame(before, topology.getCurrent());
+
+    assertEquals(List.of(0, 3, 4, 2), ids(topology.splitSegment(1, 50)));
+  }
+
+  @Test
+  void movedSourceRootsTheTreeThere() {
+    FeederTopology.Version before = topology.getCurrent();
+
+    FeederTopology.Version after = topology.moveSource(UTM.createPoint(new Coordinate(X + 200, Y)));
+
+    assertEquals(before.getNumber() + 1, after.getNumber());
+    assertEquals(ids(before), ids(after));
+    CompactEdgeTree tree = after.getFeeder().getTree();
+    int rootStart = tree.getVertexStart(0);
+    assertEquals(X + 200, tree.getX(rootStart));
+    assertEquals(Y, tree.getY(rootStart));
+    // 200 m back along the trunk, or 100 + 100 m to the end of the lateral
+    assertEquals(200, reach(after), 1e-9);
+
+    // the segment that held the source can go now
+    assertEquals(List.of(1, 2), ids(topology.removeSegment(0)));
+  }
+}
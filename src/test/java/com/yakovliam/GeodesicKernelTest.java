@@ -0,0 +1,117 @@
+package com.yakovliam;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.geom.Point2D;
+import java.util.Random;
+import org.geotools.referencing.GeodeticCalculator;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+
+/**
+ * Compares every geographic {@link GeodesicKernel} against GeoTools' GeodeticCalculator on
+ * random, seeded point pairs, and fails if a kernel is outside of its error bound.
+ */
+class GeodesicKernelTest {
+
+  private static final Logger LOGGER = org.slf4j.LoggerFactory.getLogger(GeodesicKernelTest.class);
+
+  private static final long SEED = 20241106L;
+
+  private static final int SAMPLES = 100_000;
+
+  /**
+   * Feeder scale, the length of a single segment is well under this.
+   */
+  private static final double SHORT_RANGE_METERS = 50_000;
+
+  private static final double LONG_RANGE_METERS = 10_000_000;
+
+  @Test
+  void haversineIsWithinBounds() {
+    assertWithinBounds(GeodesicKernel.HAVERSINE);
+  }
+
+  @Test
+  void vincentyIsWithinBounds() {
+    assertWithinBounds(GeodesicKernel.VINCENTY);
+  }
+
+  @Test
+  void karneyIsWithinBounds() {
+    assertWithinBounds(GeodesicKernel.KARNEY);
+  }
+
+  private static void assertWithinBounds(GeodesicKernel kernel) {
+    for (double maxDistance : new double[] {SHORT_RANGE_METERS, LONG_RANGE_METERS}) {
+      double worstBoundUsage = compare(kernel, maxDistance);
+      assertTrue(worstBoundUsage <= 1.0, kernel + " up to " + maxDistance + " m is at "
+          + worstBoundUsage * 100 + "% of its error bound");
+    }
+  }
+
+  /**
+   * @return the largest error as a fraction of what the bound allows, above 1 is a failure
+   */
+  private static double compare(GeodesicKernel kernel, double maxDistance) {
+    GeodeticCalculator calculator = new GeodeticCalculator(DefaultGeographicCRS.WGS84);
+    Random random = new Random(SEED);
+    double[] lonLat = new double[2];
+
+    double maxDistanceError = 0;
+    double maxLocationError = 0;
+    double worstBoundUsage = 0;
+
+    for (int i = 0; i < SAMPLES; i++) {
+      double lon1 = random.nextDouble() * 360 - 180;
+      double lat1 = random.nextDouble() * 160 - 80;
+      double azimuth = random.nextDouble() * 360 - 180;
+      double distance = random.nextDouble() * maxDistance;
+
+      calculator.setStartingGeographicPoint(lon1, lat1);
+      calculator.setDirection(azimuth, distance);
+      Point2D end = calculator.getDestinationGeographicPoint();
+      double lon2 = end.getX();
+      double lat2 = end.getY();
+
+      // distance between the two points
+      double distanceError = Math.abs(kernel.distance(lon1, lat1, lon2, lat2) - distance);
+      maxDistanceError = Math.max(maxDistanceError, distanceError);
+      worstBoundUsage = Math.max(worstBoundUsage, distanceError / bound(kernel, distance));
+
+      // a point part of the way from the first point to the second
+      double along = random.nextDouble() * distance;
+      calculator.setDirection(azimuth, along);
+      Point2D expected = calculator.getDestinationGeographicPoint();
+      kernel.interpolate(lon1, lat1, lon2, lat2, along, lonLat);
+      double locationError =
+          GeodesicKernel.KARNEY.distance(expected.getX(), expected.getY(), lonLat[0], lonLat[1]);
+      maxLocationError = Math.max(maxLocationError, locationError);
+      worstBoundUsage = Math.max(worstBoundUsage, locationError / bound(kernel, along));
+    }
+
+    LOGGER.info("{} up to {} m: max distance error {} m, max location error {} m, "
+            + "{}% of the error bound", kernel, maxDistance, maxDistanceError, maxLocationError,
+        worstBoundUsage * 100);
+    return worstBoundUsage;
+  }
+
+  /**
+   * @param distance the distance that was measured or walked, in meters
+   * @return the largest error allowed, in meters
+   */
+  private static double bound(GeodesicKernel kernel, double distance) {
+    switch (kernel) {
+      case HAVERSINE:
+        // the sphere is off by up to ~0.5% in length, and its azimuths are off as well
+        return 1e-2 * distance + 1e-6;
+      case VINCENTY:
+        return 1e-3;
+      case KARNEY:
+        return 1e-6;
+      default:
+        throw new IllegalArgumentException(kernel + " is not handled.");
+    }
+  }
+}
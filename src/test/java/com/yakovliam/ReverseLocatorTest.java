@@ -0,0 +1,51 @@
+package com.yakovliam;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.PrecisionModel;
+
+class ReverseLocatorTest {
+
+  private static final GeometryFactory GEOMETRY_FACTORY =
+      new GeometryFactory(new PrecisionModel(), 4326);
+
+  // at 60 degrees north a degree of longitude is half as long as a degree of latitude
+  private final CompactEdgeTree tree = CompactEdgeTree.compile(new EdgeNodeTreeConstructor()
+      .constructEdgeNodeTree(GEOMETRY_FACTORY.createMultiLineString(new LineString[] {
+          line(10, 60, 10, 60.01),
+          line(10, 60.01, 10.01, 60.01)
+      }), GEOMETRY_FACTORY.createPoint(new Coordinate(10, 60))));
+
+  private final ReverseLocator locator = new ReverseLocator(tree);
+
+  private static LineString line(double x1, double y1, double x2, double y2) {
+    return GEOMETRY_FACTORY.createLineString(
+        new Coordinate[] {new Coordinate(x1, y1), new Coordinate(x2, y2)});
+  }
+
+  @Test
+  void positionIsSnappedToTheEdgeNearestOnTheGround() {
+    // 0.0006 degrees east of the trunk, 33 m, and 0.0004 degrees south of the lateral, 44 m
+    ReverseLocator.Location location = locator.locate(10.0006, 60.0096);
+
+    assertEquals(0, location.getSegmentIndex());
+    assertEquals(33.47, location.getSnapMeters(), 0.01);
+    assertEquals(1069.56, location.getDistanceFromSource(), 0.01);
+  }
+
+  @Test
+  void positionBesideTheLateralIsMeasuredAlongIt() {
+    ReverseLocator.Location location = locator.locate(10.005, 60.0102);
+    GeodesicKernel kernel = tree.getGeodesicKernel();
+
+    // the lateral is straight in lon/lat, the geodesic along it bows a centimetre poleward
+    assertEquals(1, location.getSegmentIndex());
+    assertEquals(kernel.distance(10.005, 60.0102, 10.005, 60.01), location.getSnapMeters(), 0.05);
+    assertEquals(kernel.distance(10, 60, 10, 60.01) + kernel.distance(10, 60.01, 10.005, 60.01),
+        location.getDistanceFromSource(), 0.01);
+  }
+}
@@ -0,0 +1,76 @@
+package com.yakovliam;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.MultiLineString;
+
+class TappedLineRulesTesterTest {
+
+  @Test
+  void parallelReportMatchesSequentialForValidFeeders() {
+    SyntheticFeederGenerator generator = new SyntheticFeederGenerator();
+    for (SyntheticFeederGenerator.Topology topology : SyntheticFeederGenerator.Topology.values()) {
+      MultiLineString geometry = generator.generate(topology, 20_000, 7);
+
+      TopologyReport expected = new TappedLineRulesTester(0, false).validate(geometry);
+      TopologyReport actual = new TappedLineRulesTester(0, true).validate(geometry);
+
+      assertTrue(expected.isValid(), topology + ": " + expected);
+      assertSameReport(expected, actual);
+    }
+  }
+
+  @Test
+  void parallelReportMatchesSequentialForViolations() {
+    SyntheticFeederGenerator generator = new SyntheticFeederGenerator();
+    MultiLineString geometry = generator.generate(SyntheticFeederGenerator.Topology.BUSHY,
+        20_000, 11);
+    GeometryFactory factory = geometry.getFactory();
+
+    List<LineString> lineStrings = new ArrayList<>();
+    for (int i = 0; i < geometry.getNumGeometries(); i++) {
+      lineStrings.add((LineString) geometry.getGeometryN(i));
+    }
+    // copies share every vertex with the original, a loop closes on itself, and an island isn't
+    // connected to anything
+    for (int i = 0; i < 50; i++) {
+      lineStrings.add((LineString) lineStrings.get(i * 97).copy());
+    }
+    lineStrings.add(factory.createLineString(new Coordinate[] {
+        new Coordinate(0, 0), new Coordinate(1, 1), new Coordinate(0, 0)}));
+    lineStrings.add(factory.createLineString(new Coordinate[] {
+        new Coordinate(5, 5), new Coordinate(6, 6)}));
+
+    for (double tolerance : new double[] {0, 1e-7}) {
+      TopologyReport expected = new TappedLineRulesTester(tolerance, false).validate(lineStrings);
+      TopologyReport actual = new TappedLineRulesTester(tolerance, true).validate(lineStrings);
+
+      assertFalse(expected.isValid(), "violations at tolerance " + tolerance);
+      assertSameReport(expected, actual);
+    }
+  }
+
+  private static void assertSameReport(TopologyReport expected, TopologyReport actual) {
+    assertEquals(expected.getLineStringCount(), actual.getLineStringCount(), "LineString count");
+    assertEquals(expected.getViolations().size(), actual.getViolations().size(),
+        "violation count");
+    for (int i = 0; i < expected.getViolations().size(); i++) {
+      TopologyReport.Violation expectedViolation = expected.getViolations().get(i);
+      TopologyReport.Violation actualViolation = actual.getViolations().get(i);
+      assertEquals(expectedViolation.getType(), actualViolation.getType(), "type of " + i);
+      assertArrayEquals(expectedViolation.getLineStringIndices(),
+          actualViolation.getLineStringIndices(), "LineStrings of " + i);
+      assertEquals(expectedViolation.getLocation(), actualViolation.getLocation(),
+          "location of " + i);
+    }
+  }
+}